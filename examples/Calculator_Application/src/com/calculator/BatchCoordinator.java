@@ -0,0 +1,466 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits a large expression file across several worker JVMs and reassembles the results.
+ * Demonstrates process management, work re-dispatch on failure and ordered output.
+ *
+ * Every worker is a child JVM running {@link CalculatorServer} with the binary protocol
+ * on a loopback port; the coordinator drives it through a {@link CalculatorClient}.
+ * The input file is indexed into chunks of lines without loading it, and chunks are
+ * read back by byte offset when dispatched, so a chunk lost with a crashed or hung
+ * worker is simply queued again. Finished chunks are written strictly in input order
+ * and only a bounded window of chunks is ever held in memory.
+ *
+ * The output has one line per input line: the result, "ERROR: message", or an empty
+ * line for an empty input line.
+ */
+public class BatchCoordinator {
+
+    private static final Pattern LISTENING_PORT = Pattern.compile("listening on .*:(\\d+)");
+    private static final int CHUNKS_IN_MEMORY_PER_WORKER = 4;
+
+    /**
+     * Outcome of a batch run
+     */
+    public record BatchReport(long lines, long errors, int chunks, int redispatchedChunks,
+            int workerRestarts, long elapsedMillis) {
+
+        @Override
+        public String toString() {
+            return String.format("Evaluated %d lines (%d errors) in %d chunks, %d ms; "
+                    + "%d chunks re-dispatched, %d worker restarts",
+                    lines, errors, chunks, elapsedMillis, redispatchedChunks, workerRestarts);
+        }
+    }
+
+    /**
+     * Byte range of the input file holding one chunk of lines
+     */
+    private record Chunk(int index, long start, long end, int lineCount) {
+    }
+
+    private final int workerCount;
+    private final int chunkLines;
+    private final String workerHeap;
+    private final long chunkTimeoutMillis;
+    private final int maxWorkerRestarts;
+
+    /**
+     * Create coordinator with default heap, timeout and restart limits
+     */
+    public BatchCoordinator(int workerCount, int chunkLines) {
+        this(workerCount, chunkLines, "256m", TimeUnit.MINUTES.toMillis(2), workerCount * 3);
+    }
+
+    /**
+     * Create coordinator with custom worker settings
+     */
+    public BatchCoordinator(int workerCount, int chunkLines, String workerHeap,
+            long chunkTimeoutMillis, int maxWorkerRestarts) {
+        if (workerCount <= 0 || chunkLines <= 0) {
+            throw new IllegalArgumentException("Worker count and chunk size must be positive");
+        }
+        this.workerCount = workerCount;
+        this.chunkLines = chunkLines;
+        this.workerHeap = workerHeap;
+        this.chunkTimeoutMillis = chunkTimeoutMillis;
+        this.maxWorkerRestarts = maxWorkerRestarts;
+    }
+
+    /**
+     * Evaluate every line of the input file and write results to the output file
+     */
+    public BatchReport run(Path input, Path output) throws IOException {
+        long startTime = System.nanoTime();
+        List<Chunk> chunks = indexChunks(input);
+
+        Job job = new Job(input, chunks);
+        List<Thread> dispatchers = new ArrayList<>();
+        for (int i = 0; i < workerCount; i++) {
+            Thread dispatcher = new Thread(job::dispatchLoop, "batch-dispatcher-" + i);
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+            dispatchers.add(dispatcher);
+        }
+
+        Thread feeder = new Thread(job::feed, "batch-feeder");
+        feeder.setDaemon(true);
+        feeder.start();
+
+        long lines = 0;
+        long errors = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+            for (Chunk chunk : chunks) {
+                String[] results = job.awaitChunk(chunk.index());
+                for (String result : results) {
+                    writer.write(result);
+                    writer.newLine();
+                    if (result.startsWith("ERROR")) {
+                        errors++;
+                    }
+                }
+                lines += results.length;
+                job.window.release();
+            }
+        } finally {
+            job.finished = true;
+            feeder.interrupt();
+            for (Thread dispatcher : dispatchers) {
+                try {
+                    dispatcher.join(TimeUnit.SECONDS.toMillis(10));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        return new BatchReport(lines, errors, chunks.size(), job.redispatched.get(),
+                job.restarts.get(), elapsed);
+    }
+
+    /**
+     * Find the byte range of every chunk with one sequential pass over the file
+     */
+    private List<Chunk> indexChunks(Path input) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(input), 1 << 16)) {
+            long position = 0;
+            long chunkStart = 0;
+            int linesInChunk = 0;
+            boolean pendingLine = false;
+            int b;
+            while ((b = in.read()) != -1) {
+                position++;
+                pendingLine = true;
+                if (b == '\n') {
+                    pendingLine = false;
+                    if (++linesInChunk == chunkLines) {
+                        chunks.add(new Chunk(chunks.size(), chunkStart, position, linesInChunk));
+                        chunkStart = position;
+                        linesInChunk = 0;
+                    }
+                }
+            }
+            if (pendingLine) {
+                linesInChunk++; // Final line without a trailing newline
+            }
+            if (linesInChunk > 0) {
+                chunks.add(new Chunk(chunks.size(), chunkStart, position, linesInChunk));
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * State shared by the feeder, the dispatchers and the writer during one run
+     */
+    private final class Job {
+        final Path input;
+        final List<Chunk> chunks;
+
+        // Lowest chunk first, so re-dispatched chunks jump the queue
+        final BlockingQueue<Integer> pending = new PriorityBlockingQueue<>();
+        final Map<Integer, String[]> completed = new ConcurrentHashMap<>();
+        final BlockingQueue<Integer> completions = new LinkedBlockingQueue<>();
+        final Semaphore window = new Semaphore(workerCount * CHUNKS_IN_MEMORY_PER_WORKER);
+        final AtomicInteger redispatched = new AtomicInteger();
+        final AtomicInteger restarts = new AtomicInteger();
+        final AtomicReference<IOException> fatal = new AtomicReference<>();
+        volatile boolean finished;
+
+        Job(Path input, List<Chunk> chunks) {
+            this.input = input;
+            this.chunks = chunks;
+        }
+
+        /**
+         * Queue chunks no faster than the writer drains them
+         */
+        void feed() {
+            try {
+                for (Chunk chunk : chunks) {
+                    window.acquire();
+                    pending.add(chunk.index());
+                }
+            } catch (InterruptedException e) {
+                // Run finished or failed
+            }
+        }
+
+        String[] awaitChunk(int index) throws IOException {
+            while (true) {
+                String[] results = completed.remove(index);
+                if (results != null) {
+                    return results;
+                }
+                IOException failure = fatal.get();
+                if (failure != null) {
+                    throw failure;
+                }
+                try {
+                    completions.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for chunk " + index, e);
+                }
+            }
+        }
+
+        /**
+         * One dispatcher per worker: evaluate chunks until the run ends, replacing the
+         * worker whenever it fails and handing its chunk back to the queue
+         */
+        void dispatchLoop() {
+            WorkerProcess worker = null;
+            try (RandomAccessFile file = new RandomAccessFile(input.toFile(), "r")) {
+                while (!finished) {
+                    if (worker == null) {
+                        worker = startWorker();
+                    }
+
+                    Integer index = pending.poll(100, TimeUnit.MILLISECONDS);
+                    if (index == null) {
+                        continue;
+                    }
+
+                    Chunk chunk = chunks.get(index);
+                    try {
+                        completed.put(index, evaluateChunk(worker, readLines(file, chunk)));
+                        completions.add(index);
+                    } catch (WorkerFailedException e) {
+                        pending.add(index);
+                        redispatched.incrementAndGet();
+                        worker.destroy();
+                        worker = null;
+                        if (restarts.incrementAndGet() > maxWorkerRestarts) {
+                            throw new IOException("Too many worker failures; last: " + e.getMessage());
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                fatal.compareAndSet(null, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (worker != null) {
+                    worker.destroy();
+                }
+            }
+        }
+
+        /**
+         * Start a worker JVM, retrying until the restart budget is spent
+         */
+        private WorkerProcess startWorker() throws IOException {
+            while (true) {
+                try {
+                    return WorkerProcess.start(workerHeap);
+                } catch (IOException e) {
+                    if (restarts.incrementAndGet() > maxWorkerRestarts) {
+                        throw new IOException("Could not start worker: " + e.getMessage(), e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Evaluate one chunk over the worker's pipelined connection
+         */
+        private String[] evaluateChunk(WorkerProcess worker, List<String> lines) throws WorkerFailedException {
+            CalculatorClient client = worker.client;
+            List<CompletableFuture<Double>> futures = new ArrayList<>(lines.size());
+            String[] results = new String[lines.size()];
+
+            for (int i = 0; i < lines.size(); i++) {
+                String line = lines.get(i);
+                if (line.isBlank()) {
+                    futures.add(null);
+                    results[i] = "";
+                    continue;
+                }
+                try {
+                    futures.add(client.submit(line));
+                } catch (CalculatorException e) {
+                    if (client.isClosed()) {
+                        throw new WorkerFailedException("Worker connection lost");
+                    }
+                    futures.add(null);
+                    results[i] = "ERROR: " + e.getMessage();
+                }
+            }
+            try {
+                client.flush();
+            } catch (CalculatorException e) {
+                throw new WorkerFailedException("Worker connection lost");
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(chunkTimeoutMillis);
+            for (int i = 0; i < futures.size(); i++) {
+                CompletableFuture<Double> future = futures.get(i);
+                if (future == null) {
+                    continue;
+                }
+                try {
+                    results[i] = Double.toString(future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+                } catch (ExecutionException e) {
+                    if (client.isClosed()) {
+                        throw new WorkerFailedException("Worker connection lost");
+                    }
+                    results[i] = "ERROR: " + e.getCause().getMessage();
+                } catch (TimeoutException e) {
+                    throw new WorkerFailedException("Worker timed out");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new WorkerFailedException("Interrupted");
+                }
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Read the lines of one chunk back from the input file
+     */
+    private static List<String> readLines(RandomAccessFile file, Chunk chunk) throws IOException {
+        byte[] bytes = new byte[(int) (chunk.end() - chunk.start())];
+        file.seek(chunk.start());
+        file.readFully(bytes);
+
+        List<String> lines = new ArrayList<>(chunk.lineCount());
+        int lineStart = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == '\n') {
+                lines.add(decodeLine(bytes, lineStart, i));
+                lineStart = i + 1;
+            }
+        }
+        if (lineStart < bytes.length) {
+            lines.add(decodeLine(bytes, lineStart, bytes.length));
+        }
+        return lines;
+    }
+
+    private static String decodeLine(byte[] bytes, int start, int end) {
+        if (end > start && bytes[end - 1] == '\r') {
+            end--;
+        }
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Signals that a chunk must be re-dispatched because its worker is unusable
+     */
+    private static final class WorkerFailedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        WorkerFailedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A child JVM running a binary-protocol CalculatorServer, plus our connection to it
+     */
+    private static final class WorkerProcess {
+        final Process process;
+        final CalculatorClient client;
+
+        private WorkerProcess(Process process, CalculatorClient client) {
+            this.process = process;
+            this.client = client;
+        }
+
+        static WorkerProcess start(String heap) throws IOException {
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            ProcessBuilder builder = new ProcessBuilder(java, "-Xmx" + heap,
+                    "-cp", System.getProperty("java.class.path"),
+                    CalculatorServer.class.getName(), "0", "--binary",
+                    "--parent-pid", Long.toString(ProcessHandle.current().pid()));
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            Process process = builder.start();
+
+            try {
+                int port = awaitPort(process);
+                return new WorkerProcess(process, CalculatorClient.connect(port));
+            } catch (IOException | RuntimeException e) {
+                process.destroyForcibly();
+                throw e;
+            }
+        }
+
+        /**
+         * Wait for the server's "listening on" line, then keep draining its output
+         */
+        private static int awaitPort(Process process) throws IOException {
+            BufferedReader output = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = output.readLine()) != null) {
+                Matcher matcher = LISTENING_PORT.matcher(line);
+                if (matcher.find()) {
+                    Thread drain = new Thread(() -> {
+                        try {
+                            while (output.readLine() != null) {
+                                // Discard
+                            }
+                        } catch (IOException e) {
+                            // Worker exited
+                        }
+                    }, "batch-worker-output");
+                    drain.setDaemon(true);
+                    drain.start();
+                    return Integer.parseInt(matcher.group(1));
+                }
+            }
+            throw new IOException("Worker exited before it started listening");
+        }
+
+        void destroy() {
+            client.close();
+            process.destroy();
+        }
+    }
+
+    /**
+     * Run from the command line: BatchCoordinator input output [workers] [chunkLines]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: BatchCoordinator <input> <output> [workers] [chunkLines]");
+            return;
+        }
+
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int chunkLines = args.length > 3 ? Integer.parseInt(args[3]) : 10_000;
+
+        BatchCoordinator coordinator = new BatchCoordinator(workers, chunkLines);
+        System.out.println(coordinator.run(Paths.get(args[0]), Paths.get(args[1])));
+    }
+}
@@ -0,0 +1,197 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Length-prefixed binary framing for remote evaluation traffic.
+ * Demonstrates compact wire formats and avoiding text parsing on hot paths.
+ *
+ * Every frame is a big-endian int length followed by that many payload bytes.
+ *
+ * Request payload:
+ *   long   requestId
+ *   byte   expressionKind   CACHED_EXPRESSION or INLINE_EXPRESSION
+ *   int    expressionId     id to reuse, or NO_EXPRESSION_ID to skip caching
+ *   [int length, UTF-8 bytes]  expression text, INLINE_EXPRESSION only
+ *   short  bindingCount
+ *   double bindings[bindingCount]   raw IEEE-754, in variable order
+ *
+ * Response payload (always RESPONSE_PAYLOAD_SIZE bytes):
+ *   long   requestId
+ *   byte   status
+ *   double result            NaN unless status is OK
+ *
+ * An inline expression sent with an id is cached per connection, so later
+ * requests only carry the id and the bindings.
+ */
+public final class BinaryProtocol {
+
+    public static final byte CACHED_EXPRESSION = 0;
+    public static final byte INLINE_EXPRESSION = 1;
+    public static final int NO_EXPRESSION_ID = -1;
+
+    public static final int MAX_FRAME_SIZE = 64 * 1024;
+    public static final int MAX_CACHED_EXPRESSIONS = 4096;
+    public static final int RESPONSE_PAYLOAD_SIZE = Long.BYTES + 1 + Double.BYTES;
+
+    /**
+     * Response status codes
+     */
+    public enum Status {
+        OK(0),
+        INVALID_EXPRESSION(1),
+        DIVISION_BY_ZERO(2),
+        INVALID_OPERATION(3),
+        UNKNOWN_EXPRESSION_ID(4),
+        MALFORMED_REQUEST(5),
+        INTERNAL_ERROR(6);
+
+        private static final Status[] BY_CODE = values();
+
+        private final byte code;
+
+        Status(int code) {
+            this.code = (byte) code;
+        }
+
+        public byte code() {
+            return code;
+        }
+
+        public static Status fromCode(byte code) {
+            if (code < 0 || code >= BY_CODE.length) {
+                return INTERNAL_ERROR;
+            }
+            return BY_CODE[code];
+        }
+
+        /**
+         * Map an evaluation failure to the status sent on the wire
+         */
+        public static Status of(CalculatorException e) {
+            if (e instanceof CalculatorException.DivisionByZeroException) {
+                return DIVISION_BY_ZERO;
+            }
+            if (e instanceof CalculatorException.InvalidOperationException) {
+                return INVALID_OPERATION;
+            }
+            return INVALID_EXPRESSION;
+        }
+
+        /**
+         * Turn a failure status back into the matching calculator exception
+         */
+        public CalculatorException toException() {
+            switch (this) {
+                case DIVISION_BY_ZERO:
+                    return new CalculatorException.DivisionByZeroException("Division by zero");
+                case INVALID_OPERATION:
+                    return new CalculatorException.InvalidOperationException("Invalid operation");
+                case INVALID_EXPRESSION:
+                    return new CalculatorException.InvalidExpressionException("Invalid expression");
+                default:
+                    return new CalculatorException("Remote evaluation failed: " + this);
+            }
+        }
+    }
+
+    /**
+     * Decoded request frame
+     */
+    public record Request(long requestId, int expressionId, String expression, double[] bindings) {
+
+        public boolean isInline() {
+            return expression != null;
+        }
+    }
+
+    private BinaryProtocol() {
+        // Utility class
+    }
+
+    /**
+     * Write a complete request frame into the buffer
+     */
+    public static void encodeRequest(ByteBuffer buffer, long requestId, int expressionId,
+            byte[] inlineExpression, double[] bindings) {
+        int payloadSize = requestPayloadSize(inlineExpression, bindings.length);
+        if (payloadSize > MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Request exceeds " + MAX_FRAME_SIZE + " bytes");
+        }
+
+        buffer.putInt(payloadSize);
+        buffer.putLong(requestId);
+        if (inlineExpression == null) {
+            buffer.put(CACHED_EXPRESSION);
+            buffer.putInt(expressionId);
+        } else {
+            buffer.put(INLINE_EXPRESSION);
+            buffer.putInt(expressionId);
+            buffer.putInt(inlineExpression.length);
+            buffer.put(inlineExpression);
+        }
+        buffer.putShort((short) bindings.length);
+        for (double binding : bindings) {
+            buffer.putDouble(binding);
+        }
+    }
+
+    /**
+     * Size of a request frame including its length prefix
+     */
+    public static int requestFrameSize(byte[] inlineExpression, int bindingCount) {
+        return Integer.BYTES + requestPayloadSize(inlineExpression, bindingCount);
+    }
+
+    private static int requestPayloadSize(byte[] inlineExpression, int bindingCount) {
+        int size = Long.BYTES + 1 + Integer.BYTES + Short.BYTES + bindingCount * Double.BYTES;
+        if (inlineExpression != null) {
+            size += Integer.BYTES + inlineExpression.length;
+        }
+        return size;
+    }
+
+    /**
+     * Decode one request payload (length prefix already consumed)
+     */
+    public static Request decodeRequest(ByteBuffer payload) {
+        long requestId = payload.getLong();
+        byte kind = payload.get();
+        int expressionId = payload.getInt();
+
+        String expression = null;
+        if (kind == INLINE_EXPRESSION) {
+            int length = payload.getInt();
+            if (length < 0 || length > payload.remaining()) {
+                throw new IllegalArgumentException("Bad expression length: " + length);
+            }
+            byte[] text = new byte[length];
+            payload.get(text);
+            expression = new String(text, StandardCharsets.UTF_8);
+        } else if (kind != CACHED_EXPRESSION) {
+            throw new IllegalArgumentException("Bad expression kind: " + kind);
+        }
+
+        int bindingCount = Short.toUnsignedInt(payload.getShort());
+        if (bindingCount * Double.BYTES != payload.remaining()) {
+            throw new IllegalArgumentException("Bad binding count: " + bindingCount);
+        }
+        double[] bindings = new double[bindingCount];
+        for (int i = 0; i < bindingCount; i++) {
+            bindings[i] = payload.getDouble();
+        }
+
+        return new Request(requestId, expressionId, expression, bindings);
+    }
+
+    /**
+     * Encode a complete response frame
+     */
+    public static byte[] encodeResponse(long requestId, Status status, double result) {
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + RESPONSE_PAYLOAD_SIZE);
+        frame.putInt(RESPONSE_PAYLOAD_SIZE);
+        frame.putLong(requestId);
+        frame.put(status.code());
+        frame.putDouble(status == Status.OK ? result : Double.NaN);
+        return frame.array();
+    }
+}
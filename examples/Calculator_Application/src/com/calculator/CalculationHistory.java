@@ -0,0 +1,207 @@
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * What a Calculator and the tools around it need from a calculation history.
+ * Demonstrates programming to an interface with interchangeable implementations.
+ *
+ * HistoryManager is the single-threaded implementation with full indexes and tiered
+ * storage; ConcurrentHistoryManager is the lock-free one for a Calculator shared
+ * between threads. Positions are 0 for the most recent entry. While other threads
+ * keep adding, positions shift between calls, so read a batch of positions from
+ * snapshot().
+ */
+public interface CalculationHistory {
+
+    /**
+     * Receives entries one at a time, e.g. to write them out
+     */
+    @FunctionalInterface
+    interface EntryConsumer {
+        void accept(HistoryManager.CalculationEntry entry) throws IOException;
+    }
+
+    /**
+     * Add a calculation to history
+     */
+    void addEntry(String expression, double result);
+
+    /**
+     * Reload the most recent entries from a durable log and record new entries to it
+     */
+    void attachLog(HistoryLog historyLog) throws IOException;
+
+    /**
+     * Get the attached durable log, or null
+     */
+    HistoryLog getLog();
+
+    /**
+     * Count every new entry's expression in a frequency profile, except those with
+     * result references, which can never be pre-compiled
+     */
+    void attachProfile(HeavyHitters heavyHitters);
+
+    /**
+     * Get the attached frequency profile, or null
+     */
+    HeavyHitters getProfile();
+
+    /**
+     * Apply a retention policy as of now; returns how many entries left history
+     */
+    long compact(HistoryRetention retention);
+
+    /**
+     * Apply a retention policy as of the given time; returns how many entries left history
+     */
+    long compact(HistoryRetention retention, LocalDateTime now);
+
+    /**
+     * Get the approximate bytes history entries take, as compared with
+     * HistoryRetention.maxBytes
+     */
+    long getStorageBytes();
+
+    /**
+     * Get a view whose positions do not shift while it is read: a history used by one
+     * thread is its own view, a concurrent one returns a copy
+     */
+    CalculationHistory snapshot();
+
+    /**
+     * Pass the entries at positions [from, to) with timestamps in [fromTime, toTime]
+     * (null for no bound) to a consumer, oldest first, without copying the history;
+     * returns how many were passed
+     */
+    long forEachOldestFirst(int from, int to, LocalDateTime fromTime, LocalDateTime toTime,
+            EntryConsumer consumer) throws IOException;
+
+    /**
+     * Get entry by position
+     */
+    HistoryManager.CalculationEntry getEntry(int index);
+
+    /**
+     * Get result by position
+     */
+    double getResult(int index);
+
+    /**
+     * Get expression by position
+     */
+    String getExpression(int index);
+
+    /**
+     * Get history size
+     */
+    int getSize();
+
+    boolean isEmpty();
+
+    /**
+     * Clear all history
+     */
+    void clear();
+
+    /**
+     * Get number of distinct expressions in history
+     */
+    int getDistinctExpressionCount();
+
+    /**
+     * Get all history entries, most recent first
+     */
+    List<HistoryManager.CalculationEntry> getAllEntries();
+
+    /**
+     * Get recent entries, most recent first
+     */
+    List<HistoryManager.CalculationEntry> getRecentEntries(int count);
+
+    /**
+     * Find entries by result value
+     */
+    List<HistoryManager.CalculationEntry> findByResult(double result);
+
+    /**
+     * Find entries whose result is within a tolerance of the value (newest first)
+     */
+    List<HistoryManager.CalculationEntry> findByResult(double result, double tolerance);
+
+    /**
+     * Find entries with results between two bounds, inclusive (newest first)
+     */
+    List<HistoryManager.CalculationEntry> findByResultBetween(double low, double high);
+
+    /**
+     * Find the entries whose results are closest to the value (closest first)
+     */
+    List<HistoryManager.CalculationEntry> findNearestResults(double result, int count);
+
+    /**
+     * Find entries with timestamps in [from, to] (newest first)
+     */
+    List<HistoryManager.CalculationEntry> findByTimeRange(LocalDateTime from, LocalDateTime to);
+
+    /**
+     * Count entries with timestamps in [from, to]
+     */
+    int countByTimeRange(LocalDateTime from, LocalDateTime to);
+
+    /**
+     * Get the position of the newest entry at or before the time, or getSize() if none
+     */
+    int findIndexAtOrBefore(LocalDateTime time);
+
+    /**
+     * Find entries containing specific text
+     */
+    List<HistoryManager.CalculationEntry> findByExpression(String searchText);
+
+    /**
+     * Get per-bucket count, sum, min and max of results in [from, to] (oldest first)
+     */
+    List<HistoryRollup.Bucket> getRollup(HistoryManager.Resolution resolution, LocalDateTime from, LocalDateTime to);
+
+    /**
+     * Get the rollup for a resolution
+     */
+    HistoryRollup getRollup(HistoryManager.Resolution resolution);
+
+    /**
+     * Get summary statistics
+     */
+    String getSummary();
+
+    /**
+     * Get the sum of all results in history
+     */
+    double getResultSum();
+
+    /**
+     * Get an approximate quantile (0..1) of the results
+     */
+    double getResultQuantile(double quantile);
+
+    /**
+     * Get the sketch behind getResultQuantile, e.g. to merge with other histories
+     */
+    QuantileSketch getResultSketch();
+
+    /**
+     * Export history as formatted text
+     */
+    String exportAsText();
+
+    /**
+     * Get formatted history for display
+     */
+    String getFormattedHistory(int maxEntries);
+
+    /**
+     * Get expression for reuse by 1-based display number, or null
+     */
+    String getExpressionForReuse(int index);
+}
@@ -1,5 +1,4 @@
-import java.util.*;
-import java.util.function.DoubleBinaryOperator;
+import java.util.List;
 
 /**
  * Core calculator engine that evaluates mathematical expressions.
@@ -7,55 +6,81 @@ import java.util.function.DoubleBinaryOperator;
  */
 public class Calculator {
 
-    // Operator precedence (higher numbers = higher precedence)
-    private static final Map<String, Integer> OPERATOR_PRECEDENCE = Map.of(
-            "+", 1, "-", 1, "*", 2, "/", 2, "%", 2,
-            "^", 3, "**", 3);
-
-    // Mathematical operators
-    private static final Map<String, DoubleBinaryOperator> OPERATORS = Map.of(
-            "+", (a, b) -> a + b,
-            "-", (a, b) -> a - b,
-            "*", (a, b) -> a * b,
-            "/", (a, b) -> {
-                if (b == 0)
-                    throw new CalculatorException.DivisionByZeroException("Division by zero");
-                return a / b;
-            },
-            "%", (a, b) -> {
-                if (b == 0)
-                    throw new CalculatorException.DivisionByZeroException("Modulo by zero");
-                return a % b;
-            },
-            "^", (a, b) -> MathFunctions.power(a, b),
-            "**", (a, b) -> MathFunctions.power(a, b));
-
-    private final HistoryManager historyManager;
+    private final CalculationHistory historyManager;
     private final MemoryManager memoryManager;
+    private final CompiledExpressionCache expressionCache;
+    private final ResultCache resultCache;
 
     public Calculator() {
-        this.historyManager = new HistoryManager();
-        this.memoryManager = new MemoryManager();
+        this(new HistoryManager(), new MemoryManager());
     }
 
-    public Calculator(HistoryManager historyManager, MemoryManager memoryManager) {
+    public Calculator(CalculationHistory historyManager, MemoryManager memoryManager) {
+        this(historyManager, memoryManager, null);
+    }
+
+    /**
+     * Create calculator that reuses compiled expressions from a (possibly shared) cache
+     */
+    public Calculator(CalculationHistory historyManager, MemoryManager memoryManager,
+            CompiledExpressionCache expressionCache) {
+        this(historyManager, memoryManager, expressionCache, null);
+    }
+
+    /**
+     * Create calculator that answers repeated expressions from a result cache. The cache
+     * must belong to this calculator, since it is invalidated by this memory manager.
+     */
+    public Calculator(CalculationHistory historyManager, MemoryManager memoryManager,
+            CompiledExpressionCache expressionCache, ResultCache resultCache) {
         this.historyManager = historyManager;
         this.memoryManager = memoryManager;
+        this.expressionCache = expressionCache;
+        this.resultCache = resultCache;
+        if (resultCache != null) {
+            memoryManager.addChangeListener(resultCache::invalidateSlot);
+        }
     }
 
     /**
      * Main evaluation method for mathematical expressions
      */
     public double evaluate(String expression) {
+        return evaluate(expression, null);
+    }
+
+    /**
+     * Evaluate an expression reading memory slots from a snapshot instead of live
+     * memory; evaluate a batch against one snapshot() to see one consistent memory
+     * while other threads keep changing it
+     */
+    public double evaluate(String expression, MemorySnapshot memory) {
         if (expression == null || expression.trim().isEmpty()) {
             throw new CalculatorException.InvalidExpressionException("Expression cannot be null or empty");
         }
 
         try {
-            String sanitized = InputValidator.sanitizeInput(expression);
-            List<String> tokens = tokenize(sanitized);
-            List<String> rpn = convertToRPN(tokens);
-            double result = evaluateRPN(rpn);
+            // References to previous results depend on history, so neither cache applies,
+            // and cached results are only valid for live memory
+            boolean referencesHistory = ExpressionCompiler.hasResultReferences(expression);
+            boolean cacheable = resultCache != null && !referencesHistory && memory == null;
+            Double cached = cacheable ? resultCache.get(expression) : null;
+            if (cached != null) {
+                historyManager.addEntry(expression, cached);
+                return cached;
+            }
+
+            long start = System.nanoTime();
+            long readAt = cacheable ? resultCache.getInvalidationCount() : 0; // Before any slot is read
+            CompiledExpression compiled = referencesHistory
+                    ? ExpressionCompiler.compile(expression, this::recallResult)
+                    : compile(expression);
+            double result = compiled.evaluate(memory == null
+                    ? resolveMemorySlots(compiled)
+                    : resolveMemorySlots(compiled, memory));
+            if (cacheable && !readsRollingAggregates(compiled)) {
+                resultCache.put(expression, result, compiled.getVariableNames(), System.nanoTime() - start, readAt);
+            }
 
             // Store in history
             historyManager.addEntry(expression, result);
@@ -71,208 +96,89 @@ public class Calculator {
     }
 
     /**
-     * Tokenize expression into numbers, operators, and functions
+     * Get the result of history entry n, 1 being the most recent (what "ans" and "#n" mean)
      */
-    private List<String> tokenize(String expression) {
-        List<String> tokens = new ArrayList<>();
-        StringBuilder current = new StringBuilder();
-
-        for (int i = 0; i < expression.length(); i++) {
-            char c = expression.charAt(i);
-
-            if (Character.isWhitespace(c)) {
-                if (current.length() > 0) {
-                    tokens.add(current.toString());
-                    current.setLength(0);
-                }
-                continue;
-            }
-
-            if (isOperator(c)) {
-                if (current.length() > 0) {
-                    tokens.add(current.toString());
-                    current.setLength(0);
-                }
-                tokens.add(String.valueOf(c));
-            } else if (c == '(' || c == ')') {
-                if (current.length() > 0) {
-                    tokens.add(current.toString());
-                    current.setLength(0);
-                }
-                tokens.add(String.valueOf(c));
-            } else {
-                current.append(c);
-            }
+    private double recallResult(int number) {
+        if (number < 1 || number > historyManager.getSize()) {
+            throw new CalculatorException.InvalidExpressionException(number == 1
+                    ? "No previous result to use"
+                    : String.format("No calculation #%d in history (%d entries)", number, historyManager.getSize()));
         }
-
-        if (current.length() > 0) {
-            tokens.add(current.toString());
+        try {
+            return historyManager.getResult(number - 1);
+        } catch (IndexOutOfBoundsException e) {
+            // A concurrent history was cleared or compacted since the size was read
+            throw new CalculatorException.InvalidExpressionException(
+                    String.format("No calculation #%d in history", number));
         }
-
-        return tokens;
     }
 
     /**
-     * Convert tokens to Reverse Polish Notation (RPN) using Shunting Yard algorithm
+     * Bind an expression's variables to the memory slots of the same name. If any slot
+     * is empty nothing is bound, and evaluation reports the unbound variable.
      */
-    private List<String> convertToRPN(List<String> tokens) {
-        List<String> output = new ArrayList<>();
-        Deque<String> stack = new ArrayDeque<>();
-
-        for (String token : tokens) {
-            if (isNumber(token)) {
-                output.add(token);
-            } else if (isConstant(token)) {
-                output.add(resolveConstant(token));
-            } else if (MathFunctions.isFunction(token)) {
-                stack.push(token);
-            } else if (isOperator(token)) {
-                while (!stack.isEmpty() && isOperator(stack.peek()) &&
-                        hasHigherOrEqualPrecedence(stack.peek(), token)) {
-                    output.add(stack.pop());
-                }
-                stack.push(token);
-            } else if (token.equals("(")) {
-                stack.push(token);
-            } else if (token.equals(")")) {
-                while (!stack.isEmpty() && !stack.peek().equals("(")) {
-                    output.add(stack.pop());
-                }
-                if (stack.isEmpty()) {
-                    throw new CalculatorException.InvalidExpressionException("Mismatched parentheses");
-                }
-                stack.pop(); // Remove the '('
-
-                // If there's a function on top of stack, add it to output
-                if (!stack.isEmpty() && MathFunctions.isFunction(stack.peek())) {
-                    output.add(stack.pop());
-                }
-            } else {
-                throw new CalculatorException.InvalidExpressionException("Unknown token: " + token);
-            }
-        }
-
-        // Pop remaining operators from stack
-        while (!stack.isEmpty()) {
-            String op = stack.pop();
-            if (op.equals("(")) {
-                throw new CalculatorException.InvalidExpressionException("Mismatched parentheses");
+    private double[] resolveMemorySlots(CompiledExpression compiled) {
+        List<String> names = compiled.getVariableNames();
+        double[] bindings = new double[names.size()];
+        for (int i = 0; i < bindings.length; i++) {
+            if (!memoryManager.hasValue(names.get(i))) {
+                return new double[0];
             }
-            output.add(op);
+            bindings[i] = memoryManager.recall(names.get(i));
         }
-
-        return output;
+        return bindings;
     }
 
     /**
-     * Evaluate RPN expression
+     * Check if an expression reads aggregates such as "S.mean", which change as time
+     * passes and so cannot be cached
      */
-    private double evaluateRPN(List<String> rpn) {
-        Deque<Double> stack = new ArrayDeque<>();
-
-        for (String token : rpn) {
-            if (isNumber(token)) {
-                stack.push(Double.parseDouble(token));
-            } else if (isOperator(token)) {
-                if (stack.size() < 2) {
-                    throw new CalculatorException.InvalidExpressionException(
-                            "Insufficient operands for operator: " + token);
-                }
-                double b = stack.pop();
-                double a = stack.pop();
-                DoubleBinaryOperator op = OPERATORS.get(token);
-                if (op == null) {
-                    throw new CalculatorException.InvalidOperationException("Unknown operator: " + token);
-                }
-                stack.push(op.applyAsDouble(a, b));
-            } else if (MathFunctions.isFunction(token)) {
-                if (stack.isEmpty()) {
-                    throw new CalculatorException.InvalidExpressionException(
-                            "Missing argument for function: " + token);
-                }
-                double arg = stack.pop();
-                stack.push(executeFunction(token, arg));
-            } else {
-                throw new CalculatorException.InvalidExpressionException("Invalid token: " + token);
+    private static boolean readsRollingAggregates(CompiledExpression compiled) {
+        for (String name : compiled.getVariableNames()) {
+            if (name.indexOf('.') >= 0) {
+                return true;
             }
         }
-
-        if (stack.size() != 1) {
-            throw new CalculatorException.InvalidExpressionException("Invalid expression");
-        }
-
-        return stack.pop();
-    }
-
-    /**
-     * Execute mathematical function
-     */
-    private double executeFunction(String functionName, double argument) {
-        return MathFunctions.getFunction(functionName)
-                .orElseThrow(() -> new CalculatorException.InvalidOperationException(
-                        "Unknown function: " + functionName))
-                .applyAsDouble(argument);
-    }
-
-    /**
-     * Check if character is an operator
-     */
-    private boolean isOperator(char c) {
-        return "+-*/%^".indexOf(c) != -1;
-    }
-
-    /**
-     * Check if string is an operator
-     */
-    private boolean isOperator(String token) {
-        return OPERATORS.containsKey(token);
+        return false;
     }
 
-    /**
-     * Check if string is a number
-     */
-    private boolean isNumber(String token) {
-        try {
-            Double.parseDouble(token);
-            return true;
-        } catch (NumberFormatException e) {
-            return false;
+    private static double[] resolveMemorySlots(CompiledExpression compiled, MemorySnapshot memory) {
+        List<String> names = compiled.getVariableNames();
+        double[] bindings = new double[names.size()];
+        for (int i = 0; i < bindings.length; i++) {
+            if (!memory.hasValue(names.get(i))) {
+                return new double[0];
+            }
+            bindings[i] = memory.get(names.get(i), 0);
         }
+        return bindings;
     }
 
     /**
-     * Check if string is a mathematical constant
-     */
-    private boolean isConstant(String token) {
-        return token.equalsIgnoreCase("pi") || token.equalsIgnoreCase("e");
-    }
-
-    /**
-     * Resolve mathematical constants to their values
+     * Compile an expression once so it can be evaluated many times
      */
-    private String resolveConstant(String constant) {
-        switch (constant.toLowerCase()) {
-            case "pi":
-                return String.valueOf(MathFunctions.PI);
-            case "e":
-                return String.valueOf(MathFunctions.E);
-            default:
-                throw new CalculatorException.InvalidExpressionException("Unknown constant: " + constant);
+    public CompiledExpression compile(String expression) {
+        if (expressionCache != null) {
+            return expressionCache.get(expression);
         }
+        return ExpressionCompiler.compile(expression);
     }
 
     /**
-     * Check if operator1 has higher or equal precedence to operator2
+     * Evaluate a compiled expression with positional variable bindings
      */
-    private boolean hasHigherOrEqualPrecedence(String op1, String op2) {
-        Integer prec1 = OPERATOR_PRECEDENCE.get(op1);
-        Integer prec2 = OPERATOR_PRECEDENCE.get(op2);
-
-        if (prec1 == null || prec2 == null) {
-            throw new CalculatorException.InvalidExpressionException("Unknown operator precedence");
+    public double evaluate(CompiledExpression compiled, double... bindings) {
+        try {
+            double result = compiled.evaluate(bindings);
+            historyManager.addEntry(compiled.getSource(), result);
+            return result;
+        } catch (Exception e) {
+            if (e instanceof CalculatorException) {
+                throw e;
+            }
+            throw new CalculatorException.InvalidExpressionException(
+                    "Failed to evaluate expression: " + e.getMessage());
         }
-
-        return prec1 >= prec2;
     }
 
     // Memory operations
@@ -318,7 +224,7 @@ public class Calculator {
     }
 
     // Get managers for external access if needed
-    public HistoryManager getHistoryManager() {
+    public CalculationHistory getHistoryManager() {
         return historyManager;
     }
 
@@ -326,6 +232,14 @@ public class Calculator {
         return memoryManager;
     }
 
+    public CompiledExpressionCache getExpressionCache() {
+        return expressionCache;
+    }
+
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
     /**
      * Parse and evaluate a complex mathematical expression
      * This method handles expressions like:
@@ -0,0 +1,230 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client library for a {@link CalculatorServer} running the binary protocol.
+ * Demonstrates request pipelining, batching writes and matching replies by id.
+ *
+ * Expressions are sent as text the first time they are used on a connection and
+ * by cached id afterwards. Requests are buffered until {@link #flush()} is called,
+ * the buffer fills up, or a blocking {@link #evaluate} call needs its answer.
+ */
+public class CalculatorClient implements AutoCloseable {
+
+    private static final int MAX_IN_FLIGHT = 8192;
+
+    private final SocketChannel channel;
+    private final ByteBuffer requests = ByteBuffer.allocate(Integer.BYTES + BinaryProtocol.MAX_FRAME_SIZE);
+    private final Map<String, Integer> expressionIds = new HashMap<>();
+    private final Map<Long, CompletableFuture<Double>> pending = new ConcurrentHashMap<>();
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final Thread responseReader;
+    private volatile boolean closed;
+
+    private CalculatorClient(SocketChannel channel) {
+        this.channel = channel;
+        this.responseReader = new Thread(this::readResponses, "calculator-client-reader");
+        this.responseReader.setDaemon(true);
+        this.responseReader.start();
+    }
+
+    /**
+     * Connect to a server on the loopback interface
+     */
+    public static CalculatorClient connect(int port) throws IOException {
+        return connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * Connect to a server at the given address
+     */
+    public static CalculatorClient connect(InetSocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+        return new CalculatorClient(channel);
+    }
+
+    /**
+     * Queue an evaluation; bindings are positional in order of first variable appearance
+     */
+    public CompletableFuture<Double> submit(String expression, double... bindings) {
+        if (expression == null || expression.trim().isEmpty()) {
+            throw new CalculatorException.InvalidExpressionException("Expression cannot be null or empty");
+        }
+
+        // Never block for a permit while our own unsent requests could free one
+        if (!inFlight.tryAcquire()) {
+            flush();
+            inFlight.acquireUninterruptibly();
+        }
+
+        CompletableFuture<Double> future = new CompletableFuture<>();
+        synchronized (this) {
+            if (closed) {
+                inFlight.release();
+                throw new CalculatorException("Client is closed");
+            }
+
+            long requestId = nextRequestId.getAndIncrement();
+            Integer expressionId = expressionIds.get(expression);
+            byte[] inline = expressionId == null ? expression.getBytes(StandardCharsets.UTF_8) : null;
+
+            int frameSize = BinaryProtocol.requestFrameSize(inline, bindings.length);
+            if (frameSize > requests.capacity()) {
+                inFlight.release();
+                throw new CalculatorException.InvalidExpressionException(
+                        "Request exceeds " + BinaryProtocol.MAX_FRAME_SIZE + " bytes");
+            }
+
+            if (inline != null) {
+                expressionId = BinaryProtocol.NO_EXPRESSION_ID;
+                if (expressionIds.size() < BinaryProtocol.MAX_CACHED_EXPRESSIONS) {
+                    expressionId = expressionIds.size();
+                    expressionIds.put(expression, expressionId);
+                }
+            }
+            if (requests.remaining() < frameSize) {
+                writeBuffered();
+            }
+
+            pending.put(requestId, future);
+            BinaryProtocol.encodeRequest(requests, requestId, expressionId, inline, bindings);
+        }
+        return future;
+    }
+
+    /**
+     * Send every buffered request
+     */
+    public synchronized void flush() {
+        writeBuffered();
+    }
+
+    /**
+     * Evaluate and wait for the result
+     */
+    public double evaluate(String expression, double... bindings) {
+        CompletableFuture<Double> future = submit(expression, bindings);
+        flush();
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof CalculatorException) {
+                throw (CalculatorException) e.getCause();
+            }
+            throw new CalculatorException("Remote evaluation failed", e.getCause());
+        }
+    }
+
+    /**
+     * Check if the connection was closed, locally or because the server went away
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Number of requests sent or buffered that have no reply yet
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public void close() {
+        shutdown(new CalculatorException("Client is closed"));
+    }
+
+    /**
+     * Close the connection and fail every outstanding request with the given reason
+     */
+    private void shutdown(CalculatorException reason) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        failPending(reason);
+    }
+
+    private void writeBuffered() {
+        requests.flip();
+        try {
+            while (requests.hasRemaining()) {
+                channel.write(requests);
+            }
+        } catch (IOException e) {
+            shutdown(new CalculatorException("Connection lost: " + e.getMessage(), e));
+            throw new CalculatorException("Failed to send requests", e);
+        } finally {
+            requests.clear();
+        }
+    }
+
+    /**
+     * Reader thread: completes futures as fixed-size response frames arrive
+     */
+    private void readResponses() {
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + BinaryProtocol.RESPONSE_PAYLOAD_SIZE);
+        try {
+            while (true) {
+                frame.clear();
+                while (frame.hasRemaining()) {
+                    if (channel.read(frame) < 0) {
+                        throw new EOFException("Server closed the connection");
+                    }
+                }
+                frame.flip();
+
+                if (frame.getInt() != BinaryProtocol.RESPONSE_PAYLOAD_SIZE) {
+                    throw new IOException("Unexpected response frame");
+                }
+                long requestId = frame.getLong();
+                BinaryProtocol.Status status = BinaryProtocol.Status.fromCode(frame.get());
+                double result = frame.getDouble();
+
+                CompletableFuture<Double> future = pending.remove(requestId);
+                if (future == null) {
+                    continue;
+                }
+                inFlight.release();
+                if (status == BinaryProtocol.Status.OK) {
+                    future.complete(result);
+                } else {
+                    future.completeExceptionally(status.toException());
+                }
+            }
+        } catch (IOException e) {
+            shutdown(new CalculatorException("Connection lost: " + e.getMessage(), e));
+        }
+    }
+
+    private void failPending(CalculatorException failure) {
+        for (Long requestId : pending.keySet()) {
+            CompletableFuture<Double> future = pending.remove(requestId);
+            if (future != null) {
+                inFlight.release();
+                future.completeExceptionally(failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,726 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking TCP front end for the calculator engine.
+ * Demonstrates NIO selectors, worker pools and request pipelining.
+ *
+ * Text protocol: every request is one UTF-8 line holding an expression and
+ * every reply is one line, "OK <result>" or "ERR <message>".
+ *
+ * Binary protocol: length-prefixed frames as described in {@link BinaryProtocol},
+ * with per-connection caching of compiled expressions. Use {@link CalculatorClient}.
+ *
+ * Either way replies are written in request order, so a client may pipeline any
+ * number of requests on a connection without waiting for the previous replies.
+ * Pipelined requests run on any worker in any order, so result references ("ans",
+ * "#n") are rejected: no history would match the client's view of its replies.
+ */
+public class CalculatorServer implements AutoCloseable {
+
+    public static final int DEFAULT_PORT = 7070;
+
+    /**
+     * Wire format spoken on every connection of a server
+     */
+    public enum Protocol {
+        TEXT, BINARY
+    }
+
+    // Per-connection limits that keep a fast client from exhausting the heap
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int MAX_IN_FLIGHT = 1024;
+    private static final int OUTPUT_HIGH_WATER = 1 << 20;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private final InetSocketAddress requestedAddress;
+    private final int workerThreads;
+    private final Protocol protocol;
+    private final Queue<Completion> completions = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    // Calculator is not thread-safe, so every worker thread evaluates on its own;
+    // compiled expressions are immutable and shared by all of them
+    private final CompiledExpressionCache expressionCache = new CompiledExpressionCache();
+    private final ThreadLocal<Calculator> workerCalculator = ThreadLocal.withInitial(this::createWorkerCalculator);
+    private volatile HeavyHitters profile;
+    private final Queue<HeavyHitters> workerProfiles = new ConcurrentLinkedQueue<>();
+    private volatile MemoryManager sharedMemory;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private ExecutorService workers;
+    private Thread selectorThread;
+    private volatile boolean running;
+
+    /**
+     * Create a loopback server on the given port (0 picks a free port)
+     */
+    public CalculatorServer(int port) {
+        this(port, Protocol.TEXT);
+    }
+
+    /**
+     * Create a loopback server speaking the given protocol
+     */
+    public CalculatorServer(int port, Protocol protocol) {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                Runtime.getRuntime().availableProcessors(), protocol);
+    }
+
+    /**
+     * Create a server bound to a specific address with a custom worker count
+     */
+    public CalculatorServer(InetSocketAddress address, int workerThreads, Protocol protocol) {
+        if (workerThreads <= 0) {
+            throw new IllegalArgumentException("Worker thread count must be positive");
+        }
+        this.requestedAddress = address;
+        this.workerThreads = workerThreads;
+        this.protocol = protocol;
+    }
+
+    /**
+     * Count evaluated expressions in a profile, and compile its most frequent
+     * expressions when the server starts; call before start(). Each worker counts
+     * into a profile of its own, so evaluations never wait on one lock; their counts
+     * are drained into this profile when the server closes.
+     */
+    public synchronized void setProfile(HeavyHitters heavyHitters) {
+        if (running) {
+            throw new IllegalStateException("Profile must be set before the server starts");
+        }
+        this.profile = heavyHitters;
+    }
+
+    /**
+     * Have every worker read and update the same memory, which must be thread-safe;
+     * call before start()
+     */
+    public synchronized void setSharedMemory(ConcurrentMemoryManager memory) {
+        if (running) {
+            throw new IllegalStateException("Shared memory must be set before the server starts");
+        }
+        this.sharedMemory = memory;
+    }
+
+    private Calculator createWorkerCalculator() {
+        HistoryManager history = new HistoryManager();
+        if (profile != null) {
+            HeavyHitters workerProfile = new HeavyHitters(profile.getCapacity(), profile.getWidth());
+            workerProfiles.add(workerProfile);
+            history.attachProfile(workerProfile);
+        }
+        MemoryManager memory = sharedMemory != null ? sharedMemory : new MemoryManager();
+        return new Calculator(history, memory, expressionCache);
+    }
+
+    /**
+     * Bind the listening socket and start the selector and worker threads. With a
+     * profile, its most frequent expressions are compiled before any connection is
+     * accepted.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            throw new IllegalStateException("Server is already running");
+        }
+        if (profile != null) {
+            expressionCache.warmUp(profile.getTopExpressions()).join();
+        }
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(requestedAddress);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerThreads, task -> {
+            Thread thread = new Thread(task, "calculator-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        running = true;
+        selectorThread = new Thread(this::selectLoop, "calculator-selector");
+        selectorThread.start();
+    }
+
+    /**
+     * Get the address the server is listening on
+     */
+    public InetSocketAddress getAddress() {
+        try {
+            return (InetSocketAddress) serverChannel.getLocalAddress();
+        } catch (IOException e) {
+            throw new IllegalStateException("Server is not bound", e);
+        }
+    }
+
+    /**
+     * Get the port the server is listening on
+     */
+    public int getPort() {
+        return getAddress().getPort();
+    }
+
+    /**
+     * Stop accepting connections and release all resources; the profile, if any,
+     * then holds every expression the workers counted
+     */
+    @Override
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdownNow();
+        try {
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (HeavyHitters workerProfile : workerProfiles) {
+            profile.drainFrom(workerProfile);
+        }
+    }
+
+    /**
+     * Selector loop: accepts connections, reads requests and writes replies
+     */
+    private void selectLoop() {
+        try {
+            while (running) {
+                selector.select();
+                wakeupPending.set(false);
+                drainCompletions();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handleKey(key);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Calculator server stopped: " + e.getMessage());
+        } finally {
+            closeQuietly();
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+
+        if (key.isAcceptable()) {
+            accept();
+            return;
+        }
+
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                read(connection);
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush(connection);
+            }
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+        } catch (IOException e) {
+            System.err.println("Failed to accept connection: " + e.getMessage());
+        }
+    }
+
+    private void read(Connection connection) throws IOException {
+        if (connection.channel.read(connection.input) < 0) {
+            connection.inputClosed = true;
+        }
+        parseRequests(connection);
+    }
+
+    /**
+     * Decode buffered input into requests and hand them to the worker pool
+     */
+    private void parseRequests(Connection connection) {
+        ByteBuffer input = connection.input;
+        input.flip();
+        if (protocol == Protocol.TEXT) {
+            parseLines(connection, input);
+        } else {
+            parseFrames(connection, input);
+        }
+        input.compact();
+        updateInterest(connection);
+    }
+
+    private void parseLines(Connection connection, ByteBuffer input) {
+        while (input.hasRemaining() && connection.inFlight() < MAX_IN_FLIGHT) {
+            byte b = input.get();
+            if (b == '\n') {
+                dispatchLine(connection);
+            } else if (b != '\r') {
+                connection.appendToLine(b);
+            }
+        }
+
+        // A final line without a trailing newline still counts as a request
+        boolean partialLine = connection.lineLength > 0 || connection.lineOverflow;
+        if (connection.inputClosed && !input.hasRemaining() && partialLine
+                && connection.inFlight() < MAX_IN_FLIGHT) {
+            dispatchLine(connection);
+        }
+    }
+
+    private void parseFrames(Connection connection, ByteBuffer input) {
+        while (input.remaining() >= Integer.BYTES && connection.inFlight() < MAX_IN_FLIGHT) {
+            int length = input.getInt(input.position());
+            if (length <= 0 || length > BinaryProtocol.MAX_FRAME_SIZE) {
+                // The stream cannot be resynchronized after a bad length prefix
+                connection.close();
+                return;
+            }
+            if (input.remaining() < Integer.BYTES + length) {
+                return;
+            }
+
+            ByteBuffer payload = input.slice(input.position() + Integer.BYTES, length);
+            input.position(input.position() + Integer.BYTES + length);
+            dispatchFrame(connection, payload);
+        }
+
+        if (connection.inputClosed && input.hasRemaining()) {
+            connection.close(); // Truncated final frame
+        }
+    }
+
+    private void dispatchLine(Connection connection) {
+        long sequence = connection.nextRequest++;
+
+        if (connection.lineOverflow) {
+            connection.resetLine();
+            connection.complete(sequence, reply("ERR Expression exceeds " + MAX_LINE_LENGTH + " bytes"));
+            return;
+        }
+
+        String expression = connection.takeLine();
+        if (ExpressionCompiler.hasResultReferences(expression)) {
+            connection.complete(sequence, reply("ERR Result references (ans, #n) are not supported by the server"));
+            return;
+        }
+        submit(connection, sequence, () -> evaluate(expression), reply("ERR Server is shutting down"));
+    }
+
+    /**
+     * Decode a binary request. Expression ids are resolved on the selector thread, so
+     * that pipelined requests referring to a just-defined id always find it, but the
+     * expression itself is compiled by the first worker that needs it.
+     */
+    private void dispatchFrame(Connection connection, ByteBuffer payload) {
+        long sequence = connection.nextRequest++;
+
+        BinaryProtocol.Request request;
+        try {
+            request = BinaryProtocol.decodeRequest(payload);
+        } catch (RuntimeException e) {
+            long requestId = payload.limit() >= Long.BYTES ? payload.getLong(0) : -1;
+            connection.complete(sequence, BinaryProtocol.encodeResponse(
+                    requestId, BinaryProtocol.Status.MALFORMED_REQUEST, Double.NaN));
+            return;
+        }
+
+        long requestId = request.requestId();
+        LazyExpression expression;
+        if (request.isInline()) {
+            expression = new LazyExpression(request.expression());
+            if (request.expressionId() != BinaryProtocol.NO_EXPRESSION_ID) {
+                connection.cacheExpression(request.expressionId(), expression);
+            }
+        } else {
+            expression = connection.expressions.get(request.expressionId());
+            if (expression == null) {
+                connection.complete(sequence, BinaryProtocol.encodeResponse(
+                        requestId, BinaryProtocol.Status.UNKNOWN_EXPRESSION_ID, Double.NaN));
+                return;
+            }
+        }
+
+        double[] bindings = request.bindings();
+        submit(connection, sequence, () -> evaluate(requestId, expression, bindings),
+                BinaryProtocol.encodeResponse(requestId, BinaryProtocol.Status.INTERNAL_ERROR, Double.NaN));
+    }
+
+    private CachedExpression compile(String expression) {
+        try {
+            return new CachedExpression(expressionCache.get(expression), null);
+        } catch (CalculatorException e) {
+            return new CachedExpression(null, BinaryProtocol.Status.of(e));
+        }
+    }
+
+    /**
+     * Run a request on the worker pool and route its reply back to the selector
+     */
+    private void submit(Connection connection, long sequence, Supplier<byte[]> task, byte[] rejectedReply) {
+        try {
+            workers.execute(() -> {
+                completions.add(new Completion(connection, sequence, task.get()));
+                if (wakeupPending.compareAndSet(false, true)) {
+                    selector.wakeup();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            connection.complete(sequence, rejectedReply);
+        }
+    }
+
+    /**
+     * Evaluate one expression on the calling worker thread
+     */
+    private byte[] evaluate(String expression) {
+        try {
+            return reply("OK " + workerCalculator.get().evaluate(expression));
+        } catch (CalculatorException e) {
+            return reply("ERR " + e.getMessage());
+        } catch (RuntimeException e) {
+            return reply("ERR Internal error: " + e);
+        }
+    }
+
+    /**
+     * Compile (if no worker has yet) and evaluate one binary request on the calling
+     * worker thread
+     */
+    private byte[] evaluate(long requestId, LazyExpression expression, double[] bindings) {
+        try {
+            CachedExpression cached = expression.resolve();
+            if (cached.failure() != null) {
+                return BinaryProtocol.encodeResponse(requestId, cached.failure(), Double.NaN);
+            }
+            double result = workerCalculator.get().evaluate(cached.compiled(), bindings);
+            return BinaryProtocol.encodeResponse(requestId, BinaryProtocol.Status.OK, result);
+        } catch (CalculatorException e) {
+            return BinaryProtocol.encodeResponse(requestId, BinaryProtocol.Status.of(e), Double.NaN);
+        } catch (RuntimeException e) {
+            return BinaryProtocol.encodeResponse(requestId, BinaryProtocol.Status.INTERNAL_ERROR, Double.NaN);
+        }
+    }
+
+    private static byte[] reply(String text) {
+        String singleLine = text.replace('\n', ' ').replace('\r', ' ');
+        return (singleLine + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Move finished replies from the workers onto their connections
+     */
+    private void drainCompletions() {
+        Completion completion;
+        while ((completion = completions.poll()) != null) {
+            Connection connection = completion.connection;
+            if (!connection.closed) {
+                connection.complete(completion.sequence, completion.reply);
+            }
+        }
+    }
+
+    private void flush(Connection connection) throws IOException {
+        ByteBuffer output = connection.output;
+        if (output.position() > 0) {
+            output.flip();
+            connection.channel.write(output);
+            output.compact();
+        }
+
+        if (connection.input.position() > 0) {
+            parseRequests(connection);
+        } else {
+            updateInterest(connection);
+        }
+    }
+
+    /**
+     * Recompute interest ops from the connection's buffers (backpressure lives here)
+     */
+    private void updateInterest(Connection connection) {
+        if (connection.closed) {
+            return;
+        }
+
+        boolean drained = connection.inFlight() == 0 && connection.output.position() == 0;
+        if (connection.inputClosed && drained) {
+            connection.close();
+            return;
+        }
+
+        int ops = 0;
+        if (!connection.inputClosed && connection.inFlight() < MAX_IN_FLIGHT
+                && connection.output.position() < OUTPUT_HIGH_WATER) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (connection.output.position() > 0) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        connection.key.interestOps(ops);
+    }
+
+    private void closeQuietly() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                ((Connection) key.attachment()).close();
+            }
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            // Nothing useful left to do while shutting down
+        }
+    }
+
+    /**
+     * Reply produced by a worker, waiting to be written by the selector thread
+     */
+    private record Completion(Connection connection, long sequence, byte[] reply) {
+    }
+
+    /**
+     * Binary-protocol expression cache entry: compiled form, or the reason it failed
+     */
+    private record CachedExpression(CompiledExpression compiled, BinaryProtocol.Status failure) {
+    }
+
+    /**
+     * Expression a connection defined, compiled once by whichever worker gets to it
+     * first; every request sharing its id waits for that one compilation
+     */
+    private final class LazyExpression {
+        private final String source;
+        private CachedExpression compiled;
+
+        LazyExpression(String source) {
+            this.source = source;
+        }
+
+        synchronized CachedExpression resolve() {
+            if (compiled == null) {
+                compiled = compile(source);
+            }
+            return compiled;
+        }
+    }
+
+    /**
+     * Per-connection state, only touched by the selector thread
+     */
+    private final class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ByteBuffer input = ByteBuffer.allocate(protocol == Protocol.TEXT
+                ? READ_BUFFER_SIZE : Integer.BYTES + BinaryProtocol.MAX_FRAME_SIZE);
+        ByteBuffer output = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        final Map<Integer, LazyExpression> expressions = new HashMap<>();
+
+        // Replies that finished out of order, indexed by sequence % MAX_IN_FLIGHT
+        final byte[][] pending = new byte[MAX_IN_FLIGHT][];
+        long nextRequest;
+        long nextReply;
+
+        byte[] line = new byte[128];
+        int lineLength;
+        boolean lineOverflow;
+        boolean inputClosed;
+        boolean closed;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        int inFlight() {
+            return (int) (nextRequest - nextReply);
+        }
+
+        void appendToLine(byte b) {
+            if (lineLength == MAX_LINE_LENGTH) {
+                lineOverflow = true;
+                return;
+            }
+            if (lineLength == line.length) {
+                line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE_LENGTH));
+            }
+            line[lineLength++] = b;
+        }
+
+        void cacheExpression(int expressionId, LazyExpression expression) {
+            if (expressions.size() < BinaryProtocol.MAX_CACHED_EXPRESSIONS
+                    || expressions.containsKey(expressionId)) {
+                expressions.put(expressionId, expression);
+            }
+        }
+
+        String takeLine() {
+            String text = new String(line, 0, lineLength, StandardCharsets.UTF_8);
+            resetLine();
+            return text;
+        }
+
+        void resetLine() {
+            lineLength = 0;
+            lineOverflow = false;
+        }
+
+        /**
+         * Record a finished reply and queue every reply that is now in order
+         */
+        void complete(long sequence, byte[] reply) {
+            pending[(int) (sequence % MAX_IN_FLIGHT)] = reply;
+
+            while (nextReply < nextRequest) {
+                int slot = (int) (nextReply % MAX_IN_FLIGHT);
+                if (pending[slot] == null) {
+                    break;
+                }
+                append(pending[slot]);
+                pending[slot] = null;
+                nextReply++;
+            }
+
+            // The write itself happens once the selector reports the channel writable
+            updateInterest(this);
+        }
+
+        private void append(byte[] bytes) {
+            if (output.remaining() < bytes.length) {
+                int capacity = Math.max(output.capacity() * 2, output.position() + bytes.length);
+                ByteBuffer larger = ByteBuffer.allocate(capacity);
+                output.flip();
+                larger.put(output);
+                output = larger;
+            }
+            output.put(bytes);
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Connection is being discarded anyway
+            }
+        }
+    }
+
+    /**
+     * Run the server from the command line:
+     * CalculatorServer [port] [--binary] [--parent-pid pid] [--profile file] [--memory file]
+     *
+     * With --parent-pid the server exits when that process does, so worker servers
+     * started by a {@link BatchCoordinator} never outlive it. With --profile the
+     * expressions used most last run are compiled before serving, and the updated
+     * profile is saved to the same file on shutdown. With --memory expressions read
+     * memory slots from a mapped file shared with every other process using it.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        Protocol protocol = Protocol.TEXT;
+        long parentPid = -1;
+        Path profileFile = null;
+        Path memoryFile = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--binary")) {
+                protocol = Protocol.BINARY;
+            } else if (args[i].equals("--parent-pid") && i + 1 < args.length) {
+                parentPid = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--profile") && i + 1 < args.length) {
+                profileFile = Path.of(args[++i]);
+            } else if (args[i].equals("--memory") && i + 1 < args.length) {
+                memoryFile = Path.of(args[++i]);
+            } else {
+                port = Integer.parseInt(args[i]);
+            }
+        }
+
+        CalculatorServer server = new CalculatorServer(port, protocol);
+        HeavyHitters profile = profileFile == null ? null : HeavyHitters.load(profileFile);
+        server.setProfile(profile);
+        MappedMemoryManager memory = memoryFile == null ? null : MappedMemoryManager.open(memoryFile);
+        server.setSharedMemory(memory);
+        server.start();
+        Path savedProfile = profileFile;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            if (memory != null) {
+                try {
+                    memory.close();
+                } catch (IOException e) {
+                    System.err.println("Failed to save memory: " + e.getMessage());
+                }
+            }
+            if (profile != null) {
+                try {
+                    profile.save(savedProfile);
+                } catch (IOException e) {
+                    System.err.println("Failed to save expression profile: " + e.getMessage());
+                }
+            }
+        }));
+        if (parentPid > 0) {
+            ProcessHandle.of(parentPid).ifPresentOrElse(
+                    parent -> parent.onExit().thenRun(() -> System.exit(0)),
+                    () -> System.exit(0));
+        }
+
+        System.out.println("Calculator server listening on " + server.getAddress() + " (" + protocol + ")");
+        if (protocol == Protocol.TEXT) {
+            System.out.println("Send one expression per line; replies arrive in request order.");
+        }
+        System.out.flush();
+    }
+}
@@ -1,4 +1,7 @@
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Interactive command-line user interface for the calculator.
@@ -6,14 +9,54 @@ import java.util.*;
  */
 public class CalculatorUI {
 
+    private static final String PROFILE_FILE = "expression-profile.bin";
+    private static final String MEMORY_FILE = "memory.bin";
+
     private final Calculator calculator;
     private final Scanner scanner;
     private boolean running;
+    private Path profileFile;
+    private CompletableFuture<Integer> warmUp;
+    private MemorySnapshot savedMemory;
 
     public CalculatorUI() {
-        this.calculator = new Calculator();
+        this.calculator = createCalculator();
         this.scanner = new Scanner(System.in);
         this.running = true;
+        startWarmUp();
+    }
+
+    /**
+     * Create the default calculator, keeping history and memory on disk when the
+     * calculator.history.dir system property names a directory
+     */
+    private static Calculator createCalculator() {
+        String historyDir = System.getProperty("calculator.history.dir");
+        if (historyDir == null || historyDir.isBlank()) {
+            return new Calculator(new HistoryManager(), new SnapshotMemoryManager(),
+                    new CompiledExpressionCache(), new ResultCache());
+        }
+
+        MemoryManager memory;
+        ResultCache resultCache;
+        try {
+            // Other processes may change shared memory without telling us, so results
+            // that read memory cannot be cached
+            memory = MappedMemoryManager.open(Path.of(historyDir, MEMORY_FILE));
+            resultCache = null;
+        } catch (IOException e) {
+            System.out.println("Warning: memory will not be saved: " + e.getMessage());
+            memory = new SnapshotMemoryManager();
+            resultCache = new ResultCache();
+        }
+        Calculator calculator = new Calculator(new HistoryManager(), memory,
+                new CompiledExpressionCache(), resultCache);
+        try {
+            calculator.getHistoryManager().attachLog(HistoryLog.open(Path.of(historyDir)));
+        } catch (IOException e) {
+            System.out.println("Warning: history will not be saved: " + e.getMessage());
+        }
+        return calculator;
     }
 
     public CalculatorUI(Calculator calculator) {
@@ -22,11 +65,37 @@ public class CalculatorUI {
         this.running = true;
     }
 
+    /**
+     * Profile expressions when history is kept on disk, and start compiling the
+     * expressions used most last time so the first calculations are not slow
+     */
+    private void startWarmUp() {
+        String historyDir = System.getProperty("calculator.history.dir");
+        if (historyDir == null || historyDir.isBlank()) {
+            return;
+        }
+        profileFile = Path.of(historyDir, PROFILE_FILE);
+        HeavyHitters profile;
+        try {
+            profile = HeavyHitters.load(profileFile);
+        } catch (IOException e) {
+            System.out.println("Warning: ignoring expression profile: " + e.getMessage());
+            profile = new HeavyHitters();
+        }
+        calculator.getHistoryManager().attachProfile(profile);
+        if (calculator.getExpressionCache() != null) {
+            warmUp = calculator.getExpressionCache().warmUp(profile.getTopExpressions());
+        }
+    }
+
     /**
      * Main application loop
      */
     public void run() {
         displayWelcome();
+        if (warmUp != null) {
+            warmUp.join(); // Usually done while the welcome was printed
+        }
 
         while (running) {
             try {
@@ -45,10 +114,57 @@ public class CalculatorUI {
             }
         }
 
+        closeHistoryLog();
+        closeMemory();
+        saveProfile();
         displayGoodbye();
         scanner.close();
     }
 
+    /**
+     * Make sure every calculation has reached the history log before exiting
+     */
+    private void closeHistoryLog() {
+        HistoryLog log = calculator.getHistoryManager().getLog();
+        if (log == null) {
+            return;
+        }
+        try {
+            log.close();
+        } catch (IOException e) {
+            System.out.println("Warning: failed to save history: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write memory slots kept on disk back to their file
+     */
+    private void closeMemory() {
+        if (!(calculator.getMemoryManager() instanceof MappedMemoryManager memory)) {
+            return;
+        }
+        try {
+            memory.close();
+        } catch (IOException e) {
+            System.out.println("Warning: failed to save memory: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Save the expression profile for the next run's warm-up
+     */
+    private void saveProfile() {
+        HeavyHitters profile = calculator.getHistoryManager().getProfile();
+        if (profile == null || profileFile == null) {
+            return;
+        }
+        try {
+            profile.save(profileFile);
+        } catch (IOException e) {
+            System.out.println("Warning: failed to save expression profile: " + e.getMessage());
+        }
+    }
+
     /**
      * Display welcome message
      */
@@ -146,6 +262,12 @@ public class CalculatorUI {
             case "memory":
                 showMemory();
                 break;
+            case "snapshot":
+                handleMemorySnapshot();
+                break;
+            case "restore":
+                handleMemoryRestore();
+                break;
             case "stats":
                 showStatistics();
                 break;
@@ -185,6 +307,8 @@ public class CalculatorUI {
         System.out.println("Other:         fact(n) [factorial]");
         System.out.println("Constants:     pi, e");
         System.out.println("Examples:      sin(30), sqrt(16), fact(5), pi * 2");
+        System.out.println("Previous:      ans (last result), #n (result n in history)");
+        System.out.println("Examples:      ans * 2, #3 + #1");
         System.out.println();
 
         System.out.println("💾 MEMORY COMMANDS:");
@@ -193,6 +317,8 @@ public class CalculatorUI {
         System.out.println("mr  - Recall value from memory");
         System.out.println("mc  - Clear memory");
         System.out.println("memory - Show memory contents");
+        System.out.println("snapshot - Save all memory slots");
+        System.out.println("restore  - Put memory back as it was at the last snapshot");
         System.out.println();
 
         System.out.println("📚 INFORMATION COMMANDS:");
@@ -263,6 +389,26 @@ public class CalculatorUI {
         System.out.println("✓ Memory cleared");
     }
 
+    /**
+     * Handle memory snapshot command
+     */
+    private void handleMemorySnapshot() {
+        savedMemory = calculator.getMemoryManager().snapshot();
+        System.out.println("✓ Saved " + savedMemory.size() + " memory slot(s)");
+    }
+
+    /**
+     * Handle memory restore command
+     */
+    private void handleMemoryRestore() {
+        if (savedMemory == null) {
+            System.out.println("❌ No snapshot to restore. Use 'snapshot' first.");
+            return;
+        }
+        calculator.getMemoryManager().restore(savedMemory);
+        System.out.println("✓ Memory restored");
+    }
+
     /**
      * Show memory contents
      */
@@ -291,6 +437,23 @@ public class CalculatorUI {
         System.out.println(calculator.getMemoryManager().getStatistics());
         System.out.println();
 
+        // Result cache stats
+        if (calculator.getResultCache() != null) {
+            System.out.println("⚡ RESULT CACHE:");
+            System.out.println("───────────────");
+            System.out.println(calculator.getResultCache().getSummary());
+            System.out.println();
+        }
+
+        // Most frequent expressions
+        HeavyHitters profile = calculator.getHistoryManager().getProfile();
+        if (profile != null) {
+            System.out.println("🔥 FREQUENT EXPRESSIONS:");
+            System.out.println("───────────────────────");
+            System.out.println(profile.getSummary(5));
+            System.out.println();
+        }
+
         // Calculator engine stats
         System.out.println("⚙️  ENGINE INFORMATION:");
         System.out.println("────────────────────────");
@@ -298,6 +461,9 @@ public class CalculatorUI {
         System.out.println("Supported operators: +, -, *, /, %, ^");
         System.out.println("Parser type: Shunting Yard Algorithm (RPN)");
         System.out.println("Expression evaluation: Stack-based");
+        if (calculator.getExpressionCache() != null) {
+            System.out.println(calculator.getExpressionCache().getSummary());
+        }
         System.out.println();
     }
 
@@ -310,12 +476,12 @@ public class CalculatorUI {
             return;
         }
 
-        String filename = "calculator_history_" + System.currentTimeMillis() + ".txt";
-        try {
-            java.io.PrintWriter writer = new java.io.PrintWriter(filename);
-            writer.println(calculator.getHistoryManager().exportAsText());
-            writer.close();
-            System.out.println("✓ History exported to: " + filename);
+        // Streamed row by row, so large histories never need to fit in one String
+        String filename = "calculator_history_" + System.currentTimeMillis() + "."
+                + HistoryExporter.Format.CSV.getExtension();
+        try (java.io.OutputStream out = new java.io.FileOutputStream(filename)) {
+            long rows = new HistoryExporter(calculator.getHistoryManager(), HistoryExporter.Format.CSV).export(out);
+            System.out.println("✓ " + rows + " calculations exported to: " + filename);
         } catch (Exception e) {
             System.out.println("❌ Failed to export history: " + e.getMessage());
         }
@@ -0,0 +1,484 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Off-heap and on-disk storage for history entries evicted from the on-heap window.
+ * Demonstrates direct buffers, memory-mapped files and tiered storage.
+ *
+ * Entries are appended to fixed-size blocks allocated outside the Java heap. Once the
+ * off-heap budget is used up, the oldest block is written to a segment file and from
+ * then on read through a read-only memory mapping, so the operating system decides
+ * what stays in RAM. When the disk budget is used up too, the oldest segment is
+ * dropped. Every 64th record offset is kept per block so any entry can be found
+ * with a short scan. The oldest entries can also be removed one at a time, which is
+ * how retention policies trim it; a block is released once all its entries are gone.
+ * Not thread-safe.
+ *
+ * Record layout: double result, long epochNanos, int length, UTF-8 expression. An
+ * expression too long for a block is kept whole on the heap instead, and its record
+ * holds length -1 and a long overflow id, so it never comes back truncated.
+ */
+public class ColdHistoryStore implements AutoCloseable {
+
+    /**
+     * Read access to the record a scan is positioned on
+     */
+    public interface Cursor {
+        double result();
+
+        long epochNanos();
+
+        String expression();
+    }
+
+    /**
+     * Callback for scans; return false to stop
+     */
+    @FunctionalInterface
+    public interface RowVisitor {
+        boolean visit(Cursor row);
+    }
+
+    private static final int CHECKPOINT_INTERVAL = 64;
+    private static final int FIXED_RECORD_SIZE = Double.BYTES + Long.BYTES + Integer.BYTES;
+    private static final int OVERFLOW = -1;
+
+    private final int blockSize;
+    private final int maxOffHeapBlocks;
+    private final Path spillDirectory;
+    private final long maxDiskBytes;
+
+    private final List<Block> blocks = new ArrayList<>(); // Oldest first; last one takes appends
+    private ByteBuffer spare; // Direct buffer freed by the last spill, reused for the next block
+    private int offHeapBlocks;
+    private long diskBytes;
+    private long firstIndex; // Index of the oldest entry still stored
+    private long nextIndex;
+    private long dropped;
+    private long segmentCounter;
+    private RowVisitor dropListener;
+    private final Map<Long, String> overflow = new HashMap<>(); // Expressions too long for a block
+    private long nextOverflowId;
+    private long overflowBytes;
+
+    /**
+     * Create an off-heap only store; the oldest entries are dropped when the budget is used
+     */
+    public ColdHistoryStore(long maxOffHeapBytes) {
+        this(1 << 20, maxOffHeapBytes, null, 0);
+    }
+
+    /**
+     * Create a store that spills to memory-mapped segment files in a directory
+     */
+    public ColdHistoryStore(long maxOffHeapBytes, Path spillDirectory, long maxDiskBytes) {
+        this(1 << 20, maxOffHeapBytes, spillDirectory, maxDiskBytes);
+    }
+
+    /**
+     * Create a store with a custom block size
+     */
+    public ColdHistoryStore(int blockSize, long maxOffHeapBytes, Path spillDirectory, long maxDiskBytes) {
+        if (blockSize < 1024 || maxOffHeapBytes <= 0 || maxDiskBytes < 0) {
+            throw new IllegalArgumentException("Block size must be at least 1 KB and budgets positive");
+        }
+        this.blockSize = blockSize;
+        this.maxOffHeapBlocks = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxOffHeapBytes / blockSize));
+        this.maxDiskBytes = maxDiskBytes;
+        try {
+            this.spillDirectory = spillDirectory == null ? null : Files.createDirectories(spillDirectory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create spill directory " + spillDirectory, e);
+        }
+    }
+
+    /**
+     * Append an entry evicted from the hot window
+     */
+    public void append(String expression, double result, long epochNanos) {
+        byte[] bytes = expression.getBytes(StandardCharsets.UTF_8);
+        boolean oversize = bytes.length > blockSize - FIXED_RECORD_SIZE;
+        int recordSize = FIXED_RECORD_SIZE + (oversize ? Long.BYTES : bytes.length);
+
+        Block block = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+        if (block == null || block.file != null || block.data.remaining() < recordSize) {
+            block = newBlock();
+        }
+
+        ByteBuffer data = block.data;
+        if (block.count % CHECKPOINT_INTERVAL == 0) {
+            block.addCheckpoint(data.position());
+        }
+        data.putDouble(result);
+        data.putLong(epochNanos);
+        if (oversize) {
+            long id = nextOverflowId++;
+            overflow.put(id, expression);
+            overflowBytes += bytes.length;
+            data.putInt(OVERFLOW);
+            data.putLong(id);
+            block.overflows++;
+        } else {
+            data.putInt(bytes.length);
+            data.put(bytes);
+        }
+        block.count++;
+        nextIndex++;
+    }
+
+    private Block newBlock() {
+        ByteBuffer data;
+        if (spare != null) {
+            data = spare;
+            data.clear();
+            spare = null;
+        } else {
+            data = ByteBuffer.allocateDirect(blockSize);
+        }
+        Block block = new Block(data, nextIndex);
+        blocks.add(block);
+        offHeapBlocks++;
+
+        while (offHeapBlocks > maxOffHeapBlocks) {
+            evictOldestOffHeapBlock();
+        }
+        return block;
+    }
+
+    /**
+     * Move the oldest off-heap block to disk, or drop it when there is no disk tier
+     */
+    private void evictOldestOffHeapBlock() {
+        int oldest = 0;
+        while (blocks.get(oldest).file != null) {
+            oldest++;
+        }
+        Block block = blocks.get(oldest);
+        ByteBuffer offHeap = block.data;
+
+        if (spillDirectory == null || maxDiskBytes == 0) {
+            dropOldestBlock();
+        } else {
+            spill(block);
+            while (diskBytes > maxDiskBytes) {
+                dropOldestBlock();
+            }
+        }
+        offHeapBlocks--;
+        spare = offHeap;
+    }
+
+    private void spill(Block block) {
+        ByteBuffer used = block.data.duplicate().flip();
+        Path file = spillDirectory.resolve(String.format("cold-%012d.seg", segmentCounter++));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            while (used.hasRemaining()) {
+                channel.write(used);
+            }
+            block.data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            block.data.position(block.data.limit()); // Same state as a full off-heap block
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to spill history to " + file, e);
+        }
+        block.file = file;
+        diskBytes += block.data.capacity();
+    }
+
+    /**
+     * Be told about every entry dropped because all tiers are full, oldest first
+     */
+    public void setDropListener(RowVisitor listener) {
+        this.dropListener = listener;
+    }
+
+    private void dropOldestBlock() {
+        Block block = blocks.get(0);
+        if (dropListener != null || block.overflows > 0) {
+            BlockCursor cursor = new BlockCursor(block.data);
+            cursor.position = block.start;
+            for (int i = block.removed; i < block.count; i++) {
+                if (dropListener != null) {
+                    dropListener.visit(cursor);
+                }
+                releaseOverflow(cursor);
+                cursor.position = cursor.nextPosition();
+            }
+        }
+        blocks.remove(0);
+        firstIndex += block.count - block.removed;
+        dropped += block.count - block.removed;
+        if (block.file != null) {
+            diskBytes -= block.data.capacity();
+            deleteQuietly(block.file);
+        }
+    }
+
+    /**
+     * Remove entries oldest first for as long as the condition accepts them (the
+     * drop listener is not called); returns the number removed
+     */
+    public long removeOldest(RowVisitor condition) {
+        long removedCount = 0;
+        while (!blocks.isEmpty()) {
+            Block block = blocks.get(0);
+            BlockCursor cursor = new BlockCursor(block.data);
+            cursor.position = block.start;
+            while (block.removed < block.count) {
+                if (!condition.visit(cursor)) {
+                    return removedCount;
+                }
+                if (releaseOverflow(cursor)) {
+                    block.overflows--;
+                }
+                cursor.position = cursor.nextPosition();
+                block.start = cursor.position;
+                block.removed++;
+                firstIndex++;
+                removedCount++;
+            }
+
+            blocks.remove(0);
+            if (block.file != null) {
+                diskBytes -= block.data.capacity();
+                deleteQuietly(block.file);
+            } else {
+                offHeapBlocks--;
+                spare = block.data;
+            }
+        }
+        return removedCount;
+    }
+
+    /**
+     * Forget the overflow expression of the record a cursor is on, if it has one
+     */
+    private boolean releaseOverflow(BlockCursor cursor) {
+        long id = cursor.overflowId();
+        if (id < 0) {
+            return false;
+        }
+        String expression = overflow.remove(id);
+        overflowBytes -= expression.getBytes(StandardCharsets.UTF_8).length;
+        return true;
+    }
+
+    /**
+     * Get number of stored entries
+     */
+    public long getCount() {
+        return nextIndex - firstIndex;
+    }
+
+    /**
+     * Get number of entries dropped because every tier was full
+     */
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    public long getOffHeapBytes() {
+        return (long) offHeapBlocks * blockSize;
+    }
+
+    public long getDiskBytes() {
+        return diskBytes;
+    }
+
+    /**
+     * Get bytes of expressions too long for a block, which are kept on the heap
+     */
+    public long getOverflowBytes() {
+        return overflowBytes;
+    }
+
+    /**
+     * Get an entry by position, 0 being the most recent
+     */
+    public HistoryManager.CalculationEntry getEntry(long index) {
+        return locate(index).toEntry();
+    }
+
+    /**
+     * Get the timestamp of an entry by position, without decoding its expression
+     */
+    public long getEpochNanos(long index) {
+        return locate(index).epochNanos();
+    }
+
+    private BlockCursor locate(long index) {
+        if (index < 0 || index >= getCount()) {
+            throw new IndexOutOfBoundsException("Cold history index " + index + " out of range");
+        }
+        long target = nextIndex - 1 - index;
+
+        // Binary search the block holding the target, then scan from its checkpoint
+        int low = 0;
+        int high = blocks.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (blocks.get(mid).firstIndex <= target) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        Block block = blocks.get(low);
+        int record = (int) (target - block.firstIndex);
+        BlockCursor cursor = new BlockCursor(block.data);
+        cursor.position = block.checkpoints[record / CHECKPOINT_INTERVAL];
+        for (int i = record % CHECKPOINT_INTERVAL; i > 0; i--) {
+            cursor.position = cursor.nextPosition();
+        }
+        return cursor;
+    }
+
+    /**
+     * Visit entries from the most recent to the oldest
+     */
+    public void forEachNewestFirst(RowVisitor visitor) {
+        int[] group = new int[CHECKPOINT_INTERVAL];
+        for (int b = blocks.size() - 1; b >= 0; b--) {
+            Block block = blocks.get(b);
+            BlockCursor cursor = new BlockCursor(block.data);
+
+            for (int checkpoint = (block.count - 1) / CHECKPOINT_INTERVAL; checkpoint >= 0; checkpoint--) {
+                int groupSize = Math.min(CHECKPOINT_INTERVAL, block.count - checkpoint * CHECKPOINT_INTERVAL);
+                int position = block.checkpoints[checkpoint];
+                for (int i = 0; i < groupSize; i++) {
+                    group[i] = position;
+                    cursor.position = position;
+                    position = cursor.nextPosition();
+                }
+                for (int i = groupSize - 1; i >= 0; i--) {
+                    if (checkpoint * CHECKPOINT_INTERVAL + i < block.removed) {
+                        return; // Only the oldest block has removed entries
+                    }
+                    cursor.position = group[i];
+                    if (!visitor.visit(cursor)) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove every entry and delete spilled segments
+     */
+    public void clear() {
+        for (Block block : blocks) {
+            if (block.file != null) {
+                deleteQuietly(block.file);
+            }
+        }
+        blocks.clear();
+        overflow.clear();
+        overflowBytes = 0;
+        offHeapBlocks = 0;
+        diskBytes = 0;
+        firstIndex = nextIndex;
+    }
+
+    @Override
+    public void close() {
+        clear();
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // A leftover segment only wastes disk space
+        }
+    }
+
+    /**
+     * A run of records in one buffer, either direct or memory-mapped
+     */
+    private static final class Block {
+        ByteBuffer data;
+        Path file; // Set once spilled
+        final long firstIndex;
+        int count;
+        int removed; // Leading records already removed
+        int overflows; // Records not yet removed whose expression is in the overflow map
+        int start; // Position of the first record not removed
+        int[] checkpoints = new int[16];
+
+        Block(ByteBuffer data, long firstIndex) {
+            this.data = data;
+            this.firstIndex = firstIndex;
+        }
+
+        void addCheckpoint(int position) {
+            int slot = count / CHECKPOINT_INTERVAL;
+            if (slot == checkpoints.length) {
+                checkpoints = Arrays.copyOf(checkpoints, slot * 2);
+            }
+            checkpoints[slot] = position;
+        }
+    }
+
+    /**
+     * Cursor reading records at an absolute position, without moving the buffer
+     */
+    private final class BlockCursor implements Cursor {
+        private final ByteBuffer data;
+        int position;
+
+        BlockCursor(ByteBuffer data) {
+            this.data = data;
+        }
+
+        int nextPosition() {
+            int length = data.getInt(position + Double.BYTES + Long.BYTES);
+            return position + FIXED_RECORD_SIZE + (length == OVERFLOW ? Long.BYTES : length);
+        }
+
+        /**
+         * Get the overflow id of the record's expression, or -1 if it is stored inline
+         */
+        long overflowId() {
+            int length = data.getInt(position + Double.BYTES + Long.BYTES);
+            return length == OVERFLOW ? data.getLong(position + FIXED_RECORD_SIZE) : -1;
+        }
+
+        @Override
+        public double result() {
+            return data.getDouble(position);
+        }
+
+        @Override
+        public long epochNanos() {
+            return data.getLong(position + Double.BYTES);
+        }
+
+        @Override
+        public String expression() {
+            int length = data.getInt(position + Double.BYTES + Long.BYTES);
+            if (length == OVERFLOW) {
+                return overflow.get(data.getLong(position + FIXED_RECORD_SIZE));
+            }
+            byte[] bytes = new byte[length];
+            data.get(position + FIXED_RECORD_SIZE, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        HistoryManager.CalculationEntry toEntry() {
+            return new HistoryManager.CalculationEntry(expression(), result(),
+                    HistoryManager.fromEpochNanos(epochNanos()));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Running sum that values can be added to and subtracted from without drifting.
+ * Demonstrates Kahan-Babuska (Neumaier) compensated summation.
+ *
+ * A plain running total loses low-order bits on every addition, and a window that
+ * adds new values and subtracts evicted ones accumulates that error forever. The
+ * compensation term keeps the lost bits so the total stays accurate. Infinities and
+ * NaN are counted apart; otherwise one of them would stick in the total after the
+ * value that caused it was subtracted again.
+ */
+public class CompensatedSum {
+
+    private double sum;
+    private double compensation;
+    private long positiveInfinities;
+    private long negativeInfinities;
+    private long nans;
+
+    /**
+     * Add a value
+     */
+    public void add(double value) {
+        update(value, 1);
+    }
+
+    /**
+     * Subtract a value that was added before
+     */
+    public void subtract(double value) {
+        update(value, -1);
+    }
+
+    private void update(double value, int sign) {
+        if (Double.isNaN(value)) {
+            nans += sign;
+        } else if (value == Double.POSITIVE_INFINITY) {
+            positiveInfinities += sign;
+        } else if (value == Double.NEGATIVE_INFINITY) {
+            negativeInfinities += sign;
+        } else {
+            double term = sign * value;
+            double total = sum + term;
+            if (Math.abs(sum) >= Math.abs(term)) {
+                compensation += (sum - total) + term;
+            } else {
+                compensation += (term - total) + sum;
+            }
+            sum = total;
+        }
+    }
+
+    /**
+     * Get the current total
+     */
+    public double get() {
+        if (nans > 0 || (positiveInfinities > 0 && negativeInfinities > 0)) {
+            return Double.NaN;
+        }
+        if (positiveInfinities > 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (negativeInfinities > 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return sum + compensation;
+    }
+
+    /**
+     * Reset the total to zero
+     */
+    public void clear() {
+        sum = 0;
+        compensation = 0;
+        positiveInfinities = 0;
+        negativeInfinities = 0;
+        nans = 0;
+    }
+}
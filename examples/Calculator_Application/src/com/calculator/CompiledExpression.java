@@ -0,0 +1,107 @@
+import java.util.List;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Immutable, pre-parsed form of an expression that can be evaluated repeatedly.
+ * Demonstrates compiling to a flat instruction array and stack-based execution.
+ *
+ * Identifiers that are neither functions nor constants become variables. They are
+ * numbered in order of first appearance and bound positionally at evaluation time,
+ * so "x * y + x" takes bindings (x, y). Instances are safe to share between threads.
+ */
+public final class CompiledExpression {
+
+    // Instruction opcodes
+    static final byte PUSH_CONSTANT = 0;
+    static final byte PUSH_VARIABLE = 1;
+    static final byte APPLY_OPERATOR = 2;
+    static final byte APPLY_FUNCTION = 3;
+
+    private final String source;
+    private final byte[] opcodes;
+    private final double[] constants;
+    private final int[] variableIndexes;
+    private final DoubleBinaryOperator[] operators;
+    private final DoubleUnaryOperator[] functions;
+    private final List<String> variableNames;
+    private final int maxStackDepth;
+
+    CompiledExpression(String source, byte[] opcodes, double[] constants, int[] variableIndexes,
+            DoubleBinaryOperator[] operators, DoubleUnaryOperator[] functions,
+            List<String> variableNames, int maxStackDepth) {
+        this.source = source;
+        this.opcodes = opcodes;
+        this.constants = constants;
+        this.variableIndexes = variableIndexes;
+        this.operators = operators;
+        this.functions = functions;
+        this.variableNames = List.copyOf(variableNames);
+        this.maxStackDepth = maxStackDepth;
+    }
+
+    /**
+     * Evaluate with positional variable bindings
+     */
+    public double evaluate(double... bindings) {
+        if (bindings.length != variableNames.size()) {
+            if (bindings.length == 0) {
+                throw new CalculatorException.InvalidExpressionException(
+                        "Unbound variable: " + variableNames.get(0));
+            }
+            throw new CalculatorException.InvalidExpressionException(String.format(
+                    "Expected %d variable bindings but got %d", variableNames.size(), bindings.length));
+        }
+
+        double[] stack = new double[maxStackDepth];
+        int top = 0;
+
+        // Operand counts were verified at compile time, so no bounds checks here
+        for (int i = 0; i < opcodes.length; i++) {
+            switch (opcodes[i]) {
+                case PUSH_CONSTANT:
+                    stack[top++] = constants[i];
+                    break;
+                case PUSH_VARIABLE:
+                    stack[top++] = bindings[variableIndexes[i]];
+                    break;
+                case APPLY_OPERATOR:
+                    double b = stack[--top];
+                    double a = stack[--top];
+                    stack[top++] = operators[i].applyAsDouble(a, b);
+                    break;
+                default:
+                    stack[top - 1] = functions[i].applyAsDouble(stack[top - 1]);
+                    break;
+            }
+        }
+
+        return stack[0];
+    }
+
+    /**
+     * Get the expression text this was compiled from
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Get variable names in binding order
+     */
+    public List<String> getVariableNames() {
+        return variableNames;
+    }
+
+    /**
+     * Get number of variables that must be bound
+     */
+    public int getVariableCount() {
+        return variableNames.size();
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledExpression[" + source + "]";
+    }
+}
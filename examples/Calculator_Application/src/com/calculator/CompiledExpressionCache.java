@@ -0,0 +1,141 @@
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe cache of compiled expressions keyed by their source text.
+ * Demonstrates sharing immutable state between threads without locking.
+ *
+ * CompiledExpression instances are immutable, so one cache can back any number
+ * of Calculators on any number of threads. Lookups never block; when the cache
+ * is full an arbitrary entry is evicted to make room.
+ */
+public class CompiledExpressionCache {
+
+    private static final int WARM_UP_RUNS = 200;
+
+    private final Map<String, CompiledExpression> entries;
+    private final int maxEntries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Create cache with default size limit
+     */
+    public CompiledExpressionCache() {
+        this(10_000);
+    }
+
+    /**
+     * Create cache with custom size limit
+     */
+    public CompiledExpressionCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Max cache size must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.entries = new ConcurrentHashMap<>(Math.min(maxEntries, 1024));
+    }
+
+    /**
+     * Get the compiled form of an expression, compiling it on a miss
+     */
+    public CompiledExpression get(String expression) {
+        CompiledExpression compiled = expression == null ? null : entries.get(expression);
+        if (compiled != null) {
+            hits.increment();
+            return compiled;
+        }
+
+        misses.increment();
+        compiled = ExpressionCompiler.compile(expression);
+        put(compiled);
+        return compiled;
+    }
+
+    /**
+     * Add an already compiled expression
+     */
+    public void put(CompiledExpression compiled) {
+        if (entries.size() >= maxEntries && !entries.containsKey(compiled.getSource())) {
+            Iterator<String> victims = entries.keySet().iterator();
+            if (victims.hasNext()) {
+                victims.next();
+                victims.remove();
+            }
+        }
+        entries.put(compiled.getSource(), compiled);
+    }
+
+    /**
+     * Compile expressions on a background thread before they are needed, evaluating
+     * each a few times so the evaluator is JIT-compiled too. The future completes with
+     * the number of expressions compiled; ones that fail to compile are skipped.
+     */
+    public CompletableFuture<Integer> warmUp(List<String> expressions) {
+        return CompletableFuture.supplyAsync(() -> {
+            int compiledCount = 0;
+            for (String expression : expressions) {
+                try {
+                    CompiledExpression compiled = ExpressionCompiler.compile(expression);
+                    put(compiled);
+                    compiledCount++;
+                    if (compiled.getVariableCount() == 0) {
+                        for (int i = 0; i < WARM_UP_RUNS; i++) {
+                            compiled.evaluate();
+                        }
+                    }
+                } catch (CalculatorException e) {
+                    // Failed last run too, or fails on evaluation (e.g. division by zero)
+                }
+            }
+            return compiledCount;
+        }, task -> {
+            Thread thread = new Thread(task, "expression-cache-warm-up");
+            thread.setDaemon(true);
+            thread.start();
+        });
+    }
+
+    /**
+     * Check if an expression is cached
+     */
+    public boolean contains(String expression) {
+        return entries.containsKey(expression);
+    }
+
+    /**
+     * Get number of cached expressions
+     */
+    public int getSize() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Clear all cached expressions
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Get cache statistics
+     */
+    public String getSummary() {
+        long hitCount = getHitCount();
+        long total = hitCount + getMissCount();
+        return String.format("Compiled expressions: %d/%d, hit rate: %.1f%% (%d of %d lookups)",
+                entries.size(), maxEntries, total == 0 ? 0.0 : hitCount * 100.0 / total, hitCount, total);
+    }
+}
@@ -0,0 +1,515 @@
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * History that any number of threads can add to and read from at the same time.
+ * Demonstrates lock-free multi-producer ring buffers and snapshot reads.
+ *
+ * Each writer claims a sequence number with one atomic increment and publishes its
+ * entry into slot sequence % capacity with a compare-and-set that only ever replaces
+ * an older sequence, so writers never wait for each other and a slow writer cannot
+ * overwrite a newer entry. A published cursor then moves past every sequence whose
+ * entry is in place. Readers only see the entries below the cursor, so size, lookups
+ * by position and snapshots all describe the same gap-free run of entries, and an
+ * entry still being written holds back the ones after it instead of leaving a hole.
+ * Lookups by position read one slot.
+ *
+ * Use it wherever a Calculator is shared between threads. The common operations
+ * and exporting work on the ring directly; the rest (indexes, rollups, time ranges)
+ * run against snapshot(), a private single-threaded copy. Compaction honours maximum age and
+ * byte budget; entries are not sampled.
+ */
+public class ConcurrentHistoryManager implements CalculationHistory {
+
+    // Approximate heap cost of a slot and its expression String, beyond the characters
+    private static final int SLOT_OVERHEAD_BYTES = 80;
+
+    /**
+     * An entry together with the sequence number it was published under
+     */
+    private record Slot(long sequence, String expression, double result, long epochNanos) {
+
+        HistoryManager.CalculationEntry toEntry() {
+            return new HistoryManager.CalculationEntry(expression, result, HistoryManager.fromEpochNanos(epochNanos));
+        }
+
+        long bytes() {
+            return SLOT_OVERHEAD_BYTES + expression.length();
+        }
+    }
+
+    /**
+     * Sequences [start, end) readers can see
+     */
+    private record View(long start, long end) {
+
+        int size() {
+            return (int) (end - start);
+        }
+    }
+
+    private final int capacity;
+    private final AtomicReferenceArray<Slot> ring;
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final AtomicLong published = new AtomicLong(); // Every sequence below this is in place or evicted
+    private final AtomicLong clearedBefore = new AtomicLong(); // Sequences below this were cleared
+    private final AtomicLong storedBytes = new AtomicLong();
+    private volatile HistoryLog log;
+    private volatile HeavyHitters profile;
+
+    /**
+     * Create concurrent history with default size limit
+     */
+    public ConcurrentHistoryManager() {
+        this(100);
+    }
+
+    /**
+     * Create concurrent history with custom size limit
+     */
+    public ConcurrentHistoryManager(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Max history size must be positive");
+        }
+        this.capacity = maxSize;
+        this.ring = new AtomicReferenceArray<>(maxSize);
+    }
+
+    /**
+     * Add a calculation to history; safe to call from any thread
+     */
+    @Override
+    public void addEntry(String expression, double result) {
+        long epochNanos = HistoryManager.currentEpochNanos();
+        publish(expression, result, epochNanos);
+        HistoryLog historyLog = log;
+        if (historyLog != null) {
+            historyLog.append(new HistoryManager.CalculationEntry(expression, result,
+                    HistoryManager.fromEpochNanos(epochNanos)));
+        }
+        HeavyHitters heavyHitters = profile;
+        if (heavyHitters != null && !ExpressionCompiler.hasResultReferences(expression)) {
+            heavyHitters.add(expression);
+        }
+    }
+
+    @Override
+    public void attachLog(HistoryLog historyLog) throws IOException {
+        for (HistoryManager.CalculationEntry entry : historyLog.recover(capacity)) {
+            publish(entry.expression(), entry.result(), HistoryManager.toEpochNanos(entry.timestamp()));
+        }
+        this.log = historyLog;
+    }
+
+    @Override
+    public HistoryLog getLog() {
+        return log;
+    }
+
+    @Override
+    public void attachProfile(HeavyHitters heavyHitters) {
+        this.profile = heavyHitters;
+    }
+
+    @Override
+    public HeavyHitters getProfile() {
+        return profile;
+    }
+
+    private void publish(String expression, double result, long epochNanos) {
+        long sequence = nextSequence.getAndIncrement();
+        int index = index(sequence);
+        Slot slot = new Slot(sequence, expression, result, epochNanos);
+        while (true) {
+            Slot current = ring.get(index);
+            if (current != null && current.sequence() > sequence) {
+                break; // A writer one lap ahead already took the slot; ours is evicted
+            }
+            if (ring.compareAndSet(index, current, slot)) {
+                storedBytes.addAndGet(slot.bytes() - (current == null ? 0 : current.bytes()));
+                break;
+            }
+        }
+        advancePublished();
+    }
+
+    /**
+     * Move the published cursor past every entry now in place. The writer of the
+     * entry the cursor waits on always runs this after publishing, so the cursor
+     * never stalls behind an entry that is already there.
+     */
+    private void advancePublished() {
+        long cursor;
+        while ((cursor = published.get()) < nextSequence.get()) {
+            Slot slot = ring.get(index(cursor));
+            if (slot == null || slot.sequence() < cursor) {
+                return; // Still being written
+            }
+            published.compareAndSet(cursor, cursor + 1);
+        }
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence % capacity);
+    }
+
+    /**
+     * Current visible sequences; entries a claimed writer may overwrite are left out
+     */
+    private View view() {
+        long end = published.get();
+        long start = Math.max(clearedBefore.get(), nextSequence.get() - capacity);
+        return new View(Math.min(start, end), end);
+    }
+
+    /**
+     * Find the slot at a position, or null if there is none
+     */
+    private Slot slotAt(int index) {
+        while (true) {
+            View view = view();
+            if (index < 0 || index >= view.size()) {
+                return null;
+            }
+            long sequence = view.end() - 1 - index;
+            Slot slot = ring.get(index(sequence));
+            if (slot != null && slot.sequence() == sequence) {
+                return slot;
+            }
+            // Removed or overwritten since the view was taken; look again
+        }
+    }
+
+    /**
+     * Collect up to max visible entries, newest first
+     */
+    private List<Slot> snapshotSlots(int max) {
+        View view = view();
+        List<Slot> slots = new ArrayList<>(Math.min(max, view.size()));
+        for (long sequence = view.end() - 1; sequence >= view.start() && slots.size() < max; sequence--) {
+            Slot slot = ring.get(index(sequence));
+            if (slot == null || slot.sequence() != sequence) {
+                break; // Removed or overwritten since the view was taken; so is everything older
+            }
+            slots.add(slot);
+        }
+        return slots;
+    }
+
+    private static List<HistoryManager.CalculationEntry> toEntries(List<Slot> slots) {
+        List<HistoryManager.CalculationEntry> entries = new ArrayList<>(slots.size());
+        for (Slot slot : slots) {
+            entries.add(slot.toEntry());
+        }
+        return entries;
+    }
+
+    /**
+     * Get a consistent single-threaded copy of the current history
+     */
+    @Override
+    public HistoryManager snapshot() {
+        List<Slot> slots = snapshotSlots(capacity);
+        HistoryManager copy = new HistoryManager(capacity);
+        for (int i = slots.size() - 1; i >= 0; i--) {
+            Slot slot = slots.get(i);
+            copy.restoreEntry(slot.expression(), slot.result(), slot.epochNanos());
+        }
+        return copy;
+    }
+
+    /**
+     * Walk the ring from the oldest selected slot without copying it. Entries added
+     * meanwhile are not included; entries evicted or removed meanwhile are skipped.
+     * Writers take their timestamps before their sequence numbers, so timestamps are
+     * checked slot by slot.
+     */
+    @Override
+    public long forEachOldestFirst(int from, int to, LocalDateTime fromTime, LocalDateTime toTime,
+            EntryConsumer consumer) throws IOException {
+        View view = view();
+        long newest = view.end() - 1 - from;
+        long oldest = Math.max(view.start(), view.end() - Math.min((long) to, view.size()));
+        long fromNanos = fromTime == null ? Long.MIN_VALUE : HistoryManager.toEpochNanos(fromTime);
+        long toNanos = toTime == null ? Long.MAX_VALUE : HistoryManager.toEpochNanos(toTime);
+        long count = 0;
+        for (long sequence = oldest; sequence <= newest; sequence++) {
+            Slot slot = ring.get(index(sequence));
+            if (slot == null || slot.sequence() != sequence
+                    || slot.epochNanos() < fromNanos || slot.epochNanos() > toNanos) {
+                continue;
+            }
+            consumer.accept(slot.toEntry());
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public HistoryManager.CalculationEntry getEntry(int index) {
+        return checkedSlotAt(index).toEntry();
+    }
+
+    @Override
+    public double getResult(int index) {
+        return checkedSlotAt(index).result();
+    }
+
+    @Override
+    public String getExpression(int index) {
+        return checkedSlotAt(index).expression();
+    }
+
+    private Slot checkedSlotAt(int index) {
+        Slot slot = slotAt(index);
+        if (slot == null) {
+            int size = getSize();
+            throw new IndexOutOfBoundsException("History index " + index + " out of range 0.." + (size - 1));
+        }
+        return slot;
+    }
+
+    @Override
+    public List<HistoryManager.CalculationEntry> getAllEntries() {
+        return Collections.unmodifiableList(toEntries(snapshotSlots(capacity)));
+    }
+
+    @Override
+    public List<HistoryManager.CalculationEntry> getRecentEntries(int count) {
+        return count <= 0 ? new ArrayList<>() : toEntries(snapshotSlots(count));
+    }
+
+    /**
+     * Get number of published entries
+     */
+    @Override
+    public int getSize() {
+        return view().size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return getSize() == 0;
+    }
+
+    /**
+     * Clear all history without stopping writers; entries added afterwards are kept
+     */
+    @Override
+    public void clear() {
+        long mark = nextSequence.get();
+        clearedBefore.accumulateAndGet(mark, Math::max);
+        long limit = Math.min(mark, published.get()); // Later slots are still needed to advance the cursor
+        for (int index = 0; index < capacity; index++) {
+            Slot slot = ring.get(index);
+            if (slot != null && slot.sequence() < limit && ring.compareAndSet(index, slot, null)) {
+                storedBytes.addAndGet(-slot.bytes());
+            }
+        }
+        HistoryLog historyLog = log;
+        if (historyLog != null) {
+            historyLog.appendClear();
+        }
+    }
+
+    @Override
+    public long compact(HistoryRetention retention) {
+        return compact(retention, HistoryManager.currentEpochNanos());
+    }
+
+    @Override
+    public long compact(HistoryRetention retention, LocalDateTime now) {
+        return compact(retention, HistoryManager.toEpochNanos(now));
+    }
+
+    /**
+     * Remove the oldest entries while they are older than the maximum age or history
+     * takes more than the byte budget, by moving the clear mark past them; safe to
+     * call from any thread
+     */
+    private long compact(HistoryRetention retention, long nowNanos) {
+        long expiredBefore = retention.getMaxAge() == null ? Long.MIN_VALUE
+                : nowNanos - retention.getMaxAge().toNanos();
+        long maxBytes = retention.getMaxBytes();
+        View view = view();
+        long bytes = storedBytes.get();
+        long keepFrom = view.start();
+        while (keepFrom < view.end()) {
+            Slot slot = ring.get(index(keepFrom));
+            if (slot != null && slot.sequence() == keepFrom) {
+                if (slot.epochNanos() >= expiredBefore && bytes <= maxBytes) {
+                    break;
+                }
+                bytes -= slot.bytes();
+            }
+            keepFrom++;
+        }
+
+        // Hide the entries first, so no reader is handed a slot that is about to go
+        long previous = clearedBefore.getAndAccumulate(keepFrom, Math::max);
+        long removedFrom = Math.max(previous, view.start());
+        for (long sequence = removedFrom; sequence < keepFrom; sequence++) {
+            int index = index(sequence);
+            Slot slot = ring.get(index);
+            if (slot != null && slot.sequence() == sequence && ring.compareAndSet(index, slot, null)) {
+                storedBytes.addAndGet(-slot.bytes());
+            }
+        }
+        return Math.max(0, keepFrom - removedFrom);
+    }
+
+    /**
+     * Get the approximate heap bytes the ring's entries take
+     */
+    @Override
+    public long getStorageBytes() {
+        return storedBytes.get();
+    }
+
+    @Override
+    public List<HistoryManager.CalculationEntry> findByResult(double result) {
+        return findByResult(result, 0.0001);
+    }
+
+    @Override
+    public List<HistoryManager.CalculationEntry> findByResult(double result, double tolerance) {
+        List<HistoryManager.CalculationEntry> matches = new ArrayList<>();
+        for (Slot slot : snapshotSlots(capacity)) {
+            if (Math.abs(slot.result() - result) < tolerance) {
+                matches.add(slot.toEntry());
+            }
+        }
+        return matches;
+    }
+
+    @Override
+    public List<HistoryManager.CalculationEntry> findByExpression(String searchText) {
+        if (searchText == null || searchText.trim().isEmpty()) {
+            return new ArrayList<>();
+        }
+        String search = searchText.toLowerCase().trim();
+        List<HistoryManager.CalculationEntry> matches = new ArrayList<>();
+        for (Slot slot : snapshotSlots(capacity)) {
+            if (slot.expression().toLowerCase().contains(search)) {
+                matches.add(slot.toEntry());
+            }
+        }
+        return matches;
+    }
+
+    @Override
+    public String getSummary() {
+        List<Slot> slots = snapshotSlots(capacity);
+        if (slots.isEmpty()) {
+            return "No calculations in history";
+        }
+
+        double minResult = Double.POSITIVE_INFINITY;
+        double maxResult = Double.NEGATIVE_INFINITY;
+        CompensatedSum sum = new CompensatedSum();
+        QuantileSketch sketch = new QuantileSketch();
+        for (Slot slot : slots) {
+            minResult = Math.min(minResult, slot.result());
+            maxResult = Math.max(maxResult, slot.result());
+            sum.add(slot.result());
+            sketch.add(slot.result());
+        }
+
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+        return String.format(
+                "History Summary:\\n" +
+                        "Total calculations: %d\\n" +
+                        "Result range: %.4f to %.4f\\n" +
+                        "Average result: %.4f\\n" +
+                        "Percentiles: p50 %.4f, p95 %.4f, p99 %.4f\\n" +
+                        "Oldest calculation: %s\\n" +
+                        "Newest calculation: %s",
+                slots.size(), minResult, maxResult, sum.get() / slots.size(),
+                sketch.getQuantile(0.50), sketch.getQuantile(0.95), sketch.getQuantile(0.99),
+                slots.get(slots.size() - 1).toEntry().timestamp().format(formatter),
+                slots.get(0).toEntry().timestamp().format(formatter));
+    }
+
+    @Override
+    public String getExpressionForReuse(int index) {
+        Slot slot = slotAt(index - 1);
+        return slot == null ? null : slot.expression();
+    }
+
+    // Less common queries run on a snapshot copy
+
+    @Override
+    public int getDistinctExpressionCount() {
+        return snapshot().getDistinctExpressionCount();
+    }
+
+    @Override
+    public List<HistoryManager.CalculationEntry> findByResultBetween(double low, double high) {
+        return snapshot().findByResultBetween(low, high);
+    }
+
+    @Override
+    public List<HistoryManager.CalculationEntry> findNearestResults(double result, int count) {
+        return snapshot().findNearestResults(result, count);
+    }
+
+    @Override
+    public List<HistoryManager.CalculationEntry> findByTimeRange(LocalDateTime from, LocalDateTime to) {
+        return snapshot().findByTimeRange(from, to);
+    }
+
+    @Override
+    public int countByTimeRange(LocalDateTime from, LocalDateTime to) {
+        return snapshot().countByTimeRange(from, to);
+    }
+
+    @Override
+    public int findIndexAtOrBefore(LocalDateTime time) {
+        return snapshot().findIndexAtOrBefore(time);
+    }
+
+    /**
+     * Rollups of a snapshot only cover the entries still in history
+     */
+    @Override
+    public List<HistoryRollup.Bucket> getRollup(HistoryManager.Resolution resolution,
+            LocalDateTime from, LocalDateTime to) {
+        return snapshot().getRollup(resolution, from, to);
+    }
+
+    @Override
+    public HistoryRollup getRollup(HistoryManager.Resolution resolution) {
+        return snapshot().getRollup(resolution);
+    }
+
+    @Override
+    public double getResultSum() {
+        return snapshot().getResultSum();
+    }
+
+    @Override
+    public double getResultQuantile(double quantile) {
+        return snapshot().getResultQuantile(quantile);
+    }
+
+    @Override
+    public QuantileSketch getResultSketch() {
+        return snapshot().getResultSketch();
+    }
+
+    @Override
+    public String exportAsText() {
+        return snapshot().exportAsText();
+    }
+
+    @Override
+    public String getFormattedHistory(int maxEntries) {
+        return snapshot().getFormattedHistory(maxEntries);
+    }
+}
@@ -0,0 +1,322 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Memory that any number of threads can read and update at the same time.
+ * Demonstrates VarHandle compare-and-set and lock-free read-modify-write loops.
+ *
+ * Every slot is one long holding the value's bits, or a reserved NaN pattern when the
+ * slot is empty, so a slot's value and whether it is occupied always change together
+ * in a single compare-and-set. M+ (addToMemory) and getAndAdd retry until their CAS
+ * wins, so concurrent accumulators never lose an update and never wait for a lock.
+ * Slots are kept in fixed 64-slot chunks that never move once created, and new slot
+ * names are interned under a lock that readers never take.
+ *
+ * Drop-in for MemoryManager wherever memory slots are shared between threads.
+ * snapshot() and restore() copy slot by slot and do not see one instant while others
+ * write; SnapshotMemoryManager gives isolated snapshots in constant time.
+ */
+public class ConcurrentMemoryManager extends MemoryManager {
+
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    // Double.doubleToLongBits folds every NaN to 0x7ff8000000000000L, so no stored
+    // value ever has this NaN payload
+    static final long EMPTY = 0x7FF0_0000_DEAD_BEEFL;
+
+    private static final int CHUNK_BITS = 6;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int LETTER_SLOTS = 26;
+
+    private final Map<String, Integer> handles = new ConcurrentHashMap<>(); // Names other than A-Z
+    private volatile long[][] chunks;
+    private volatile String[] names;
+    private volatile int handleCount;
+    private final AtomicInteger occupiedCount = new AtomicInteger();
+
+    /**
+     * Create concurrent memory with default capacity
+     */
+    public ConcurrentMemoryManager() {
+        this(26);
+    }
+
+    /**
+     * Create concurrent memory with custom capacity
+     */
+    public ConcurrentMemoryManager(int capacity) {
+        super(capacity);
+        String[] letters = new String[CHUNK_SIZE];
+        for (int letter = 0; letter < LETTER_SLOTS; letter++) {
+            letters[letter] = String.valueOf((char) ('A' + letter));
+        }
+        this.names = letters;
+        this.chunks = new long[][] {newChunk()};
+        this.handleCount = LETTER_SLOTS;
+    }
+
+    private static long[] newChunk() {
+        long[] chunk = new long[CHUNK_SIZE];
+        Arrays.fill(chunk, EMPTY);
+        return chunk;
+    }
+
+    @Override
+    public int slotHandle(String slot) {
+        if (slot == null || slot.trim().isEmpty()) {
+            throw new CalculatorException.MemoryOperationException(
+                    "Memory slot name cannot be null or empty");
+        }
+        int handle = findHandle(slot);
+        if (handle >= 0) {
+            return handle;
+        }
+        if (!isValidSlotName(slot)) {
+            throw new CalculatorException.MemoryOperationException(
+                    "Invalid memory slot name. Use letters, numbers, and underscores only");
+        }
+        return intern(slot);
+    }
+
+    /**
+     * Assign the next handle; arrays are copied rather than grown in place, so readers
+     * holding the old ones still see every existing slot
+     */
+    private synchronized int intern(String slot) {
+        Integer existing = handles.get(slot);
+        if (existing != null) {
+            return existing;
+        }
+        int handle = handleCount;
+        if (handle == names.length) {
+            names = Arrays.copyOf(names, handle * 2);
+        }
+        if (handle >> CHUNK_BITS == chunks.length) {
+            long[][] grown = Arrays.copyOf(chunks, chunks.length + 1);
+            grown[chunks.length] = newChunk();
+            chunks = grown;
+        }
+        names[handle] = slot;
+        handleCount = handle + 1; // Volatile write publishes the name and chunk
+        handles.put(slot, handle);
+        return handle;
+    }
+
+    @Override
+    protected int findHandle(String slot) {
+        if (slot.length() == 1) {
+            char c = slot.charAt(0);
+            if (c >= 'A' && c <= 'Z') {
+                return c - 'A';
+            }
+        }
+        Integer handle = handles.get(slot);
+        return handle == null ? -1 : handle;
+    }
+
+    @Override
+    public String getSlotName(int handle) {
+        checkHandle(handle);
+        return names[handle];
+    }
+
+    @Override
+    protected int getHandleCount() {
+        return handleCount;
+    }
+
+    private void checkHandle(int handle) {
+        if (handle < 0 || handle >= getHandleCount()) {
+            throw new CalculatorException.MemoryOperationException("Unknown memory slot handle: " + handle);
+        }
+    }
+
+    /**
+     * Read a slot's bits (EMPTY if it has no value)
+     */
+    protected long getBits(int handle) {
+        return (long) SLOTS.getVolatile(chunks[handle >> CHUNK_BITS], handle & (CHUNK_SIZE - 1));
+    }
+
+    /**
+     * Atomically replace a slot's bits if they still equal the expected bits
+     */
+    protected boolean compareAndSetBits(int handle, long expected, long update) {
+        return SLOTS.compareAndSet(chunks[handle >> CHUNK_BITS], handle & (CHUNK_SIZE - 1), expected, update);
+    }
+
+    /**
+     * Take one unit of capacity for a slot about to be filled
+     */
+    protected void reserveSlot() {
+        int occupied;
+        do {
+            occupied = occupiedCount.get();
+            if (occupied >= getCapacity()) {
+                throw new CalculatorException.MemoryOperationException(
+                        String.format("Memory capacity exceeded. Maximum %d slots allowed", getCapacity()));
+            }
+        } while (!occupiedCount.compareAndSet(occupied, occupied + 1));
+    }
+
+    /**
+     * Give back the capacity of a slot that was emptied or never filled
+     */
+    protected void releaseSlot() {
+        occupiedCount.decrementAndGet();
+    }
+
+    @Override
+    public void store(int handle, double value) {
+        checkHandle(handle);
+        long update = Double.doubleToLongBits(value);
+        while (true) {
+            long current = getBits(handle);
+            if (current == EMPTY) {
+                reserveSlot();
+                if (compareAndSetBits(handle, EMPTY, update)) {
+                    break;
+                }
+                releaseSlot(); // Filled by another thread meanwhile; retry as an update
+            } else if (compareAndSetBits(handle, current, update)) {
+                break;
+            }
+        }
+        fireChanged(handle);
+    }
+
+    @Override
+    public double recall(int handle) {
+        checkHandle(handle);
+        long bits = getBits(handle);
+        if (bits == EMPTY) {
+            throw new CalculatorException.MemoryOperationException(
+                    String.format("No value stored in memory slot '%s'", getSlotName(handle)));
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    @Override
+    public boolean hasValue(int handle) {
+        return handle >= 0 && handle < getHandleCount() && getBits(handle) != EMPTY;
+    }
+
+    /**
+     * Atomically add to a slot (an empty slot starts from zero); no update is ever lost
+     */
+    @Override
+    public void addToMemory(int handle, double value) {
+        getAndAdd(handle, value);
+    }
+
+    /**
+     * Atomically add to a slot and return its previous value (0 if it was empty)
+     */
+    public double getAndAdd(String slot, double delta) {
+        return getAndAdd(slotHandle(slot), delta);
+    }
+
+    /**
+     * Atomically add to the slot a handle refers to and return its previous value
+     */
+    public double getAndAdd(int handle, double delta) {
+        checkHandle(handle);
+        while (true) {
+            long current = getBits(handle);
+            if (current == EMPTY) {
+                reserveSlot();
+                if (compareAndSetBits(handle, EMPTY, Double.doubleToLongBits(delta))) {
+                    fireChanged(handle);
+                    return 0;
+                }
+                releaseSlot();
+            } else {
+                double previous = Double.longBitsToDouble(current);
+                if (compareAndSetBits(handle, current, Double.doubleToLongBits(previous + delta))) {
+                    fireChanged(handle);
+                    return previous;
+                }
+            }
+        }
+    }
+
+    /**
+     * Store a value only if the slot still holds the expected one; values are
+     * compared like Double.equals, so NaN matches NaN and 0.0 differs from -0.0.
+     * An empty slot matches nothing.
+     */
+    public boolean compareAndStore(String slot, double expected, double update) {
+        int handle = findHandle(slot);
+        return handle >= 0 && compareAndStore(handle, expected, update);
+    }
+
+    /**
+     * Store a value in the slot a handle refers to only if it still holds the expected one
+     */
+    public boolean compareAndStore(int handle, double expected, double update) {
+        checkHandle(handle);
+        long expectedBits = Double.doubleToLongBits(expected);
+        if (compareAndSetBits(handle, expectedBits, Double.doubleToLongBits(update))) {
+            fireChanged(handle);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void clear(int handle) {
+        checkHandle(handle);
+        while (true) {
+            long current = getBits(handle);
+            if (current == EMPTY) {
+                throw new CalculatorException.MemoryOperationException(
+                        String.format("Memory slot '%s' does not exist", getSlotName(handle)));
+            }
+            if (compareAndSetBits(handle, current, EMPTY)) {
+                releaseSlot();
+                fireChanged(handle);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Clear all memory slots; slots stored while this runs may survive
+     */
+    @Override
+    public void clearAll() {
+        clearFormulas();
+        for (int handle = 0; handle < getHandleCount(); handle++) {
+            long current = getBits(handle);
+            if (current != EMPTY && compareAndSetBits(handle, current, EMPTY)) {
+                releaseSlot();
+                fireChanged(handle);
+            }
+        }
+    }
+
+    /**
+     * Capture the value of every slot; each slot is read atomically, but slots
+     * changed while this runs may be captured before or after the change
+     */
+    @Override
+    public MemorySnapshot snapshot() {
+        MemorySnapshot snapshot = MemorySnapshot.empty();
+        for (int handle = 0; handle < getHandleCount(); handle++) {
+            long bits = getBits(handle);
+            if (bits != EMPTY) {
+                snapshot = snapshot.with(getSlotName(handle), Double.longBitsToDouble(bits));
+            }
+        }
+        return snapshot;
+    }
+
+    @Override
+    public int getOccupiedSlots() {
+        return occupiedCount.get();
+    }
+}
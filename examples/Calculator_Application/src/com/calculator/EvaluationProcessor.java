@@ -0,0 +1,272 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * Reactive stage that evaluates expressions and publishes the results in order.
+ * Demonstrates java.util.concurrent.Flow, demand-driven backpressure and bounded buffers.
+ *
+ * At most {@code bufferSize} expressions are requested from upstream ahead of what
+ * the downstream subscriber has consumed, so a fast publisher can never make this
+ * stage buffer more than that. Evaluation runs on {@code parallelism} threads, each
+ * with its own Calculator, and results are re-sequenced before they are published.
+ * Evaluation errors are published as failed results rather than ending the stream.
+ * Which worker, and so which history, evaluates an expression is not determined, so
+ * expressions with result references ("ans", "#n") are published as failures.
+ */
+public class EvaluationProcessor implements Flow.Processor<String, EvaluationResult> {
+
+    private final int bufferSize;
+    private final ExecutorService workers;
+    private final ThreadLocal<Calculator> workerCalculator;
+
+    // Finished results waiting to be published, indexed by sequence % bufferSize
+    private final AtomicReferenceArray<EvaluationResult> completed;
+
+    private final AtomicReference<Flow.Subscriber<? super EvaluationResult>> downstream = new AtomicReference<>();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger drainWork = new AtomicInteger();
+    private final AtomicBoolean terminated = new AtomicBoolean();
+
+    private volatile Flow.Subscription upstream;
+    private volatile long received;
+    private volatile boolean upstreamDone;
+    private volatile Throwable failure;
+    private volatile Throwable demandError;
+    private volatile boolean cancelled;
+
+    // Only written inside the drain loop
+    private volatile long published;
+
+    /**
+     * Create a processor with one Calculator per worker thread
+     */
+    public EvaluationProcessor(int parallelism, int bufferSize) {
+        this(parallelism, bufferSize, Calculator::new);
+    }
+
+    /**
+     * Create a processor whose workers obtain their Calculator from the supplier
+     */
+    public EvaluationProcessor(int parallelism, int bufferSize, Supplier<Calculator> calculatorFactory) {
+        if (parallelism <= 0 || bufferSize <= 0) {
+            throw new IllegalArgumentException("Parallelism and buffer size must be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.completed = new AtomicReferenceArray<>(bufferSize);
+        this.workerCalculator = ThreadLocal.withInitial(calculatorFactory);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(parallelism, task -> {
+            Thread thread = new Thread(task, "evaluation-processor-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Subscriber side (upstream publisher -> this)
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (upstream != null || cancelled) {
+            subscription.cancel();
+            return;
+        }
+        upstream = subscription;
+        subscription.request(bufferSize);
+    }
+
+    @Override
+    public void onNext(String expression) {
+        if (cancelled || upstreamDone) {
+            return;
+        }
+
+        long sequence = received;
+        if (sequence - published >= bufferSize) {
+            // Upstream ignored our demand; refuse rather than buffer without bound
+            onError(new IllegalStateException("Publisher sent more items than requested"));
+            upstream.cancel();
+            return;
+        }
+        received = sequence + 1;
+
+        try {
+            workers.execute(() -> {
+                completed.set((int) (sequence % bufferSize), evaluate(expression));
+                drain();
+            });
+        } catch (RejectedExecutionException e) {
+            // Workers only stop after cancellation or termination
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        if (upstreamDone) {
+            return;
+        }
+        failure = throwable;
+        upstreamDone = true;
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        upstreamDone = true;
+        drain();
+    }
+
+    // Publisher side (this -> downstream subscriber)
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super EvaluationResult> subscriber) {
+        if (!downstream.compareAndSet(null, subscriber)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("EvaluationProcessor allows only one subscriber"));
+            return;
+        }
+
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    cancelUpstream();
+                    demandError = new IllegalArgumentException("Demand must be positive, got " + n);
+                } else {
+                    addDemand(n);
+                }
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                cancelUpstream();
+                shutdown();
+            }
+        });
+        drain();
+    }
+
+    /**
+     * Evaluate one expression on the calling worker thread
+     */
+    private EvaluationResult evaluate(String expression) {
+        if (ExpressionCompiler.hasResultReferences(expression)) {
+            return EvaluationResult.failure(expression, new CalculatorException.InvalidExpressionException(
+                    "Result references (ans, #n) are not supported by parallel evaluation"));
+        }
+        try {
+            return EvaluationResult.success(expression, workerCalculator.get().evaluate(expression));
+        } catch (CalculatorException e) {
+            return EvaluationResult.failure(expression, e);
+        } catch (RuntimeException e) {
+            return EvaluationResult.failure(expression,
+                    new CalculatorException("Evaluation failed: " + e.getMessage(), e));
+        }
+    }
+
+    /**
+     * Publish every in-order result the subscriber has asked for. Only one thread runs
+     * the loop at a time; callers that find it busy leave a note for it to go again.
+     */
+    private void drain() {
+        if (drainWork.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+        do {
+            Flow.Subscriber<? super EvaluationResult> subscriber = downstream.get();
+            Throwable invalidDemand = demandError;
+            if (subscriber != null && invalidDemand != null && terminated.compareAndSet(false, true)) {
+                // Rule 3.9: a non-positive request ends the stream with an error at once
+                shutdown();
+                subscriber.onError(invalidDemand);
+            }
+
+            if (subscriber != null && !cancelled && !terminated.get()) {
+                long requested = demand.get();
+                long sent = 0;
+
+                while (sent != requested && published < received) {
+                    int slot = (int) (published % bufferSize);
+                    EvaluationResult result = completed.get(slot);
+                    if (result == null) {
+                        break; // Next result in order is still being evaluated
+                    }
+                    completed.set(slot, null);
+                    published++;
+                    sent++;
+                    subscriber.onNext(result);
+                    if (cancelled) {
+                        return;
+                    }
+                }
+
+                if (sent > 0) {
+                    if (requested != Long.MAX_VALUE) {
+                        demand.addAndGet(-sent);
+                    }
+                    Flow.Subscription subscription = upstream;
+                    if (subscription != null && !upstreamDone) {
+                        subscription.request(sent);
+                    }
+                }
+
+                if (upstreamDone && published == received && terminated.compareAndSet(false, true)) {
+                    shutdown();
+                    Throwable error = failure;
+                    if (error != null) {
+                        subscriber.onError(error);
+                    } else {
+                        subscriber.onComplete();
+                    }
+                }
+            }
+
+            missed = drainWork.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void addDemand(long n) {
+        demand.getAndUpdate(current -> {
+            long sum = current + n;
+            return sum < 0 ? Long.MAX_VALUE : sum;
+        });
+    }
+
+    private void cancelUpstream() {
+        Flow.Subscription subscription = upstream;
+        if (subscription != null) {
+            subscription.cancel();
+        }
+    }
+
+    private void shutdown() {
+        workers.shutdown();
+    }
+
+    /**
+     * Number of expressions accepted from upstream but not yet published
+     */
+    public long getBufferedCount() {
+        return received - published;
+    }
+}
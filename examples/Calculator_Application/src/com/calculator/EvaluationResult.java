@@ -0,0 +1,34 @@
+/**
+ * Outcome of evaluating one expression: either a value or the error it raised.
+ * Demonstrates representing failures as data so one bad input does not end a stream.
+ */
+public record EvaluationResult(String expression, double value, CalculatorException error) {
+
+    /**
+     * Create a successful result
+     */
+    public static EvaluationResult success(String expression, double value) {
+        return new EvaluationResult(expression, value, null);
+    }
+
+    /**
+     * Create a failed result
+     */
+    public static EvaluationResult failure(String expression, CalculatorException error) {
+        return new EvaluationResult(expression, Double.NaN, error);
+    }
+
+    /**
+     * Check if evaluation succeeded
+     */
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    @Override
+    public String toString() {
+        return isSuccess()
+                ? expression + " = " + value
+                : expression + " = ERROR: " + error.getMessage();
+    }
+}
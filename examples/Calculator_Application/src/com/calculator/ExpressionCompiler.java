@@ -0,0 +1,336 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.IntToDoubleFunction;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles expression text into a reusable {@link CompiledExpression}.
+ * Demonstrates tokenizing, the Shunting Yard algorithm and static stack validation.
+ *
+ * Result references ("ans" for the latest result, "#n" for history entry n) are
+ * folded into constants while compiling, like pi and e, so using a previous result
+ * never re-evaluates the expression that produced it.
+ */
+public final class ExpressionCompiler {
+
+    // Operator precedence (higher numbers = higher precedence)
+    private static final Map<String, Integer> OPERATOR_PRECEDENCE = Map.of(
+            "+", 1, "-", 1, "*", 2, "/", 2, "%", 2,
+            "^", 3, "**", 3);
+
+    // Mathematical operators
+    private static final Map<String, DoubleBinaryOperator> OPERATORS = Map.of(
+            "+", (a, b) -> a + b,
+            "-", (a, b) -> a - b,
+            "*", (a, b) -> a * b,
+            "/", (a, b) -> {
+                if (b == 0)
+                    throw new CalculatorException.DivisionByZeroException("Division by zero");
+                return a / b;
+            },
+            "%", (a, b) -> {
+                if (b == 0)
+                    throw new CalculatorException.DivisionByZeroException("Modulo by zero");
+                return a % b;
+            },
+            "^", (a, b) -> MathFunctions.power(a, b),
+            "**", (a, b) -> MathFunctions.power(a, b));
+
+    // Identifiers that are not functions or constants are treated as variables;
+    // "S.mean" names an aggregate of rolling slot S
+    private static final Pattern VARIABLE_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z]+)?");
+
+    // Previous results: "ans" or "#n", n counting from 1 = most recent
+    private static final Pattern REFERENCE_PATTERN = Pattern.compile("ans|#\\d+", Pattern.CASE_INSENSITIVE);
+    private static final Pattern CONTAINS_REFERENCE_PATTERN = Pattern.compile("#|\\bans\\b", Pattern.CASE_INSENSITIVE);
+
+    private ExpressionCompiler() {
+        // Utility class
+    }
+
+    /**
+     * Compile an expression into an immutable instruction sequence
+     */
+    public static CompiledExpression compile(String expression) {
+        return compile(expression, null);
+    }
+
+    /**
+     * Compile an expression, replacing result references with the values the
+     * resolver returns for their history numbers (1 = most recent)
+     */
+    public static CompiledExpression compile(String expression, IntToDoubleFunction results) {
+        if (expression == null || expression.trim().isEmpty()) {
+            throw new CalculatorException.InvalidExpressionException("Expression cannot be null or empty");
+        }
+
+        String sanitized = InputValidator.sanitizeInput(expression);
+        List<String> tokens = tokenize(sanitized);
+        List<String> rpn = convertToRPN(tokens, results);
+        return assemble(expression, rpn);
+    }
+
+    /**
+     * Check if an expression may refer to previous results; such expressions depend
+     * on history, so compiled forms and results must not be cached
+     */
+    public static boolean hasResultReferences(String expression) {
+        return expression != null && CONTAINS_REFERENCE_PATTERN.matcher(expression).find();
+    }
+
+    /**
+     * Tokenize expression into numbers, operators, and functions
+     */
+    private static List<String> tokenize(String expression) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+
+        for (int i = 0; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+
+            if (Character.isWhitespace(c)) {
+                if (current.length() > 0) {
+                    tokens.add(current.toString());
+                    current.setLength(0);
+                }
+                continue;
+            }
+
+            if (isOperator(c)) {
+                if (current.length() > 0) {
+                    tokens.add(current.toString());
+                    current.setLength(0);
+                }
+                tokens.add(String.valueOf(c));
+            } else if (c == '(' || c == ')') {
+                if (current.length() > 0) {
+                    tokens.add(current.toString());
+                    current.setLength(0);
+                }
+                tokens.add(String.valueOf(c));
+            } else {
+                current.append(c);
+            }
+        }
+
+        if (current.length() > 0) {
+            tokens.add(current.toString());
+        }
+
+        return tokens;
+    }
+
+    /**
+     * Convert tokens to Reverse Polish Notation (RPN) using Shunting Yard algorithm
+     */
+    private static List<String> convertToRPN(List<String> tokens, IntToDoubleFunction results) {
+        List<String> output = new ArrayList<>();
+        Deque<String> stack = new ArrayDeque<>();
+
+        for (String token : tokens) {
+            if (isNumber(token)) {
+                output.add(token);
+            } else if (isConstant(token)) {
+                output.add(resolveConstant(token));
+            } else if (isReference(token)) {
+                output.add(resolveReference(token, results));
+            } else if (MathFunctions.isFunction(token)) {
+                stack.push(token);
+            } else if (isOperator(token)) {
+                while (!stack.isEmpty() && isOperator(stack.peek()) &&
+                        hasHigherOrEqualPrecedence(stack.peek(), token)) {
+                    output.add(stack.pop());
+                }
+                stack.push(token);
+            } else if (token.equals("(")) {
+                stack.push(token);
+            } else if (token.equals(")")) {
+                while (!stack.isEmpty() && !stack.peek().equals("(")) {
+                    output.add(stack.pop());
+                }
+                if (stack.isEmpty()) {
+                    throw new CalculatorException.InvalidExpressionException("Mismatched parentheses");
+                }
+                stack.pop(); // Remove the '('
+
+                // If there's a function on top of stack, add it to output
+                if (!stack.isEmpty() && MathFunctions.isFunction(stack.peek())) {
+                    output.add(stack.pop());
+                }
+            } else if (isVariable(token)) {
+                output.add(token);
+            } else {
+                throw new CalculatorException.InvalidExpressionException("Unknown token: " + token);
+            }
+        }
+
+        // Pop remaining operators from stack
+        while (!stack.isEmpty()) {
+            String op = stack.pop();
+            if (op.equals("(")) {
+                throw new CalculatorException.InvalidExpressionException("Mismatched parentheses");
+            }
+            output.add(op);
+        }
+
+        return output;
+    }
+
+    /**
+     * Turn RPN tokens into instructions, checking operand counts up front
+     */
+    private static CompiledExpression assemble(String source, List<String> rpn) {
+        int size = rpn.size();
+        byte[] opcodes = new byte[size];
+        double[] constants = new double[size];
+        int[] variableIndexes = new int[size];
+        DoubleBinaryOperator[] operators = new DoubleBinaryOperator[size];
+        DoubleUnaryOperator[] functions = new DoubleUnaryOperator[size];
+        List<String> variableNames = new ArrayList<>();
+
+        int depth = 0;
+        int maxDepth = 0;
+
+        for (int i = 0; i < size; i++) {
+            String token = rpn.get(i);
+
+            if (isNumber(token)) {
+                opcodes[i] = CompiledExpression.PUSH_CONSTANT;
+                constants[i] = Double.parseDouble(token);
+                depth++;
+            } else if (isOperator(token)) {
+                if (depth < 2) {
+                    throw new CalculatorException.InvalidExpressionException(
+                            "Insufficient operands for operator: " + token);
+                }
+                opcodes[i] = CompiledExpression.APPLY_OPERATOR;
+                operators[i] = OPERATORS.get(token);
+                depth--;
+            } else if (MathFunctions.isFunction(token)) {
+                if (depth < 1) {
+                    throw new CalculatorException.InvalidExpressionException(
+                            "Missing argument for function: " + token);
+                }
+                opcodes[i] = CompiledExpression.APPLY_FUNCTION;
+                functions[i] = MathFunctions.getFunction(token)
+                        .orElseThrow(() -> new CalculatorException.InvalidOperationException(
+                                "Unknown function: " + token));
+            } else {
+                int index = variableNames.indexOf(token);
+                if (index < 0) {
+                    index = variableNames.size();
+                    variableNames.add(token);
+                }
+                opcodes[i] = CompiledExpression.PUSH_VARIABLE;
+                variableIndexes[i] = index;
+                depth++;
+            }
+
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        if (depth != 1) {
+            throw new CalculatorException.InvalidExpressionException("Invalid expression");
+        }
+
+        return new CompiledExpression(source, opcodes, constants, variableIndexes,
+                operators, functions, variableNames, maxDepth);
+    }
+
+    /**
+     * Check if character is an operator
+     */
+    private static boolean isOperator(char c) {
+        return "+-*/%^".indexOf(c) != -1;
+    }
+
+    /**
+     * Check if string is an operator
+     */
+    private static boolean isOperator(String token) {
+        return OPERATORS.containsKey(token);
+    }
+
+    /**
+     * Check if string is a number
+     */
+    private static boolean isNumber(String token) {
+        try {
+            Double.parseDouble(token);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Check if string is a variable name
+     */
+    private static boolean isVariable(String token) {
+        return VARIABLE_PATTERN.matcher(token).matches();
+    }
+
+    /**
+     * Check if string refers to a previous result
+     */
+    private static boolean isReference(String token) {
+        return REFERENCE_PATTERN.matcher(token).matches();
+    }
+
+    /**
+     * Resolve a result reference to the stored value
+     */
+    private static String resolveReference(String reference, IntToDoubleFunction results) {
+        if (results == null) {
+            throw new CalculatorException.InvalidExpressionException(
+                    "Result reference '" + reference + "' needs calculation history");
+        }
+        int number;
+        try {
+            number = reference.startsWith("#") ? Integer.parseInt(reference.substring(1)) : 1;
+        } catch (NumberFormatException e) {
+            throw new CalculatorException.InvalidExpressionException("Invalid result reference: " + reference);
+        }
+        return String.valueOf(results.applyAsDouble(number));
+    }
+
+    /**
+     * Check if string is a mathematical constant
+     */
+    private static boolean isConstant(String token) {
+        return token.equalsIgnoreCase("pi") || token.equalsIgnoreCase("e");
+    }
+
+    /**
+     * Resolve mathematical constants to their values
+     */
+    private static String resolveConstant(String constant) {
+        switch (constant.toLowerCase()) {
+            case "pi":
+                return String.valueOf(MathFunctions.PI);
+            case "e":
+                return String.valueOf(MathFunctions.E);
+            default:
+                throw new CalculatorException.InvalidExpressionException("Unknown constant: " + constant);
+        }
+    }
+
+    /**
+     * Check if operator1 has higher or equal precedence to operator2
+     */
+    private static boolean hasHigherOrEqualPrecedence(String op1, String op2) {
+        Integer prec1 = OPERATOR_PRECEDENCE.get(op1);
+        Integer prec2 = OPERATOR_PRECEDENCE.get(op2);
+
+        if (prec1 == null || prec2 == null) {
+            throw new CalculatorException.InvalidExpressionException("Unknown operator precedence");
+        }
+
+        return prec1 >= prec2;
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reference-counted dictionary that maps distinct expression strings to small int ids.
+ * Demonstrates dictionary encoding and id recycling.
+ *
+ * History usually repeats a modest set of expressions many times, so storing each
+ * distinct string once and an int per row saves most of the memory. Ids whose last
+ * reference is released are recycled, which keeps the id space dense. Not thread-safe.
+ */
+public class ExpressionDictionary {
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private String[] values = new String[64];
+    private int[] refCounts = new int[64];
+    private int[] freeIds = new int[16];
+    private int freeCount;
+    private int nextId;
+
+    /**
+     * Get the id for an expression, adding it if needed, and take one reference to it
+     */
+    public int acquire(String expression) {
+        Integer existing = ids.get(expression);
+        if (existing != null) {
+            refCounts[existing]++;
+            return existing;
+        }
+
+        int id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+        if (id == values.length) {
+            values = Arrays.copyOf(values, id * 2);
+            refCounts = Arrays.copyOf(refCounts, id * 2);
+        }
+        values[id] = expression;
+        refCounts[id] = 1;
+        ids.put(expression, id);
+        return id;
+    }
+
+    /**
+     * Drop one reference; the id is recycled when no references remain
+     */
+    public void release(int id) {
+        if (--refCounts[id] > 0) {
+            return;
+        }
+        ids.remove(values[id]);
+        values[id] = null;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+    }
+
+    /**
+     * Get the expression for an id
+     */
+    public String get(int id) {
+        return values[id];
+    }
+
+    /**
+     * Get the id for an expression without taking a reference, or -1
+     */
+    public int find(String expression) {
+        Integer id = ids.get(expression);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Upper bound (exclusive) of ids handed out so far
+     */
+    public int getIdLimit() {
+        return nextId;
+    }
+
+    /**
+     * Get number of distinct expressions
+     */
+    public int getSize() {
+        return ids.size();
+    }
+
+    /**
+     * Remove all expressions
+     */
+    public void clear() {
+        ids.clear();
+        values = new String[64];
+        refCounts = new int[64];
+        freeCount = 0;
+        nextId = 0;
+    }
+}
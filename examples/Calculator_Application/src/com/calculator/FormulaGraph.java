@@ -0,0 +1,434 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.Supplier;
+
+/**
+ * Formulas held in memory slots and the slots that depend on each other through them.
+ * Demonstrates dependency graphs, topological ordering and incremental recalculation.
+ *
+ * Every slot a formula reads has an edge to the formula's slot. When a slot changes,
+ * only the slots reachable from it are recalculated, in topological order (reverse
+ * depth-first postorder), so each formula runs at most once per change and always
+ * after its inputs. A formula whose inputs all kept their values is skipped, which
+ * stops a change from spreading further than it has to. A formula that would make a
+ * slot depend on itself is rejected when it is stored.
+ *
+ * A formula whose inputs are empty, or that fails to evaluate, leaves its slot empty
+ * until its inputs change again. A formula reading a rolling aggregate ("S.mean") is
+ * recalculated when S changes, not when old values merely age out of the window.
+ * Storing, adding to or clearing a formula slot directly replaces the formula with
+ * the plain value, except when memory is restored from a snapshot: formulas are not
+ * part of a snapshot, so they all survive and are recalculated from the restored values.
+ */
+public class FormulaGraph {
+
+    /**
+     * Graph vertex for one memory slot, indexed by slot handle
+     */
+    private static final class Node {
+        CompiledExpression formula; // Null for plain values
+        int[] inputs = NO_HANDLES;
+        String[] aggregates; // Rolling aggregate read instead of an input's value, e.g. "S.mean"
+        int[] dependents = NO_HANDLES;
+        int dependentCount;
+        int visitMark; // Epoch of the last traversal that reached this node
+        int changedMark; // Epoch of the last recalculation that changed this slot
+    }
+
+    private static final int[] NO_HANDLES = new int[0];
+
+    private final MemoryManager memory;
+    private Node[] nodes = new Node[64];
+    private int formulaCount;
+    private int epoch;
+    private boolean recalculating; // Our own stores must not start another recalculation
+    private long recalculatedCount;
+
+    // Scratch space reused by every traversal
+    private int[] stack = new int[16];
+    private int[] childIndex = new int[16];
+    private int[] order = new int[16];
+
+    public FormulaGraph(MemoryManager memory) {
+        this.memory = memory;
+    }
+
+    /**
+     * Make a slot hold a formula over other slots and calculate it and its dependents
+     */
+    public synchronized void setFormula(int handle, CompiledExpression formula) {
+        int[] inputs = new int[formula.getVariableCount()];
+        String[] aggregates = null;
+        for (int i = 0; i < inputs.length; i++) {
+            String name = formula.getVariableNames().get(i);
+            int dot = name.indexOf('.');
+            if (dot >= 0) {
+                if (aggregates == null) {
+                    aggregates = new String[inputs.length];
+                }
+                aggregates[i] = name;
+                name = name.substring(0, dot);
+            }
+            inputs[i] = memory.slotHandle(name);
+        }
+        checkAcyclic(handle, inputs);
+
+        Node node = node(handle);
+        unlink(handle, node);
+        node.formula = formula;
+        node.inputs = inputs;
+        node.aggregates = aggregates;
+        formulaCount++;
+        for (int input : inputs) {
+            addDependent(node(input), handle);
+        }
+        recalculate(handle, true);
+    }
+
+    /**
+     * Get the formula a slot holds, or null
+     */
+    public synchronized CompiledExpression getFormula(int handle) {
+        Node node = handle < nodes.length ? nodes[handle] : null;
+        return node == null ? null : node.formula;
+    }
+
+    /**
+     * Turn every formula slot back into a plain value
+     */
+    public synchronized void clear() {
+        for (int handle = 0; handle < nodes.length; handle++) {
+            if (nodes[handle] != null) {
+                unlink(handle, nodes[handle]);
+            }
+        }
+    }
+
+    /**
+     * Recalculate what depends on a slot that was stored, added to or cleared. A
+     * change from outside to a formula slot replaces its formula with the value.
+     */
+    public synchronized void slotChanged(int handle) {
+        if (recalculating || handle < 0 || handle >= nodes.length || nodes[handle] == null) {
+            return;
+        }
+        Node node = nodes[handle];
+        unlink(handle, node);
+        if (node.dependentCount > 0) {
+            recalculate(handle, false);
+        }
+    }
+
+    /**
+     * Run writes that put many slots back at once, returning the names of the slots
+     * they changed, as restoring a snapshot does. Every formula is kept; afterwards
+     * each formula that reads a changed slot, or whose own slot was overwritten, is
+     * recalculated once, in dependency order.
+     */
+    public synchronized void restore(Supplier<Collection<String>> writes) {
+        Collection<String> changed;
+        recalculating = true;
+        try {
+            changed = writes.get();
+        } finally {
+            recalculating = false;
+        }
+
+        int[] sources = new int[changed.size()];
+        int count = 0;
+        for (String slot : changed) {
+            int handle = memory.findHandle(slot);
+            if (handle >= 0 && handle < nodes.length && nodes[handle] != null) {
+                sources[count++] = handle;
+            }
+        }
+        if (count > 0) {
+            recalculate(sources, count);
+        }
+    }
+
+    public synchronized int getFormulaCount() {
+        return formulaCount;
+    }
+
+    /**
+     * Get number of formulas calculated so far
+     */
+    public synchronized long getRecalculatedCount() {
+        return recalculatedCount;
+    }
+
+    /**
+     * Recalculate a slot's dependents (and the slot itself if asked) in dependency order
+     */
+    private void recalculate(int source, boolean includeSource) {
+        int count = topologicalOrder(source);
+        int changed = ++epoch;
+        nodes[source].changedMark = changed;
+        recalculating = true;
+        try {
+            for (int i = includeSource ? 0 : 1; i < count; i++) {
+                int handle = order[i];
+                Node node = nodes[handle];
+                if (handle == source || inputChanged(node, changed)) {
+                    if (evaluate(handle, node)) {
+                        node.changedMark = changed;
+                    }
+                }
+            }
+        } finally {
+            recalculating = false;
+        }
+    }
+
+    /**
+     * Recalculate after several slots changed at once: the changed slots that hold
+     * formulas, and every formula downstream whose inputs changed
+     */
+    private void recalculate(int[] sources, int sourceCount) {
+        int count = topologicalOrder(sources, sourceCount);
+        int changed = ++epoch;
+        for (int i = 0; i < sourceCount; i++) {
+            nodes[sources[i]].changedMark = changed;
+        }
+        recalculating = true;
+        try {
+            for (int i = 0; i < count; i++) {
+                int handle = order[i];
+                Node node = nodes[handle];
+                // Sources are already marked changed; a plain source has nothing to run
+                if (node.formula != null && (node.changedMark == changed || inputChanged(node, changed))
+                        && evaluate(handle, node)) {
+                    node.changedMark = changed;
+                }
+            }
+        } finally {
+            recalculating = false;
+        }
+    }
+
+    private boolean inputChanged(Node node, int changed) {
+        for (int input : node.inputs) {
+            if (nodes[input].changedMark == changed) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Run a slot's formula and store the result; returns whether the slot changed
+     */
+    private boolean evaluate(int handle, Node node) {
+        recalculatedCount++;
+        double[] bindings = new double[node.inputs.length];
+        boolean bound = true;
+        for (int i = 0; i < bindings.length && bound; i++) {
+            String aggregate = node.aggregates == null ? null : node.aggregates[i];
+            bound = aggregate == null ? memory.hasValue(node.inputs[i]) : memory.hasValue(aggregate);
+            if (bound) {
+                bindings[i] = aggregate == null ? memory.recall(node.inputs[i]) : memory.recall(aggregate);
+            }
+        }
+        double value = Double.NaN;
+        if (bound) {
+            try {
+                value = node.formula.evaluate(bindings);
+            } catch (CalculatorException e) {
+                bound = false;
+            }
+        }
+
+        boolean hadValue = memory.hasValue(handle);
+        if (!bound) {
+            if (hadValue) {
+                memory.clear(handle);
+            }
+            return hadValue;
+        }
+        if (hadValue && Double.compare(memory.recall(handle), value) == 0) {
+            return false;
+        }
+        memory.store(handle, value);
+        return true;
+    }
+
+    /**
+     * Fill order with the source and every slot reachable from it, each after all the
+     * slots it depends on; returns how many there are
+     */
+    private int topologicalOrder(int source) {
+        int count = depthFirst(source, ++epoch, 0);
+        reverseOrder(count);
+        return count;
+    }
+
+    /**
+     * Fill order with the sources and every slot reachable from them, each after all
+     * the slots it depends on; returns how many there are
+     */
+    private int topologicalOrder(int[] sources, int sourceCount) {
+        int visit = ++epoch;
+        int count = 0;
+        for (int i = 0; i < sourceCount; i++) {
+            if (nodes[sources[i]].visitMark != visit) {
+                count = depthFirst(sources[i], visit, count);
+            }
+        }
+        reverseOrder(count);
+        return count;
+    }
+
+    private void reverseOrder(int count) {
+        for (int i = 0, j = count - 1; i < j; i++, j--) {
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+    }
+
+    /**
+     * Append the slots reachable from a source and not yet visited to order, in
+     * postorder; returns the new length of order
+     */
+    private int depthFirst(int source, int visit, int count) {
+        int depth = 0;
+        stack[0] = source;
+        childIndex[0] = 0;
+        nodes[source].visitMark = visit;
+        while (depth >= 0) {
+            Node node = nodes[stack[depth]];
+            if (childIndex[depth] < node.dependentCount) {
+                int next = node.dependents[childIndex[depth]++];
+                if (nodes[next].visitMark != visit) {
+                    nodes[next].visitMark = visit;
+                    depth++;
+                    if (depth == stack.length) {
+                        stack = Arrays.copyOf(stack, depth * 2);
+                        childIndex = Arrays.copyOf(childIndex, depth * 2);
+                    }
+                    stack[depth] = next;
+                    childIndex[depth] = 0;
+                }
+            } else {
+                if (count == order.length) {
+                    order = Arrays.copyOf(order, count * 2);
+                }
+                order[count++] = stack[depth--]; // Postorder: after everything that depends on it
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reject a formula for a slot that one of its inputs already depends on
+     */
+    private void checkAcyclic(int handle, int[] inputs) {
+        for (int input : inputs) {
+            if (input == handle) {
+                throw cycle(new int[] {handle, handle}, 2);
+            }
+        }
+        if (handle >= nodes.length || nodes[handle] == null) {
+            return;
+        }
+        topologicalOrder(handle); // Marks everything that depends on the slot
+        int visit = epoch;
+        for (int input : inputs) {
+            if (input < nodes.length && nodes[input] != null && nodes[input].visitMark == visit) {
+                int[] path = pathBetween(handle, input);
+                throw cycle(path, path.length);
+            }
+        }
+    }
+
+    /**
+     * Slots from one to another along dependent edges, closed back to the first
+     */
+    private int[] pathBetween(int from, int to) {
+        int[] parent = new int[nodes.length];
+        Arrays.fill(parent, -1);
+        int[] queue = new int[nodes.length];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = from;
+        parent[from] = from;
+        while (head < tail && parent[to] < 0) {
+            Node node = nodes[queue[head++]];
+            for (int i = 0; i < node.dependentCount; i++) {
+                int next = node.dependents[i];
+                if (parent[next] < 0) {
+                    parent[next] = queue[head - 1];
+                    queue[tail++] = next;
+                }
+            }
+        }
+        int length = 1;
+        for (int at = to; at != from; at = parent[at]) {
+            length++;
+        }
+        int[] path = new int[length + 1];
+        path[0] = from; // The new formula reads "to", which reads back along the path to "from"
+        int i = 1;
+        for (int at = to; at != from; at = parent[at]) {
+            path[i++] = at;
+        }
+        path[i] = from;
+        return path;
+    }
+
+    private CalculatorException cycle(int[] path, int length) {
+        StringBuilder chain = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            chain.append(i == 0 ? "" : " -> ").append(memory.getSlotName(path[i]));
+        }
+        return new CalculatorException.MemoryOperationException("Circular reference: " + chain);
+    }
+
+    private Node node(int handle) {
+        if (handle >= nodes.length) {
+            nodes = Arrays.copyOf(nodes, Math.max(nodes.length * 2, handle + 1));
+        }
+        if (nodes[handle] == null) {
+            nodes[handle] = new Node();
+        }
+        return nodes[handle];
+    }
+
+    /**
+     * Drop a slot's formula, if any, and its edges from the slots it read
+     */
+    private void unlink(int handle, Node node) {
+        if (node.formula == null) {
+            return;
+        }
+        for (int input : node.inputs) {
+            removeDependent(nodes[input], handle);
+        }
+        node.formula = null;
+        node.inputs = NO_HANDLES;
+        node.aggregates = null;
+        formulaCount--;
+    }
+
+    private static void addDependent(Node node, int dependent) {
+        for (int i = 0; i < node.dependentCount; i++) {
+            if (node.dependents[i] == dependent) {
+                return; // Formula reads the slot more than once
+            }
+        }
+        if (node.dependentCount == node.dependents.length) {
+            node.dependents = Arrays.copyOf(node.dependents, Math.max(4, node.dependentCount * 2));
+        }
+        node.dependents[node.dependentCount++] = dependent;
+    }
+
+    private static void removeDependent(Node node, int dependent) {
+        for (int i = 0; i < node.dependentCount; i++) {
+            if (node.dependents[i] == dependent) {
+                node.dependents[i] = node.dependents[--node.dependentCount];
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,300 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Profile of the most frequently evaluated expressions.
+ * Demonstrates Count-Min sketches, top-K heaps and profile-guided warm-up.
+ *
+ * Every expression is counted in a Count-Min sketch: a few rows of counters, each
+ * indexed by a different hash, where an expression's estimate is the smallest of its
+ * counters. Estimates can only be too high, and only by collisions, while memory use
+ * is fixed no matter how many distinct expressions arrive. Counters are bumped with
+ * conservative update (only those at the minimum grow), which keeps estimates tight.
+ * A min-heap keeps the K expressions with the highest estimates; a newcomer replaces
+ * the weakest of them once its estimate is higher.
+ *
+ * The top K can be saved and loaded again, so the next run can compile them before
+ * serving. Counts are halved on load so that old runs fade out. Methods are
+ * synchronized so one profile can be fed by many histories; where many threads
+ * count at once, give each its own profile and drain them into one with drainFrom(),
+ * since Count-Min sketches of the same width merge by adding their counters.
+ */
+public class HeavyHitters {
+
+    /**
+     * An expression with its estimated evaluation count
+     */
+    public record HeavyHitter(String expression, long count) {
+    }
+
+    private static final int DEPTH = 4;
+    private static final int DEFAULT_WIDTH = 4096;
+    private static final int FILE_MAGIC = 0x43414850; // "CAHP"
+
+    private final long[][] counters;
+    private final int mask;
+    private final int capacity;
+    private final Map<String, HeavyHitter> top = new HashMap<>();
+    private final PriorityQueue<HeavyHitter> heap = new PriorityQueue<>(
+            Comparator.comparingLong(HeavyHitter::count));
+    private long total;
+
+    /**
+     * Create profile keeping the 64 most frequent expressions
+     */
+    public HeavyHitters() {
+        this(64);
+    }
+
+    /**
+     * Create profile keeping the given number of most frequent expressions
+     */
+    public HeavyHitters(int capacity) {
+        this(capacity, DEFAULT_WIDTH);
+    }
+
+    /**
+     * Create profile with a custom sketch width (rounded up to a power of two)
+     */
+    public HeavyHitters(int capacity, int width) {
+        if (capacity <= 0 || width <= 0) {
+            throw new IllegalArgumentException("Capacity and sketch width must be positive");
+        }
+        this.capacity = capacity;
+        int columns = Integer.highestOneBit(Math.max(1, width - 1)) << 1;
+        this.counters = new long[DEPTH][columns];
+        this.mask = columns - 1;
+    }
+
+    /**
+     * Count one evaluation of an expression
+     */
+    public void add(String expression) {
+        add(expression, 1);
+    }
+
+    /**
+     * Count several evaluations of an expression
+     */
+    public synchronized void add(String expression, long count) {
+        if (expression == null || count <= 0) {
+            return;
+        }
+        total += count;
+
+        int hash = expression.hashCode();
+        long estimate = minimum(hash) + count;
+        for (int row = 0; row < DEPTH; row++) {
+            int column = column(hash, row);
+            counters[row][column] = Math.max(counters[row][column], estimate);
+        }
+
+        offer(expression, estimate);
+    }
+
+    /**
+     * Put an expression in the top K with a new estimate, if it is high enough
+     */
+    private void offer(String expression, long estimate) {
+        HeavyHitter current = top.get(expression);
+        if (current != null) {
+            heap.remove(current);
+        } else if (top.size() >= capacity) {
+            if (heap.peek().count() >= estimate) {
+                return;
+            }
+            top.remove(heap.poll().expression());
+        }
+        HeavyHitter updated = new HeavyHitter(expression, estimate);
+        top.put(expression, updated);
+        heap.add(updated);
+    }
+
+    /**
+     * Add everything another profile of the same sketch width has counted to this
+     * one, and empty it; the other profile can keep counting meanwhile
+     */
+    public void drainFrom(HeavyHitters source) {
+        if (source == this || source.mask != mask) {
+            throw new IllegalArgumentException("Can only drain a different profile of the same sketch width");
+        }
+        long[][] sourceCounters = new long[DEPTH][];
+        List<String> sourceTop;
+        long sourceTotal;
+        synchronized (source) {
+            for (int row = 0; row < DEPTH; row++) {
+                sourceCounters[row] = source.counters[row].clone();
+            }
+            sourceTop = new ArrayList<>(source.top.keySet());
+            sourceTotal = source.total;
+            source.clear();
+        }
+
+        synchronized (this) {
+            total += sourceTotal;
+            for (int row = 0; row < DEPTH; row++) {
+                for (int column = 0; column <= mask; column++) {
+                    counters[row][column] += sourceCounters[row][column];
+                }
+            }
+            // Every candidate's estimate may have grown, so rank them all again
+            Set<String> candidates = new HashSet<>(top.keySet());
+            candidates.addAll(sourceTop);
+            top.clear();
+            heap.clear();
+            for (String expression : candidates) {
+                offer(expression, minimum(expression.hashCode()));
+            }
+        }
+    }
+
+    /**
+     * Get the estimated number of evaluations of an expression
+     */
+    public synchronized long estimate(String expression) {
+        return minimum(expression.hashCode());
+    }
+
+    private long minimum(int hash) {
+        long minimum = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            minimum = Math.min(minimum, counters[row][column(hash, row)]);
+        }
+        return minimum;
+    }
+
+    /**
+     * Two hashes combined give each row its own index (Kirsch-Mitzenmacher)
+     */
+    private int column(int hash, int row) {
+        int second = Integer.reverse(hash * 0x9E3779B9) | 1;
+        return (hash + row * second) & mask;
+    }
+
+    /**
+     * Get the most frequent expressions, most frequent first
+     */
+    public synchronized List<HeavyHitter> getTop() {
+        List<HeavyHitter> hitters = new ArrayList<>(top.values());
+        hitters.sort(Comparator.comparingLong(HeavyHitter::count).reversed());
+        return hitters;
+    }
+
+    /**
+     * Get the most frequent expressions' source text, most frequent first
+     */
+    public List<String> getTopExpressions() {
+        List<String> expressions = new ArrayList<>();
+        for (HeavyHitter hitter : getTop()) {
+            expressions.add(hitter.expression());
+        }
+        return expressions;
+    }
+
+    /**
+     * Get the total number of evaluations counted
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the number of counters in each row of the sketch
+     */
+    public int getWidth() {
+        return mask + 1;
+    }
+
+    /**
+     * Forget all counts
+     */
+    public synchronized void clear() {
+        for (long[] row : counters) {
+            Arrays.fill(row, 0);
+        }
+        top.clear();
+        heap.clear();
+        total = 0;
+    }
+
+    /**
+     * Write the top expressions to a file, replacing it atomically
+     */
+    public void save(Path file) throws IOException {
+        List<HeavyHitter> hitters = getTop();
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(hitters.size());
+            for (HeavyHitter hitter : hitters) {
+                byte[] bytes = hitter.expression().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.writeLong(hitter.count());
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load a saved profile into a new default-sized profile; a missing file gives an empty one
+     */
+    public static HeavyHitters load(Path file) throws IOException {
+        HeavyHitters profile = new HeavyHitters();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC) {
+                throw new IOException("Not an expression profile: " + file);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                long evaluations = in.readLong();
+                String expression = new String(bytes, StandardCharsets.UTF_8);
+                if (!ExpressionCompiler.hasResultReferences(expression)) { // Saved by older versions
+                    profile.add(expression, Math.max(1, evaluations / 2));
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // First run: nothing to warm up from
+        }
+        return profile;
+    }
+
+    /**
+     * Get profile summary with the most frequent expressions
+     */
+    public String getSummary(int maxEntries) {
+        List<HeavyHitter> hitters = getTop();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Evaluations profiled: %d", getTotal()));
+        for (int i = 0; i < Math.min(maxEntries, hitters.size()); i++) {
+            HeavyHitter hitter = hitters.get(i);
+            sb.append(String.format("\\n%d. %s (~%d times)", i + 1, hitter.expression(), hitter.count()));
+        }
+        return sb.toString();
+    }
+}
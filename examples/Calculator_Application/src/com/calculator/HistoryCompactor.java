@@ -0,0 +1,95 @@
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies a retention policy to histories on a schedule, away from the write path.
+ * Demonstrates background maintenance with scheduled executors.
+ *
+ * HistoryManager is not thread-safe, so each history is compacted on the executor
+ * that already owns it (a shard thread, for example) and the compactor's own thread
+ * only keeps time. A ConcurrentHistoryManager can be compacted from any thread and
+ * needs no owner. A compaction is never queued while the previous one for the same
+ * history is still waiting or running.
+ */
+public class HistoryCompactor implements AutoCloseable {
+
+    private final HistoryRetention retention;
+    private final long periodNanos;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong removedCount = new AtomicLong();
+    private final AtomicLong runCount = new AtomicLong();
+
+    /**
+     * Create compactor that applies the retention policy at a fixed interval
+     */
+    public HistoryCompactor(HistoryRetention retention, Duration period) {
+        if (period.isNegative() || period.isZero()) {
+            throw new IllegalArgumentException("Compaction period must be positive");
+        }
+        this.retention = retention;
+        this.periodNanos = period.toNanos();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "history-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Compact a concurrent history directly on the compactor thread
+     */
+    public void register(ConcurrentHistoryManager history) {
+        register(history, Runnable::run);
+    }
+
+    /**
+     * Compact a history on the executor that owns it; compaction of this history
+     * stops if the executor rejects it
+     */
+    public void register(CalculationHistory history, Executor owner) {
+        AtomicBoolean pending = new AtomicBoolean();
+        scheduler.scheduleWithFixedDelay(() -> {
+            if (pending.compareAndSet(false, true)) {
+                owner.execute(() -> {
+                    try {
+                        removedCount.addAndGet(history.compact(retention));
+                        runCount.incrementAndGet();
+                    } finally {
+                        pending.set(false);
+                    }
+                });
+            }
+        }, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public HistoryRetention getRetention() {
+        return retention;
+    }
+
+    /**
+     * Get number of entries removed from history so far
+     */
+    public long getRemovedCount() {
+        return removedCount.get();
+    }
+
+    /**
+     * Get number of compactions completed so far
+     */
+    public long getRunCount() {
+        return runCount.get();
+    }
+
+    /**
+     * Stop scheduling compactions; ones already handed to an owner still run
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,233 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams history to a channel or stream as CSV or JSON Lines.
+ * Demonstrates streaming I/O with fixed-size buffers and optional compression.
+ *
+ * Rows are formatted one at a time into a reused StringBuilder and encoded into a
+ * fixed 64 KB buffer that is written out whenever it fills, so memory use does not
+ * depend on how much history is exported. Rows are written oldest first. The
+ * target is flushed but never closed.
+ */
+public class HistoryExporter {
+
+    /**
+     * Output formats
+     */
+    public enum Format {
+        CSV("csv"),
+        JSON_LINES("jsonl");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final CalculationHistory history;
+    private final Format format;
+    private boolean gzip;
+    private int fromPosition = 0;
+    private int toPosition = Integer.MAX_VALUE;
+    private LocalDateTime fromTime;
+    private LocalDateTime toTime;
+
+    /**
+     * Create exporter for all of a history in a format
+     */
+    public HistoryExporter(CalculationHistory history, Format format) {
+        this.history = history;
+        this.format = format;
+    }
+
+    /**
+     * Compress the output with gzip
+     */
+    public HistoryExporter gzip(boolean enabled) {
+        this.gzip = enabled;
+        return this;
+    }
+
+    /**
+     * Only export entries at positions [from, to), 0 being the most recent
+     */
+    public HistoryExporter positions(int from, int to) {
+        if (from < 0 || to < from) {
+            throw new IllegalArgumentException("Invalid position range " + from + ".." + to);
+        }
+        this.fromPosition = from;
+        this.toPosition = to;
+        return this;
+    }
+
+    /**
+     * Only export entries with timestamps in [from, to]
+     */
+    public HistoryExporter timeRange(LocalDateTime from, LocalDateTime to) {
+        this.fromTime = from;
+        this.toTime = to;
+        return this;
+    }
+
+    /**
+     * Write the selected entries to a stream; returns the number of rows written
+     */
+    public long export(OutputStream out) throws IOException {
+        long rows = export(Channels.newChannel(out));
+        out.flush();
+        return rows;
+    }
+
+    /**
+     * Write the selected entries to a channel; returns the number of rows written
+     */
+    public long export(WritableByteChannel target) throws IOException {
+        GZIPOutputStream compressor = null;
+        WritableByteChannel channel = target;
+        if (gzip) {
+            compressor = new GZIPOutputStream(Channels.newOutputStream(target), BUFFER_SIZE);
+            channel = Channels.newChannel(compressor);
+        }
+
+        RowWriter writer = new RowWriter(channel);
+        if (format == Format.CSV) {
+            writer.row.append("timestamp,expression,result\n");
+            writer.flushRow();
+        }
+        long rows = history.forEachOldestFirst(fromPosition, toPosition, fromTime, toTime, entry -> {
+            if (format == Format.CSV) {
+                writer.csv(entry);
+            } else {
+                writer.json(entry);
+            }
+            writer.flushRow();
+        });
+        writer.drain();
+
+        if (compressor != null) {
+            compressor.finish();
+            compressor.flush();
+        }
+        return rows;
+    }
+
+    /**
+     * Formats one row at a time and encodes it into the shared byte buffer
+     */
+    private static final class RowWriter {
+        final StringBuilder row = new StringBuilder(256);
+        final WritableByteChannel channel;
+        final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+
+        RowWriter(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        void csv(HistoryManager.CalculationEntry entry) {
+            DateTimeFormatter.ISO_LOCAL_DATE_TIME.formatTo(entry.timestamp(), row);
+            row.append(',');
+            String expression = entry.expression();
+            if (needsQuoting(expression)) {
+                row.append('"');
+                for (int i = 0; i < expression.length(); i++) {
+                    char c = expression.charAt(i);
+                    if (c == '"') {
+                        row.append('"');
+                    }
+                    row.append(c);
+                }
+                row.append('"');
+            } else {
+                row.append(expression);
+            }
+            row.append(',').append(entry.result()).append('\n');
+        }
+
+        void json(HistoryManager.CalculationEntry entry) {
+            row.append("{\"timestamp\":\"");
+            DateTimeFormatter.ISO_LOCAL_DATE_TIME.formatTo(entry.timestamp(), row);
+            row.append("\",\"expression\":\"");
+            String expression = entry.expression();
+            for (int i = 0; i < expression.length(); i++) {
+                char c = expression.charAt(i);
+                switch (c) {
+                    case '"' -> row.append("\\\"");
+                    case '\\' -> row.append("\\\\");
+                    case '\n' -> row.append("\\n");
+                    case '\r' -> row.append("\\r");
+                    case '\t' -> row.append("\\t");
+                    default -> {
+                        if (c < 0x20) {
+                            row.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            row.append(c);
+                        }
+                    }
+                }
+            }
+            row.append("\",\"result\":");
+            double result = entry.result();
+            if (Double.isFinite(result)) {
+                row.append(result);
+            } else {
+                row.append("null"); // JSON has no NaN or Infinity
+            }
+            row.append("}\n");
+        }
+
+        /**
+         * Encode the current row into the buffer, writing the buffer out whenever it fills
+         */
+        void flushRow() throws IOException {
+            CharBuffer chars = CharBuffer.wrap(row);
+            while (true) {
+                CoderResult result = encoder.encode(chars, bytes, false);
+                if (result.isOverflow()) {
+                    drain();
+                } else if (result.isUnderflow()) {
+                    break;
+                } else {
+                    result.throwException();
+                }
+            }
+            row.setLength(0);
+        }
+
+        void drain() throws IOException {
+            bytes.flip();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            bytes.clear();
+        }
+
+        private static boolean needsQuoting(String value) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,417 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Durable, segmented append-only log of history entries.
+ * Demonstrates write-ahead logging, group commit, checksums and memory-mapped recovery.
+ *
+ * Appends only enqueue the entry; a background writer drains everything queued,
+ * writes it with one system call and forces it to disk once per batch, so the
+ * calling thread never waits on I/O. If the queue is ever full the entry is
+ * counted as dropped rather than blocking the caller.
+ *
+ * Record layout (big-endian):
+ *   int    bodyLength
+ *   int    crc32(body)
+ *   body:  byte type, long epochNanos, double result, int length, UTF-8 expression
+ *
+ * A record whose length or checksum does not match marks a torn write and ends
+ * the segment during recovery. Every process start writes to a fresh segment,
+ * created on its first write so idle starts do not push real segments out.
+ * Segments are numbered and deleted by whoever owns the directory, so a log holds
+ * an exclusive lock on it and a second log on the same directory fails to open.
+ */
+public class HistoryLog implements AutoCloseable {
+
+    private static final byte ENTRY = 1;
+    private static final byte CLEAR = 2;
+
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+    private static final int FIXED_BODY_SIZE = 1 + Long.BYTES + Double.BYTES + Integer.BYTES;
+    // A UTF-8 char takes at most 3 bytes, so longer expressions could overflow bodyLength
+    private static final int MAX_EXPRESSION_CHARS = (Integer.MAX_VALUE - HEADER_SIZE - FIXED_BODY_SIZE) / 3;
+    private static final String SEGMENT_PREFIX = "history-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String LOCK_FILE = "history.lock";
+
+    // Placeholder queued by clear(); compared by identity
+    private static final HistoryManager.CalculationEntry CLEAR_MARKER =
+            new HistoryManager.CalculationEntry("", 0, LocalDateTime.MIN);
+
+    private final Path directory;
+    private final FileChannel lockChannel;
+    private final FileLock directoryLock;
+    private final long maxSegmentBytes;
+    private final int maxSegments;
+    private final BlockingQueue<HistoryManager.CalculationEntry> queue;
+    private final Thread writer;
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Object durableLock = new Object();
+
+    private volatile boolean running = true;
+    private volatile IOException writeFailure;
+    private long durable; // Guarded by durableLock
+
+    // Writer thread only
+    private FileChannel segment; // Null until the first write
+    private long segmentNumber;
+    private long segmentBytes;
+    private ByteBuffer batchBuffer = ByteBuffer.allocateDirect(256 * 1024);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Open a log in the directory with default segment size and retention
+     */
+    public static HistoryLog open(Path directory) throws IOException {
+        return new HistoryLog(directory, 16L * 1024 * 1024, 16, 65_536);
+    }
+
+    /**
+     * Open a log with custom segment size, retained segment count and queue capacity;
+     * fails if another log, in this process or another, has the directory open
+     */
+    public HistoryLog(Path directory, long maxSegmentBytes, int maxSegments, int queueCapacity)
+            throws IOException {
+        if (maxSegmentBytes <= 0 || maxSegments <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("Log limits must be positive");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxSegments = maxSegments;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        this.lockChannel = FileChannel.open(directory.resolve(LOCK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            FileLock lock;
+            try {
+                lock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null; // Held by another log in this process
+            }
+            if (lock == null) {
+                throw new IOException("History log directory is in use by another calculator: " + directory);
+            }
+            this.directoryLock = lock;
+            List<Long> existing = listSegments();
+            this.segmentNumber = existing.isEmpty() ? 0 : existing.get(existing.size() - 1);
+        } catch (IOException | RuntimeException e) {
+            lockChannel.close(); // Also releases the lock
+            throw e;
+        }
+
+        this.writer = new Thread(this::writeLoop, "history-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queue an entry for writing; never blocks. An expression too long for a record
+     * is counted as dropped rather than written shortened.
+     */
+    public void append(HistoryManager.CalculationEntry entry) {
+        if (!running) {
+            throw new IllegalStateException("History log is closed");
+        }
+        if (entry.expression().length() <= MAX_EXPRESSION_CHARS && queue.offer(entry)) {
+            enqueued.incrementAndGet();
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record that history was cleared, so recovery ignores everything before it
+     */
+    public void appendClear() {
+        append(CLEAR_MARKER);
+    }
+
+    /**
+     * Wait until every entry appended so far is on disk
+     */
+    public void flush() throws IOException {
+        long target = enqueued.get();
+        long written;
+        synchronized (durableLock) {
+            while (durable < target && writeFailure == null && writer.isAlive()) {
+                try {
+                    durableLock.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while flushing history log", e);
+                }
+            }
+            written = durable;
+        }
+        if (writeFailure != null) {
+            throw writeFailure;
+        }
+        if (written < target) {
+            throw new IOException(String.format(
+                    "History log writer stopped with %d entries not written", target - written));
+        }
+    }
+
+    /**
+     * Number of entries rejected because the write queue was full or they were too long
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Flush pending entries and stop the writer
+     */
+    @Override
+    public void close() throws IOException {
+        if (!running) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            running = false;
+            writer.interrupt();
+            try {
+                writer.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                if (segment != null) {
+                    segment.close();
+                }
+            } finally {
+                directoryLock.release();
+                lockChannel.close();
+            }
+        }
+    }
+
+    /**
+     * Recover the most recent entries, oldest first, reading segments newest to oldest
+     */
+    public List<HistoryManager.CalculationEntry> recover(int maxEntries) throws IOException {
+        Deque<HistoryManager.CalculationEntry> recovered = new ArrayDeque<>();
+        List<Long> segments = listSegments();
+
+        for (int i = segments.size() - 1; i >= 0 && recovered.size() < maxEntries; i--) {
+            Path path = segmentPath(segments.get(i));
+            List<HistoryManager.CalculationEntry> entries = new ArrayList<>();
+            boolean cleared = readSegment(path, entries);
+
+            // Older segments' entries go in front of the newer ones already recovered
+            for (int j = entries.size() - 1; j >= 0 && recovered.size() < maxEntries; j--) {
+                recovered.addFirst(entries.get(j));
+            }
+            if (cleared) {
+                break;
+            }
+        }
+        return new ArrayList<>(recovered);
+    }
+
+    /**
+     * Scan one memory-mapped segment; returns true if it contains a clear marker,
+     * in which case only the entries after the last marker are returned
+     */
+    private boolean readSegment(Path path, List<HistoryManager.CalculationEntry> entries) throws IOException {
+        boolean cleared = false;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() == 0) {
+                return false;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 checksum = new CRC32();
+
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int start = buffer.position();
+                int bodyLength = buffer.getInt();
+                int expectedCrc = buffer.getInt();
+                if (bodyLength < FIXED_BODY_SIZE || bodyLength > buffer.remaining()) {
+                    break; // Torn or garbage tail
+                }
+
+                ByteBuffer body = buffer.slice(start + HEADER_SIZE, bodyLength);
+                checksum.reset();
+                checksum.update(body.duplicate());
+                if ((int) checksum.getValue() != expectedCrc) {
+                    break;
+                }
+                buffer.position(start + HEADER_SIZE + bodyLength);
+
+                byte type = body.get();
+                long epochNanos = body.getLong();
+                double result = body.getDouble();
+                int expressionLength = body.getInt();
+                if (type == CLEAR) {
+                    entries.clear();
+                    cleared = true;
+                } else if (type == ENTRY && expressionLength == body.remaining()) {
+                    byte[] expression = new byte[expressionLength];
+                    body.get(expression);
+                    entries.add(new HistoryManager.CalculationEntry(
+                            new String(expression, StandardCharsets.UTF_8), result, HistoryManager.fromEpochNanos(epochNanos)));
+                }
+            }
+        }
+        return cleared;
+    }
+
+    /**
+     * Writer thread: drain the queue, write the batch, force once (group commit)
+     */
+    private void writeLoop() {
+        List<HistoryManager.CalculationEntry> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                HistoryManager.CalculationEntry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch);
+
+                for (HistoryManager.CalculationEntry entry : batch) {
+                    if (entry == CLEAR_MARKER) {
+                        writeBatch();
+                        openNextSegment(); // Everything before the marker is now obsolete
+                        deleteSegmentsBefore(segmentNumber);
+                    }
+                    encode(entry);
+                }
+                writeBatch();
+                segment.force(false);
+                markDurable(batch.size());
+                batch.clear();
+            } catch (InterruptedException e) {
+                // close() interrupts us; loop again to drain what is left
+            } catch (IOException e) {
+                writeFailure = e;
+                markDurable(0);
+                return;
+            } catch (RuntimeException e) {
+                writeFailure = new IOException("History log writer failed: " + e, e);
+                markDurable(0);
+                return;
+            }
+        }
+    }
+
+    private void encode(HistoryManager.CalculationEntry entry) throws IOException {
+        boolean clear = entry == CLEAR_MARKER;
+        byte[] expression = clear ? new byte[0] : entry.expression().getBytes(StandardCharsets.UTF_8);
+
+        int bodyLength = FIXED_BODY_SIZE + expression.length;
+        int recordLength = HEADER_SIZE + bodyLength;
+        if (batchBuffer.remaining() < recordLength) {
+            writeBatch();
+            if (batchBuffer.capacity() < recordLength) {
+                batchBuffer = ByteBuffer.allocateDirect(recordLength);
+            }
+        }
+        if (segment != null && segmentBytes > 0
+                && segmentBytes + batchBuffer.position() + recordLength > maxSegmentBytes) {
+            writeBatch();
+            segment.force(false);
+            openNextSegment();
+        }
+
+        int start = batchBuffer.position();
+        batchBuffer.putInt(bodyLength);
+        batchBuffer.putInt(0); // Checksum patched below
+        batchBuffer.put(clear ? CLEAR : ENTRY);
+        batchBuffer.putLong(clear ? 0 : HistoryManager.toEpochNanos(entry.timestamp()));
+        batchBuffer.putDouble(clear ? 0 : entry.result());
+        batchBuffer.putInt(expression.length);
+        batchBuffer.put(expression);
+
+        crc.reset();
+        crc.update(batchBuffer.slice(start + HEADER_SIZE, bodyLength));
+        batchBuffer.putInt(start + Integer.BYTES, (int) crc.getValue());
+    }
+
+    private void writeBatch() throws IOException {
+        if (segment == null) {
+            if (batchBuffer.position() == 0) {
+                return;
+            }
+            openNextSegment();
+        }
+        batchBuffer.flip();
+        while (batchBuffer.hasRemaining()) {
+            segmentBytes += segment.write(batchBuffer);
+        }
+        batchBuffer.clear();
+    }
+
+    private void markDurable(int count) {
+        synchronized (durableLock) {
+            durable += count;
+            durableLock.notifyAll();
+        }
+    }
+
+    private void openNextSegment() throws IOException {
+        if (segment != null) {
+            segment.close();
+        }
+        segmentNumber++;
+        segment = FileChannel.open(segmentPath(segmentNumber),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        segmentBytes = 0;
+        deleteSegmentsBefore(segmentNumber - maxSegments + 1);
+    }
+
+    private void deleteSegmentsBefore(long firstKept) throws IOException {
+        for (long number : listSegments()) {
+            if (number < firstKept) {
+                Files.deleteIfExists(segmentPath(number));
+            }
+        }
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(String.format("%s%012d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+}
@@ -1,14 +1,45 @@
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 
 /**
  * Manages calculation history with timestamps and operations tracking.
  * Demonstrates collections usage, immutability, and data persistence concepts.
+ *
+ * Entries live in a circular buffer, so adding an entry and evicting the oldest one
+ * are O(1) and entry i (0 = most recent) is found directly. The buffer is stored by
+ * column: results in a double[], timestamps as epoch nanoseconds in a long[] and
+ * expressions as ids into a dictionary of distinct strings. A row costs 20 bytes
+ * instead of a record, a String and a LocalDateTime, and scans over results touch
+ * one dense array. CalculationEntry objects are only created when asked for.
+ * The buffer grows on demand up to the size limit.
+ *
+ * With a ColdHistoryStore attached, the buffer is only the hot window: entries it
+ * evicts move off-heap (and from there to disk) instead of being lost, and every
+ * query below covers both tiers, hot entries first.
+ *
+ * Every row gets a sequence number and is added to a trigram index and an ordered
+ * result index, so substring search only looks at rows whose expression matches
+ * and result lookups are logarithmic. A compensated sum and a quantile sketch are
+ * updated the same way, so the summary statistics never need a scan.
+ *
+ * Timestamps are UTC epoch nanoseconds and never go backwards: if the clock is
+ * stepped back, new entries repeat the newest timestamp until it catches up. They
+ * are therefore always in order, even across a DST change, and time-range queries
+ * binary-search them. Per-second, per-minute, per-hour and per-day rollups count
+ * every calculation as it is added, even after the entry itself has left history.
+ *
+ * Retention policies are applied by compact(), never while adding, so adding stays
+ * O(1). Compaction removes entries from the oldest end, which keeps the indexes in
+ * order. Every Nth entry beyond the sampling horizon moves to a small off-heap sample
+ * tier, older than everything else, that positions and time ranges still cover.
  */
-public class HistoryManager {
+public class HistoryManager implements CalculationHistory {
 
     /**
      * Record to store calculation entries (Java 14+ feature, can be replaced with
@@ -30,8 +61,49 @@ public class HistoryManager {
         }
     }
 
-    private final List<CalculationEntry> history;
+    /**
+     * Rollup bucket widths, each with how many buckets are kept
+     */
+    public enum Resolution {
+        SECOND(1_000_000_000L, 3600),
+        MINUTE(60_000_000_000L, 24 * 60),
+        HOUR(3_600_000_000_000L, 30 * 24),
+        DAY(86_400_000_000_000L, 10 * 366);
+
+        private final long widthNanos;
+        private final int retainedBuckets;
+
+        Resolution(long widthNanos, int retainedBuckets) {
+            this.widthNanos = widthNanos;
+            this.retainedBuckets = retainedBuckets;
+        }
+    }
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int ROW_BYTES = Double.BYTES + Long.BYTES + Integer.BYTES;
+    private static final int SAMPLE_BLOCK_SIZE = 16 * 1024;
+
+    // Columns of the ring; row i of each belongs to the same entry
+    private double[] results;
+    private long[] timestamps;
+    private int[] expressionIds;
+    private final ExpressionDictionary expressions = new ExpressionDictionary();
+    private final TrigramIndex expressionIndex = new TrigramIndex();
+    private final ResultIndex resultIndex = new ResultIndex();
+    private final CompensatedSum resultSum = new CompensatedSum();
+    private final QuantileSketch resultSketch = new QuantileSketch();
+    private final HistoryRollup[] rollups = new HistoryRollup[Resolution.values().length];
+    private long sequence; // Sequence number of the next entry
+    private long newestEpochNanos = Long.MIN_VALUE; // Timestamps never go below this
+
+    private int next; // Slot the next entry is written to
+    private int size;
     private final int maxHistorySize;
+    private HistoryLog log; // Optional durable copy of every entry
+    private HeavyHitters profile; // Optional count of how often each expression is evaluated
+    private final ColdHistoryStore coldStore; // Optional tier for entries evicted from the window
+    private ColdHistoryStore samples; // Entries kept by sampling beyond the retention horizon
+    private long sampleCounter;
 
     /**
      * Create history manager with default size limit
@@ -44,34 +116,376 @@ public class HistoryManager {
      * Create history manager with custom size limit
      */
     public HistoryManager(int maxSize) {
-        if (maxSize <= 0) {
+        this(maxSize, null);
+    }
+
+    /**
+     * Create history manager with an on-heap window of the given size that moves
+     * older entries to a cold store
+     */
+    public HistoryManager(int hotSize, ColdHistoryStore coldStore) {
+        if (hotSize <= 0) {
             throw new IllegalArgumentException("Max history size must be positive");
         }
-        this.maxHistorySize = maxSize;
-        this.history = new ArrayList<>();
+        this.maxHistorySize = hotSize;
+        this.coldStore = coldStore;
+        allocate(Math.min(hotSize, INITIAL_CAPACITY));
+        for (Resolution resolution : Resolution.values()) {
+            rollups[resolution.ordinal()] = new HistoryRollup(resolution.widthNanos, resolution.retainedBuckets);
+        }
+        if (coldStore != null) {
+            coldStore.setDropListener(row -> {
+                untrack(row.expression(), row.result());
+                return true;
+            });
+        }
     }
 
     /**
      * Add a calculation to history
      */
     public void addEntry(String expression, double result) {
-        CalculationEntry entry = CalculationEntry.create(expression, result);
-        history.add(0, entry); // Add to beginning for most recent first
+        long epochNanos = store(expression, result, currentEpochNanos());
+        if (log != null) {
+            log.append(new CalculationEntry(expression, result, fromEpochNanos(epochNanos)));
+        }
+        if (profile != null && !ExpressionCompiler.hasResultReferences(expression)) {
+            profile.add(expression); // Expressions reading history can never be pre-compiled
+        }
+    }
+
+    /**
+     * Reload the most recent entries from a durable log and record new entries to it
+     */
+    public void attachLog(HistoryLog historyLog) throws IOException {
+        for (CalculationEntry entry : historyLog.recover(maxHistorySize)) {
+            restoreEntry(entry);
+        }
+        this.log = historyLog;
+    }
+
+    /**
+     * Add an entry that already carries its timestamp, without writing it to the log
+     */
+    protected void restoreEntry(CalculationEntry entry) {
+        store(entry.expression(), entry.result(), toEpochNanos(entry.timestamp()));
+    }
+
+    /**
+     * Add an entry with a timestamp in epoch nanoseconds, without writing it to the log
+     */
+    void restoreEntry(String expression, double result, long epochNanos) {
+        store(expression, result, epochNanos);
+    }
+
+    /**
+     * Get the attached durable log, or null
+     */
+    public HistoryLog getLog() {
+        return log;
+    }
+
+    /**
+     * Count every new entry's expression in a frequency profile (entries restored
+     * from a log are not counted again, nor are result references)
+     */
+    public void attachProfile(HeavyHitters heavyHitters) {
+        this.profile = heavyHitters;
+    }
+
+    /**
+     * Get the attached frequency profile, or null
+     */
+    public HeavyHitters getProfile() {
+        return profile;
+    }
+
+    /**
+     * Add a row; returns its timestamp, which is raised to the newest one so far if
+     * the clock went backwards
+     */
+    private long store(String expression, double result, long epochNanos) {
+        epochNanos = Math.max(epochNanos, newestEpochNanos);
+        newestEpochNanos = epochNanos;
+        if (size == results.length && size < maxHistorySize) {
+            grow();
+        }
+
+        // When full, this overwrites the oldest entry
+        if (size == results.length) {
+            String evicted = expressions.get(expressionIds[next]);
+            if (coldStore != null) {
+                coldStore.append(evicted, results[next], timestamps[next]);
+            } else {
+                untrack(evicted, results[next]);
+            }
+            expressions.release(expressionIds[next]);
+        }
+        expressionIndex.add(expression, sequence);
+        resultIndex.add(result, sequence++);
+        resultSum.add(result);
+        resultSketch.add(result);
+        for (HistoryRollup rollup : rollups) {
+            rollup.add(epochNanos, result);
+        }
+        results[next] = result;
+        timestamps[next] = epochNanos;
+        expressionIds[next] = expressions.acquire(expression);
+        next = (next + 1) % results.length;
+        if (size < results.length) {
+            size++;
+        }
+        return epochNanos;
+    }
+
+    /**
+     * Apply a retention policy as of now
+     */
+    public long compact(HistoryRetention retention) {
+        return compact(retention, currentEpochNanos());
+    }
+
+    /**
+     * Remove the entries a retention policy no longer keeps, oldest first; returns how
+     * many left history. Entries sampled beyond the horizon can still be read by
+     * position and time, but are no longer found by searches or counted in statistics.
+     */
+    public long compact(HistoryRetention retention, LocalDateTime now) {
+        return compact(retention, toEpochNanos(now));
+    }
+
+    private long compact(HistoryRetention retention, long nowNanos) {
+        long expiredBefore = retention.getMaxAge() == null ? Long.MIN_VALUE
+                : nowNanos - retention.getMaxAge().toNanos();
+        long sampledBefore = retention.getSampleHorizon() == null ? Long.MIN_VALUE
+                : nowNanos - retention.getSampleHorizon().toNanos();
+        long maxBytes = retention.getMaxBytes();
+        long sizeBefore = getTotalSize();
+
+        // Samples are the oldest tier, so they go first
+        if (samples != null) {
+            samples.removeOldest(row -> row.epochNanos() < expiredBefore || getStorageBytes() > maxBytes);
+        }
+
+        ColdHistoryStore.RowVisitor retire = row -> {
+            long time = row.epochNanos();
+            boolean expired = time < expiredBefore;
+            boolean overBudget = !expired && getStorageBytes() > maxBytes;
+            if (!expired && !overBudget && time >= sampledBefore) {
+                return false; // Everything newer is kept too
+            }
+            untrack(row.expression(), row.result());
+            if (!expired && !overBudget && sampleCounter++ % retention.getSampleInterval() == 0) {
+                if (samples == null) {
+                    samples = new ColdHistoryStore(SAMPLE_BLOCK_SIZE, Long.MAX_VALUE, null, 0);
+                }
+                samples.append(row.expression(), row.result(), time);
+            }
+            return true;
+        };
+
+        // Then the cold tier, and the hot window only once the cold tier is empty
+        if (coldStore != null) {
+            coldStore.removeOldest(retire);
+        }
+        if (coldStore == null || coldStore.getCount() == 0) {
+            HotCursor oldest = new HotCursor();
+            while (size > 0) {
+                oldest.slot = slot(size - 1);
+                if (!retire.visit(oldest)) {
+                    break;
+                }
+                expressions.release(expressionIds[oldest.slot]);
+                size--;
+            }
+        }
+        return sizeBefore - getTotalSize();
+    }
+
+    /**
+     * Get the approximate bytes history entries take on and off the heap and on disk
+     */
+    public long getStorageBytes() {
+        long bytes = (long) size * ROW_BYTES;
+        if (coldStore != null) {
+            bytes += coldStore.getOffHeapBytes() + coldStore.getDiskBytes() + coldStore.getOverflowBytes();
+        }
+        if (samples != null) {
+            bytes += samples.getOffHeapBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * A HistoryManager is only used by one thread, so it is its own consistent view
+     */
+    @Override
+    public HistoryManager snapshot() {
+        return this;
+    }
+
+    /**
+     * Timestamps never decrease with position, so the time range narrows the
+     * positions once instead of being checked per entry
+     */
+    @Override
+    public long forEachOldestFirst(int from, int to, LocalDateTime fromTime, LocalDateTime toTime,
+            EntryConsumer consumer) throws IOException {
+        int newest = from;
+        int oldest = Math.min(to, getSize()) - 1;
+        if (fromTime != null) {
+            oldest = Math.min(oldest, findIndexAtOrBefore(fromTime.minusNanos(1)) - 1);
+        }
+        if (toTime != null) {
+            newest = Math.max(newest, findIndexAtOrBefore(toTime));
+        }
+        long count = 0;
+        for (int position = oldest; position >= newest; position--) {
+            consumer.accept(getEntry(position));
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Cursor over one ring slot, so compaction treats hot and cold rows alike
+     */
+    private final class HotCursor implements ColdHistoryStore.Cursor {
+        int slot;
+
+        @Override
+        public double result() {
+            return results[slot];
+        }
+
+        @Override
+        public long epochNanos() {
+            return timestamps[slot];
+        }
+
+        @Override
+        public String expression() {
+            return expressions.get(expressionIds[slot]);
+        }
+    }
+
+    /**
+     * Take an entry that left history for good out of the indexes and statistics
+     */
+    private void untrack(String expression, double result) {
+        expressionIndex.removeOldest(expression);
+        resultIndex.removeOldest(result);
+        resultSum.subtract(result);
+        resultSketch.remove(result);
+    }
+
+    private void allocate(int capacity) {
+        results = new double[capacity];
+        timestamps = new long[capacity];
+        expressionIds = new int[capacity];
+    }
+
+    /**
+     * Double the ring (up to the size limit), unrolling it so the oldest entry is first
+     */
+    private void grow() {
+        double[] oldResults = results;
+        long[] oldTimestamps = timestamps;
+        int[] oldExpressionIds = expressionIds;
+        int oldest = slot(size - 1);
+
+        allocate((int) Math.min((long) oldResults.length * 2, maxHistorySize));
+        int tail = oldResults.length - oldest;
+        System.arraycopy(oldResults, oldest, results, 0, tail);
+        System.arraycopy(oldResults, 0, results, tail, oldest);
+        System.arraycopy(oldTimestamps, oldest, timestamps, 0, tail);
+        System.arraycopy(oldTimestamps, 0, timestamps, tail, oldest);
+        System.arraycopy(oldExpressionIds, oldest, expressionIds, 0, tail);
+        System.arraycopy(oldExpressionIds, 0, expressionIds, tail, oldest);
+        next = size;
+    }
+
+    /**
+     * Ring slot of the entry at a position, 0 being the most recent
+     */
+    private int slot(int index) {
+        int slot = next - 1 - index;
+        return slot < 0 ? slot + results.length : slot;
+    }
+
+    /**
+     * Get entry by position, 0 being the most recent
+     */
+    public CalculationEntry getEntry(int index) {
+        checkIndex(index);
+        if (index >= size) {
+            return olderTier(index - size).getEntry(olderIndex(index - size));
+        }
+        int slot = slot(index);
+        return new CalculationEntry(expressions.get(expressionIds[slot]), results[slot],
+                fromEpochNanos(timestamps[slot]));
+    }
 
-        // Trim history if it exceeds size limit
-        if (history.size() > maxHistorySize) {
-            // Remove oldest entries (from the end)
-            List<CalculationEntry> toRemove = new ArrayList<>(
-                    history.subList(maxHistorySize, history.size()));
-            history.removeAll(toRemove);
+    /**
+     * Get result by position without materializing the entry
+     */
+    public double getResult(int index) {
+        checkIndex(index);
+        return index < size ? results[slot(index)] : getEntry(index).result();
+    }
+
+    /**
+     * Get expression by position without materializing the entry
+     */
+    public String getExpression(int index) {
+        checkIndex(index);
+        return index < size ? expressions.get(expressionIds[slot(index)]) : getEntry(index).expression();
+    }
+
+    /**
+     * Cold tier or sample tier holding the entry at a position past the hot window
+     */
+    private ColdHistoryStore olderTier(long olderIndex) {
+        return coldStore != null && olderIndex < coldStore.getCount() ? coldStore : samples;
+    }
+
+    private long olderIndex(long olderIndex) {
+        return coldStore != null && olderIndex >= coldStore.getCount()
+                ? olderIndex - coldStore.getCount() : olderIndex;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= getSize()) {
+            throw new IndexOutOfBoundsException("History index " + index + " out of range 0.." + (getSize() - 1));
         }
     }
 
+    /**
+     * Get number of entries in the on-heap window
+     */
+    public int getHotSize() {
+        return size;
+    }
+
+    /**
+     * Get the cold store, or null
+     */
+    public ColdHistoryStore getColdStore() {
+        return coldStore;
+    }
+
+    /**
+     * Get number of distinct expressions in history
+     */
+    public int getDistinctExpressionCount() {
+        return expressions.getSize();
+    }
+
     /**
      * Get all history entries (immutable view)
      */
     public List<CalculationEntry> getAllEntries() {
-        return Collections.unmodifiableList(new ArrayList<>(history));
+        return Collections.unmodifiableList(getRecentEntries(getSize()));
     }
 
     /**
@@ -81,38 +495,168 @@ public class HistoryManager {
         if (count <= 0)
             return new ArrayList<>();
 
-        int size = Math.min(count, history.size());
-        return history.subList(0, size);
+        int limit = Math.min(count, getSize());
+        List<CalculationEntry> entries = new ArrayList<>(limit);
+        for (int i = 0; i < Math.min(limit, size); i++) {
+            entries.add(getEntry(i));
+        }
+        if (limit > size && coldStore != null) {
+            coldStore.forEachNewestFirst(row -> {
+                entries.add(toEntry(row));
+                return entries.size() < limit;
+            });
+        }
+        if (entries.size() < limit && samples != null) {
+            samples.forEachNewestFirst(row -> {
+                entries.add(toEntry(row));
+                return entries.size() < limit;
+            });
+        }
+        return entries;
     }
 
     /**
      * Get history size
      */
     public int getSize() {
-        return history.size();
+        return (int) Math.min(Integer.MAX_VALUE, getTotalSize());
+    }
+
+    private long getTotalSize() {
+        long total = size;
+        if (coldStore != null) {
+            total += coldStore.getCount();
+        }
+        if (samples != null) {
+            total += samples.getCount();
+        }
+        return total;
     }
 
     /**
      * Check if history is empty
      */
     public boolean isEmpty() {
-        return history.isEmpty();
+        return getSize() == 0;
     }
 
     /**
      * Clear all history
      */
     public void clear() {
-        history.clear();
+        allocate(Math.min(maxHistorySize, INITIAL_CAPACITY));
+        expressions.clear();
+        expressionIndex.clear();
+        resultIndex.clear();
+        resultSum.clear();
+        resultSketch.clear();
+        for (HistoryRollup rollup : rollups) {
+            rollup.clear();
+        }
+        next = 0;
+        size = 0;
+        if (coldStore != null) {
+            coldStore.clear();
+        }
+        if (samples != null) {
+            samples.clear();
+        }
+        sampleCounter = 0;
+        if (log != null) {
+            log.appendClear();
+        }
     }
 
     /**
      * Find entries by result value
      */
     public List<CalculationEntry> findByResult(double result) {
-        return history.stream()
-                .filter(entry -> Math.abs(entry.result() - result) < 0.0001) // Floating point comparison
-                .collect(java.util.stream.Collectors.toList());
+        return findByResult(result, 0.0001); // Floating point comparison
+    }
+
+    /**
+     * Find entries whose result is within a tolerance of the value (newest first)
+     */
+    public List<CalculationEntry> findByResult(double result, double tolerance) {
+        return toEntries(resultIndex.near(result, tolerance));
+    }
+
+    /**
+     * Find entries with results between two bounds, inclusive (newest first)
+     */
+    public List<CalculationEntry> findByResultBetween(double low, double high) {
+        return toEntries(resultIndex.between(low, high));
+    }
+
+    /**
+     * Find the entries whose results are closest to the value (closest first)
+     */
+    public List<CalculationEntry> findNearestResults(double result, int count) {
+        return toEntries(resultIndex.nearest(result, count));
+    }
+
+    /**
+     * Find entries with timestamps in [from, to] (newest first)
+     */
+    public List<CalculationEntry> findByTimeRange(LocalDateTime from, LocalDateTime to) {
+        List<CalculationEntry> entries = new ArrayList<>();
+        long fromNanos = toEpochNanos(from);
+        long toNanos = toEpochNanos(to);
+        for (int i = firstIndexAtOrBefore(toNanos); i < getSize() && timestampAt(i) >= fromNanos; i++) {
+            entries.add(getEntry(i));
+        }
+        return entries;
+    }
+
+    /**
+     * Count entries with timestamps in [from, to] using two binary searches
+     */
+    public int countByTimeRange(LocalDateTime from, LocalDateTime to) {
+        long fromNanos = toEpochNanos(from);
+        return Math.max(0, firstIndexAtOrBefore(fromNanos - 1) - firstIndexAtOrBefore(toEpochNanos(to)));
+    }
+
+    /**
+     * Get per-bucket count, sum, min and max of results in [from, to] (oldest first)
+     */
+    public List<HistoryRollup.Bucket> getRollup(Resolution resolution, LocalDateTime from, LocalDateTime to) {
+        return rollups[resolution.ordinal()].getBuckets(toEpochNanos(from), toEpochNanos(to));
+    }
+
+    /**
+     * Get the rollup for a resolution
+     */
+    public HistoryRollup getRollup(Resolution resolution) {
+        return rollups[resolution.ordinal()];
+    }
+
+    /**
+     * Get the position of the newest entry at or before the time, or getSize() if none
+     */
+    public int findIndexAtOrBefore(LocalDateTime time) {
+        return firstIndexAtOrBefore(toEpochNanos(time));
+    }
+
+    /**
+     * Smallest position whose timestamp is at or before the time; timestamps only go
+     * down as the position goes up
+     */
+    private int firstIndexAtOrBefore(long epochNanos) {
+        int low = 0;
+        int high = getSize();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestampAt(mid) <= epochNanos) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    private long timestampAt(int index) {
+        return index < size ? timestamps[slot(index)] : olderTier(index - size).getEpochNanos(olderIndex(index - size));
     }
 
     /**
@@ -124,44 +668,83 @@ public class HistoryManager {
         }
 
         final String search = searchText.toLowerCase().trim();
-        return history.stream()
-                .filter(entry -> entry.expression().toLowerCase().contains(search))
-                .collect(java.util.stream.Collectors.toList());
+        return toEntries(expressionIndex.search(search));
+    }
+
+    /**
+     * Look up entries by sequence number
+     */
+    private List<CalculationEntry> toEntries(long[] sequences) {
+        List<CalculationEntry> entries = new ArrayList<>(sequences.length);
+        for (long match : sequences) {
+            entries.add(getEntry((int) (sequence - 1 - match)));
+        }
+        return entries;
     }
 
     /**
      * Get summary statistics
      */
     public String getSummary() {
-        if (history.isEmpty()) {
+        if (isEmpty()) {
             return "No calculations in history";
         }
 
-        int totalCount = history.size();
-        double minResult = history.stream().mapToDouble(CalculationEntry::result).min().orElse(0);
-        double maxResult = history.stream().mapToDouble(CalculationEntry::result).max().orElse(0);
-        double avgResult = history.stream().mapToDouble(CalculationEntry::result).average().orElse(0);
-
-        CalculationEntry oldest = history.get(history.size() - 1);
-        CalculationEntry newest = history.get(0);
-
-        return String.format(
-                "History Summary:\\n" +
-                        "Total calculations: %d\\n" +
-                        "Result range: %.4f to %.4f\\n" +
-                        "Average result: %.4f\\n" +
-                        "Oldest calculation: %s\\n" +
+        // The result index, sum and sketch cover the hot and cold tiers, so the
+        // statistics are over those rows only; samples are counted separately
+        long keptCount = resultIndex.getEntryCount();
+        long sampledCount = samples == null ? 0 : samples.getCount();
+        CalculationEntry oldest = getEntry(getSize() - 1);
+        CalculationEntry newest = getEntry(0);
+
+        StringBuilder summary = new StringBuilder("History Summary:\\n");
+        summary.append(String.format("Total calculations: %d", keptCount + sampledCount));
+        if (sampledCount > 0) {
+            summary.append(String.format(" (%d older ones sampled, not in the statistics below)", sampledCount));
+        }
+        summary.append("\\n");
+        if (keptCount > 0) {
+            summary.append(String.format(
+                    "Result range: %.4f to %.4f\\n" +
+                            "Average result: %.4f\\n" +
+                            "Percentiles: p50 %.4f, p95 %.4f, p99 %.4f\\n",
+                    resultIndex.getMin(), resultIndex.getMax(), resultSum.get() / keptCount,
+                    getResultQuantile(0.50), getResultQuantile(0.95), getResultQuantile(0.99)));
+        }
+        summary.append(String.format(
+                "Oldest calculation: %s\\n" +
                         "Newest calculation: %s",
-                totalCount, minResult, maxResult, avgResult,
                 oldest.timestamp().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")),
-                newest.timestamp().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")));
+                newest.timestamp().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"))));
+        return summary.toString();
+    }
+
+    /**
+     * Get the sum of all results in history
+     */
+    public double getResultSum() {
+        return resultSum.get();
+    }
+
+    /**
+     * Get an approximate quantile (0..1) of the results, within 1% relative error
+     */
+    public double getResultQuantile(double quantile) {
+        return resultSketch.getQuantile(quantile);
+    }
+
+    /**
+     * Get the sketch behind getResultQuantile, e.g. to merge with other histories
+     */
+    public QuantileSketch getResultSketch() {
+        return resultSketch;
     }
 
     /**
      * Export history as formatted text
      */
     public String exportAsText() {
-        if (history.isEmpty()) {
+        if (isEmpty()) {
             return "No calculation history to export";
         }
 
@@ -169,10 +752,19 @@ public class HistoryManager {
         export.append("CALCULATION HISTORY EXPORT\\n");
         export.append("========================\\n\\n");
 
-        for (int i = 0; i < history.size(); i++) {
-            CalculationEntry entry = history.get(i);
+        for (int i = 0; i < size; i++) {
+            CalculationEntry entry = getEntry(i);
             export.append(String.format("%d. %s\\n", i + 1, entry.toString()));
         }
+        int[] number = {size};
+        for (ColdHistoryStore tier : new ColdHistoryStore[] {coldStore, samples}) {
+            if (tier != null) {
+                tier.forEachNewestFirst(row -> {
+                    export.append(String.format("%d. %s\\n", ++number[0], toEntry(row).toString()));
+                    return true;
+                });
+            }
+        }
 
         export.append("\\n").append(getSummary());
         return export.toString();
@@ -182,7 +774,7 @@ public class HistoryManager {
      * Get formatted history for display
      */
     public String getFormattedHistory(int maxEntries) {
-        if (history.isEmpty()) {
+        if (isEmpty()) {
             return "No calculations in history yet";
         }
 
@@ -194,8 +786,8 @@ public class HistoryManager {
             formatted.append(String.format("%d. %s\\n", i + 1, entries.get(i).toString()));
         }
 
-        if (history.size() > maxEntries) {
-            formatted.append(String.format("\\n... and %d more entries\\n", history.size() - maxEntries));
+        if (getSize() > maxEntries) {
+            formatted.append(String.format("\\n... and %d more entries\\n", getSize() - maxEntries));
         }
 
         return formatted.toString();
@@ -205,12 +797,38 @@ public class HistoryManager {
      * Get expression for reuse (for UI to process)
      */
     public String getExpressionForReuse(int index) {
-        if (index < 1 || index > history.size()) {
+        if (index < 1 || index > getSize()) {
             return null; // Invalid index
         }
 
-        // Indices are 1-based in display, convert to 0-based for list access
-        CalculationEntry entry = history.get(index - 1);
-        return entry.expression();
+        // Indices are 1-based in display, convert to 0-based for ring access
+        return getExpression(index - 1);
+    }
+
+    private static CalculationEntry toEntry(ColdHistoryStore.Cursor row) {
+        return toEntry(row, row.expression());
+    }
+
+    private static CalculationEntry toEntry(ColdHistoryStore.Cursor row, String expression) {
+        return new CalculationEntry(expression, row.result(), fromEpochNanos(row.epochNanos()));
+    }
+
+    /**
+     * Timestamps are stored as UTC epoch nanoseconds; LocalDateTimes are how they read
+     * in the system time zone
+     */
+    static long toEpochNanos(LocalDateTime timestamp) {
+        Instant instant = timestamp.atZone(ZoneId.systemDefault()).toInstant();
+        return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+    }
+
+    static LocalDateTime fromEpochNanos(long epochNanos) {
+        return LocalDateTime.ofInstant(Instant.ofEpochSecond(Math.floorDiv(epochNanos, 1_000_000_000L),
+                Math.floorMod(epochNanos, 1_000_000_000L)), ZoneId.systemDefault());
+    }
+
+    static long currentEpochNanos() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000_000L + now.getNano();
     }
 }
@@ -0,0 +1,74 @@
+import java.time.Duration;
+
+/**
+ * Rules for how long history entries are kept, applied by HistoryManager.compact().
+ * Demonstrates retention policies and sampling of old data.
+ *
+ * Entries older than the maximum age are removed, and the oldest entries are removed
+ * while history takes more than the byte budget. Beyond the sampling horizon only
+ * every Nth entry is kept. Removed entries stay counted in the history rollups, so
+ * old data survives as per-second to per-day aggregates.
+ */
+public class HistoryRetention {
+
+    private Duration maxAge;
+    private long maxBytes = Long.MAX_VALUE;
+    private Duration sampleHorizon;
+    private int sampleInterval;
+
+    /**
+     * Remove entries older than the given age
+     */
+    public HistoryRetention maxAge(Duration age) {
+        if (age.isNegative()) {
+            throw new IllegalArgumentException("Maximum age cannot be negative");
+        }
+        this.maxAge = age;
+        return this;
+    }
+
+    /**
+     * Remove the oldest entries while history takes more than the given bytes
+     */
+    public HistoryRetention maxBytes(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Maximum bytes cannot be negative");
+        }
+        this.maxBytes = bytes;
+        return this;
+    }
+
+    /**
+     * Keep only every Nth entry older than the horizon
+     */
+    public HistoryRetention keepEveryNthBeyond(Duration horizon, int interval) {
+        if (horizon.isNegative() || interval <= 0) {
+            throw new IllegalArgumentException("Horizon cannot be negative and interval must be positive");
+        }
+        this.sampleHorizon = horizon;
+        this.sampleInterval = interval;
+        return this;
+    }
+
+    /**
+     * Get the maximum age, or null if entries do not expire
+     */
+    public Duration getMaxAge() {
+        return maxAge;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Get the age beyond which entries are sampled, or null if they are not
+     */
+    public Duration getSampleHorizon() {
+        return sampleHorizon;
+    }
+
+    public int getSampleInterval() {
+        return sampleInterval;
+    }
+}
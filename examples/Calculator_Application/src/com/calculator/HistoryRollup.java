@@ -0,0 +1,205 @@
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed-width time buckets of count, sum, min and max over history results.
+ * Demonstrates pre-aggregation and time-indexed circular buffers.
+ *
+ * Bucket n covers [n * width, (n + 1) * width) in UTC epoch nanoseconds and lives in
+ * slot n % capacity, so finding a bucket is a division and a modulo. Moving into a
+ * new bucket resets the slots it passes over, which retires buckets older than the
+ * retention window. The slots grow with the time span actually covered, up to the
+ * retention window, so a short-lived history never pays for a month of hourly
+ * buckets. Rollups count every calculation as it arrives, independent of how many
+ * entries history itself keeps. Not thread-safe.
+ */
+public class HistoryRollup {
+
+    /**
+     * Aggregates for one bucket
+     */
+    public record Bucket(LocalDateTime start, long count, double sum, double min, double max) {
+
+        public double mean() {
+            return count == 0 ? Double.NaN : sum / count;
+        }
+    }
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private final long widthNanos;
+    private final int retainedBuckets;
+    private long[] bucketNumbers;
+    private long[] counts;
+    private double[] sums;
+    private double[] mins;
+    private double[] maxes;
+    private long oldest; // Oldest bucket number still covered; valid once newest is set
+    private long newest = Long.MIN_VALUE; // Newest bucket number seen
+
+    /**
+     * Create rollup with a bucket width and number of buckets kept
+     */
+    public HistoryRollup(long widthNanos, int retainedBuckets) {
+        if (widthNanos <= 0 || retainedBuckets <= 0) {
+            throw new IllegalArgumentException("Bucket width and count must be positive");
+        }
+        this.widthNanos = widthNanos;
+        this.retainedBuckets = retainedBuckets;
+        allocate(Math.min(retainedBuckets, INITIAL_CAPACITY));
+    }
+
+    private void allocate(int capacity) {
+        bucketNumbers = new long[capacity];
+        counts = new long[capacity];
+        sums = new double[capacity];
+        mins = new double[capacity];
+        maxes = new double[capacity];
+    }
+
+    /**
+     * Count a result at a point in time
+     */
+    public void add(long epochNanos, double result) {
+        add(epochNanos, 1, result, result, result);
+    }
+
+    /**
+     * Fold already aggregated values (e.g. a finer bucket) into the bucket holding the time
+     */
+    public void add(long epochNanos, long count, double sum, double min, double max) {
+        long bucket = Math.floorDiv(epochNanos, widthNanos);
+        if (newest == Long.MIN_VALUE) {
+            oldest = bucket;
+            newest = bucket;
+            reset(bucket);
+        } else if (bucket > newest) {
+            advanceTo(bucket);
+        } else if (bucket <= newest - retainedBuckets) {
+            return; // Older than anything retained
+        } else if (bucket < oldest) {
+            ensureCapacity(newest - bucket + 1);
+            for (long b = bucket; b < oldest; b++) {
+                reset(b);
+            }
+            oldest = bucket;
+        }
+
+        int slot = slot(bucket);
+        if (counts[slot] == 0) {
+            mins[slot] = min;
+            maxes[slot] = max;
+        } else {
+            mins[slot] = Math.min(mins[slot], min);
+            maxes[slot] = Math.max(maxes[slot], max);
+        }
+        counts[slot] += count;
+        sums[slot] += sum;
+    }
+
+    private void advanceTo(long bucket) {
+        oldest = Math.max(oldest, bucket - retainedBuckets + 1);
+        if (oldest > newest) {
+            oldest = bucket; // Everything held so far has left the window
+        } else {
+            ensureCapacity(bucket - oldest + 1);
+        }
+        for (long b = Math.max(newest + 1, bucket - bucketNumbers.length + 1); b <= bucket; b++) {
+            reset(b);
+        }
+        newest = bucket;
+    }
+
+    /**
+     * Grow the slots to cover at least the given number of buckets, moving every
+     * bucket from oldest to newest to its slot in the larger arrays
+     */
+    private void ensureCapacity(long span) {
+        if (span <= bucketNumbers.length) {
+            return;
+        }
+        long[] oldNumbers = bucketNumbers;
+        long[] oldCounts = counts;
+        double[] oldSums = sums;
+        double[] oldMins = mins;
+        double[] oldMaxes = maxes;
+        int oldCapacity = oldNumbers.length;
+        allocate((int) Math.min(retainedBuckets, Math.max(span, (long) oldCapacity * 2)));
+        for (long b = Math.max(oldest, newest - oldCapacity + 1); b <= newest; b++) {
+            int from = (int) Math.floorMod(b, (long) oldCapacity);
+            int to = slot(b);
+            bucketNumbers[to] = b;
+            if (oldNumbers[from] == b) {
+                counts[to] = oldCounts[from];
+                sums[to] = oldSums[from];
+                mins[to] = oldMins[from];
+                maxes[to] = oldMaxes[from];
+            }
+        }
+    }
+
+    private void reset(long bucket) {
+        int slot = slot(bucket);
+        bucketNumbers[slot] = bucket;
+        counts[slot] = 0;
+        sums[slot] = 0;
+    }
+
+    /**
+     * Get the non-empty buckets overlapping [from, to], oldest first
+     */
+    public List<Bucket> getBuckets(long fromNanos, long toNanos) {
+        List<Bucket> buckets = new ArrayList<>();
+        if (newest == Long.MIN_VALUE || fromNanos > toNanos) {
+            return buckets;
+        }
+        long first = Math.max(Math.floorDiv(fromNanos, widthNanos), oldest);
+        long last = Math.min(Math.floorDiv(toNanos, widthNanos), newest);
+        for (long bucket = first; bucket <= last; bucket++) {
+            int slot = slot(bucket);
+            if (bucketNumbers[slot] == bucket && counts[slot] > 0) {
+                buckets.add(new Bucket(HistoryManager.fromEpochNanos(bucket * widthNanos),
+                        counts[slot], sums[slot], mins[slot], maxes[slot]));
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * Get the combined aggregates of the buckets overlapping [from, to]
+     */
+    public Bucket getTotal(long fromNanos, long toNanos) {
+        long count = 0;
+        double sum = 0;
+        double min = Double.NaN;
+        double max = Double.NaN;
+        for (Bucket bucket : getBuckets(fromNanos, toNanos)) {
+            min = count == 0 ? bucket.min() : Math.min(min, bucket.min());
+            max = count == 0 ? bucket.max() : Math.max(max, bucket.max());
+            count += bucket.count();
+            sum += bucket.sum();
+        }
+        return new Bucket(HistoryManager.fromEpochNanos(fromNanos), count, sum, min, max);
+    }
+
+    public long getWidthNanos() {
+        return widthNanos;
+    }
+
+    public int getRetainedBuckets() {
+        return retainedBuckets;
+    }
+
+    /**
+     * Remove all buckets and give back the slots they took
+     */
+    public void clear() {
+        newest = Long.MIN_VALUE;
+        allocate(Math.min(retainedBuckets, INITIAL_CAPACITY));
+    }
+
+    private int slot(long bucket) {
+        return (int) Math.floorMod(bucket, (long) bucketNumbers.length);
+    }
+}
@@ -17,7 +17,7 @@ public class InputValidator {
     // Valid characters in expressions
     private static final Set<Character> VALID_CHARS = Set.of(
             '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
-            '+', '-', '*', '/', '%', '^', '(', ')', '.', ' ',
+            '+', '-', '*', '/', '%', '^', '(', ')', '.', ' ', '#', // '#' for result references
             'p', 'i', 'e', 's', 'n', 'c', 't', 'q', 'r', 'l', 'x', 'o', 'a', 'g', 'h' // Function names
     );
 
@@ -30,7 +30,7 @@ public class InputValidator {
     // Command keywords
     private static final Set<String> COMMAND_KEYWORDS = Set.of(
             "help", "history", "clear", "m+", "mr", "mc", "quit",
-            "memory", "stats", "export");
+            "memory", "snapshot", "restore", "stats", "export");
 
     /**
      * Validate complete expression
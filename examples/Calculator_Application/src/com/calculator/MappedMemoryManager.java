@@ -0,0 +1,311 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Memory slots kept in a memory-mapped file, so they survive restarts and can be
+ * shared by every calculator process on the host.
+ * Demonstrates memory-mapped files, fixed binary layouts and cross-process atomics.
+ *
+ * File layout (native byte order, every field naturally aligned):
+ *   header, 64 bytes:  int magic, int version, int capacity, int tableSlots,
+ *                      int occupiedSlots, int namedSlots, reserved
+ *   slot table:        tableSlots entries of 64 bytes:
+ *                      long valueBits, int nameLength, 52 bytes ASCII name
+ *
+ * Values are read and updated with VarHandle atomics directly on the mapped pages,
+ * which are the same physical pages in every process, so M+ from several processes
+ * at once never loses an update. A slot's place in the table is its handle in every
+ * process. Table entries are claimed in order under a file lock, which is only taken
+ * the first time a process meets a new slot name; a crashed process releases it
+ * automatically. Writes reach the file when the OS writes the pages back, or at
+ * flush() and close(). Change listeners only hear about changes made through this
+ * manager, not those made by other processes.
+ */
+public class MappedMemoryManager extends ConcurrentMemoryManager implements AutoCloseable {
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private static final int MAGIC = 0x43414C4D; // "CALM"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int TABLE_SLOTS_OFFSET = 12;
+    private static final int OCCUPIED_OFFSET = 16;
+    private static final int NAMED_OFFSET = 20;
+    private static final int ENTRY_SIZE = 64;
+    private static final int NAME_LENGTH_OFFSET = 8;
+    private static final int NAME_OFFSET = 12;
+    private static final int MAX_NAME_BYTES = ENTRY_SIZE - NAME_OFFSET;
+    private static final int LETTER_SLOTS = 26;
+    private static final int DEFAULT_TABLE_SLOTS = 256;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int tableSlots;
+    private final Map<String, Integer> handles = new ConcurrentHashMap<>(); // Names other than A-Z
+    private final String[] names; // Decoded names; racing writers store equal strings
+    private int scanned = LETTER_SLOTS; // Guarded by this
+
+    /**
+     * Open a memory file with default capacity, creating it if it does not exist
+     */
+    public static MappedMemoryManager open(Path file) throws IOException {
+        return open(file, 26, DEFAULT_TABLE_SLOTS);
+    }
+
+    /**
+     * Open a memory file, creating it with the given capacity and number of table
+     * slots (names that can ever be used) if it does not exist; an existing file
+     * keeps the layout it was created with
+     */
+    public static MappedMemoryManager open(Path file, int capacity, int tableSlots) throws IOException {
+        if (capacity <= 0 || tableSlots < LETTER_SLOTS || capacity > tableSlots) {
+            throw new IllegalArgumentException(String.format(
+                    "Need 0 < capacity <= table slots and at least %d table slots", LETTER_SLOTS));
+        }
+        FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer buffer;
+            synchronized (MappedMemoryManager.class) {
+                FileLock lock = channel.lock(0, HEADER_SIZE, false);
+                try {
+                    if (channel.size() == 0) {
+                        buffer = map(channel, tableSlots);
+                        format(buffer, capacity, tableSlots);
+                    } else {
+                        buffer = map(channel, readTableSlots(channel, file));
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+            return new MappedMemoryManager(channel, buffer);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, int tableSlots) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) tableSlots * ENTRY_SIZE);
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+
+    /**
+     * Write the header and an empty table with the letter slots already named
+     */
+    private static void format(MappedByteBuffer buffer, int capacity, int tableSlots) {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        buffer.putInt(TABLE_SLOTS_OFFSET, tableSlots);
+        buffer.putInt(OCCUPIED_OFFSET, 0);
+        for (int handle = 0; handle < tableSlots; handle++) {
+            int entry = entryOffset(handle);
+            buffer.putLong(entry, EMPTY);
+            if (handle < LETTER_SLOTS) {
+                buffer.putInt(entry + NAME_LENGTH_OFFSET, 1);
+                buffer.put(entry + NAME_OFFSET, (byte) ('A' + handle));
+            }
+        }
+        buffer.putInt(NAMED_OFFSET, LETTER_SLOTS);
+        buffer.force();
+    }
+
+    private static int readTableSlots(FileChannel channel, Path file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+        channel.read(header, 0);
+        int tableSlots = header.getInt(TABLE_SLOTS_OFFSET);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || tableSlots < LETTER_SLOTS
+                || channel.size() < HEADER_SIZE + (long) tableSlots * ENTRY_SIZE) {
+            throw new IOException("Not a calculator memory file: " + file);
+        }
+        return tableSlots;
+    }
+
+    private MappedMemoryManager(FileChannel channel, MappedByteBuffer buffer) {
+        super(buffer.getInt(CAPACITY_OFFSET));
+        this.channel = channel;
+        this.buffer = buffer;
+        this.tableSlots = buffer.getInt(TABLE_SLOTS_OFFSET);
+        this.names = new String[tableSlots];
+    }
+
+    private static int entryOffset(int handle) {
+        return HEADER_SIZE + handle * ENTRY_SIZE;
+    }
+
+    @Override
+    public int slotHandle(String slot) {
+        if (slot == null || slot.trim().isEmpty()) {
+            throw new CalculatorException.MemoryOperationException(
+                    "Memory slot name cannot be null or empty");
+        }
+        int handle = findHandle(slot);
+        if (handle >= 0) {
+            return handle;
+        }
+        if (!isValidSlotName(slot)) {
+            throw new CalculatorException.MemoryOperationException(
+                    "Invalid memory slot name. Use letters, numbers, and underscores only");
+        }
+        if (slot.length() > MAX_NAME_BYTES) {
+            throw new CalculatorException.MemoryOperationException(
+                    String.format("Memory slot name is too long. Maximum %d characters allowed", MAX_NAME_BYTES));
+        }
+        return intern(slot);
+    }
+
+    /**
+     * Claim the next table entry for a name, unless another process named it first.
+     * Entries are only ever claimed in order and under the lock, so a name is never
+     * given two entries.
+     */
+    private int intern(String slot) {
+        synchronized (MappedMemoryManager.class) { // File locks are held per process, not per thread
+            try {
+                FileLock lock = channel.lock(0, HEADER_SIZE, false);
+                try {
+                    Integer existing = refresh(slot);
+                    if (existing != null) {
+                        return existing;
+                    }
+                    int handle = getHandleCount();
+                    if (handle == tableSlots) {
+                        throw new CalculatorException.MemoryOperationException(String.format(
+                                "Memory slot table is full. Maximum %d slot names allowed", tableSlots));
+                    }
+                    int entry = entryOffset(handle);
+                    buffer.put(entry + NAME_OFFSET, slot.getBytes(StandardCharsets.US_ASCII));
+                    buffer.putInt(entry + NAME_LENGTH_OFFSET, slot.length());
+                    INTS.setRelease(buffer, NAMED_OFFSET, handle + 1); // Publishes the name to every process
+                    return refresh(slot);
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                throw new CalculatorException.MemoryOperationException(
+                        "Could not lock memory file: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Learn names other processes have added since the last look, then look one up
+     */
+    private synchronized Integer refresh(String slot) {
+        int named = getHandleCount();
+        for (; scanned < named; scanned++) {
+            handles.put(getSlotName(scanned), scanned);
+        }
+        return handles.get(slot);
+    }
+
+    @Override
+    protected int findHandle(String slot) {
+        if (slot.length() == 1) {
+            char c = slot.charAt(0);
+            if (c >= 'A' && c <= 'Z') {
+                return c - 'A';
+            }
+        }
+        Integer handle = handles.get(slot);
+        if (handle == null) {
+            handle = refresh(slot);
+        }
+        return handle == null ? -1 : handle;
+    }
+
+    @Override
+    public String getSlotName(int handle) {
+        if (handle < 0 || handle >= getHandleCount()) {
+            throw new CalculatorException.MemoryOperationException("Unknown memory slot handle: " + handle);
+        }
+        String name = names[handle];
+        if (name == null) {
+            int entry = entryOffset(handle);
+            byte[] bytes = new byte[buffer.getInt(entry + NAME_LENGTH_OFFSET)];
+            buffer.get(entry + NAME_OFFSET, bytes);
+            name = new String(bytes, StandardCharsets.US_ASCII);
+            names[handle] = name;
+        }
+        return name;
+    }
+
+    @Override
+    protected int getHandleCount() {
+        return (int) INTS.getAcquire(buffer, NAMED_OFFSET);
+    }
+
+    @Override
+    protected long getBits(int handle) {
+        return (long) LONGS.getVolatile(buffer, entryOffset(handle));
+    }
+
+    @Override
+    protected boolean compareAndSetBits(int handle, long expected, long update) {
+        return LONGS.compareAndSet(buffer, entryOffset(handle), expected, update);
+    }
+
+    // A process killed between reserving and filling a slot leaves the shared count
+    // one too high; the capacity is a limit on growth, so that only costs one slot
+    @Override
+    protected void reserveSlot() {
+        int occupied;
+        do {
+            occupied = (int) INTS.getVolatile(buffer, OCCUPIED_OFFSET);
+            if (occupied >= getCapacity()) {
+                throw new CalculatorException.MemoryOperationException(
+                        String.format("Memory capacity exceeded. Maximum %d slots allowed", getCapacity()));
+            }
+        } while (!INTS.compareAndSet(buffer, OCCUPIED_OFFSET, occupied, occupied + 1));
+    }
+
+    @Override
+    protected void releaseSlot() {
+        INTS.getAndAdd(buffer, OCCUPIED_OFFSET, -1);
+    }
+
+    @Override
+    public int getOccupiedSlots() {
+        return (int) INTS.getVolatile(buffer, OCCUPIED_OFFSET);
+    }
+
+    /**
+     * Get number of slot names the file can ever hold
+     */
+    public int getTableSlots() {
+        return tableSlots;
+    }
+
+    /**
+     * Write every changed slot to disk, so it survives an OS crash as well
+     */
+    public void flush() {
+        buffer.force();
+    }
+
+    /**
+     * Flush and release the file; the manager must not be used afterwards
+     */
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+}
@@ -1,15 +1,49 @@
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * Manages calculator memory operations with persistence and validation.
  * Demonstrates Maps usage, encapsulation, and thread-safety considerations.
+ *
+ * Slot names are interned once into integer handles. The classic single-letter slots
+ * A-Z are handles 0-25 and need no lookup at all; other names go through a map once
+ * per call, or not at all for callers that keep the handle from slotHandle(). Values
+ * live in a double[] indexed by handle with an occupancy bitmap beside it, so
+ * storing, recalling and adding to a slot never box a value or allocate. Interned
+ * names are kept for the life of the manager.
+ *
+ * snapshot() captures every slot as an immutable MemorySnapshot, which summaries are
+ * built from and which restore() puts back; here that copies the slots, while
+ * SnapshotMemoryManager takes and restores snapshots in constant time.
+ *
+ * A slot can also hold a formula over other slots, kept up to date by a FormulaGraph
+ * whenever a slot it depends on changes. A rolling slot also remembers its recent
+ * values in a RollingWindow, whose aggregates read as "S.mean", "S.max" and so on.
  */
 public class MemoryManager {
 
-    private final Map<String, Double> memory;
+    private static final int LETTER_SLOTS = 26;
+
+    private final Map<String, Integer> handles = new HashMap<>(); // Names other than A-Z
+    private String[] slotNames;
+    private int handleCount;
+    private double[] values;
+    private long[] occupied; // One bit per handle
+    private int occupiedCount;
     private final int maxMemorySlots;
+    private final List<Consumer<String>> changeListeners = new CopyOnWriteArrayList<>();
+    private volatile FormulaGraph formulas; // Created by the first formula
+    private volatile Map<String, RollingWindow> rollingWindows; // Created by the first rolling slot
 
     /**
      * Create memory manager with default capacity
@@ -27,38 +61,128 @@ public class MemoryManager {
                     "Memory capacity must be positive");
         }
         this.maxMemorySlots = capacity;
-        this.memory = new HashMap<>(capacity);
-    }
-
-    /**
-     * Store value in named memory slot
-     * Traditional calculator uses single slot, modern uses named slots
-     */
-    public void store(double value) {
-        store("M", value); // Default memory slot
+        this.slotNames = new String[64];
+        for (int letter = 0; letter < LETTER_SLOTS; letter++) {
+            slotNames[letter] = String.valueOf((char) ('A' + letter));
+        }
+        this.handleCount = LETTER_SLOTS;
+        this.values = new double[slotNames.length];
+        this.occupied = new long[1];
     }
 
     /**
-     * Store value in specific memory slot
+     * Get the handle for a slot name, interning the name on first use
      */
-    public void store(String slot, double value) {
+    public int slotHandle(String slot) {
         if (slot == null || slot.trim().isEmpty()) {
             throw new CalculatorException.MemoryOperationException(
                     "Memory slot name cannot be null or empty");
         }
+        int handle = findHandle(slot);
+        if (handle >= 0) {
+            return handle;
+        }
 
         // Validate slot name (allow letters, numbers, underscore)
-        if (!slot.matches("[A-Za-z][A-Za-z0-9_]*")) {
+        if (!isValidSlotName(slot)) {
             throw new CalculatorException.MemoryOperationException(
                     "Invalid memory slot name. Use letters, numbers, and underscores only");
         }
+        if (handleCount == slotNames.length) {
+            slotNames = Arrays.copyOf(slotNames, handleCount * 2);
+            values = Arrays.copyOf(values, handleCount * 2);
+        }
+        if (handleCount >> 6 == occupied.length) {
+            occupied = Arrays.copyOf(occupied, occupied.length * 2);
+        }
+        handle = handleCount++;
+        slotNames[handle] = slot;
+        handles.put(slot, handle);
+        return handle;
+    }
 
-        if (memory.size() >= maxMemorySlots && !memory.containsKey(slot)) {
-            throw new CalculatorException.MemoryOperationException(
-                    String.format("Memory capacity exceeded. Maximum %d slots allowed", maxMemorySlots));
+    /**
+     * Handle of an already interned name, or -1
+     */
+    protected int findHandle(String slot) {
+        if (slot.length() == 1) {
+            char c = slot.charAt(0);
+            if (c >= 'A' && c <= 'Z') {
+                return c - 'A';
+            }
         }
+        Integer handle = handles.get(slot);
+        return handle == null ? -1 : handle;
+    }
+
+    protected static boolean isValidSlotName(String slot) {
+        if (!isAsciiLetter(slot.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < slot.length(); i++) {
+            char c = slot.charAt(i);
+            if (!isAsciiLetter(c) && !(c >= '0' && c <= '9') && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        memory.put(slot, value);
+    private static boolean isAsciiLetter(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+
+    /**
+     * Get the name of the slot a handle refers to
+     */
+    public String getSlotName(int handle) {
+        checkHandle(handle);
+        return slotNames[handle];
+    }
+
+    /**
+     * Get number of handles issued so far; valid handles are 0 to this minus one
+     */
+    protected int getHandleCount() {
+        return handleCount;
+    }
+
+    private void checkHandle(int handle) {
+        if (handle < 0 || handle >= handleCount) {
+            throw new CalculatorException.MemoryOperationException("Unknown memory slot handle: " + handle);
+        }
+    }
+
+    /**
+     * Store value in named memory slot
+     * Traditional calculator uses single slot, modern uses named slots
+     */
+    public void store(double value) {
+        store("M", value); // Default memory slot
+    }
+
+    /**
+     * Store value in specific memory slot
+     */
+    public void store(String slot, double value) {
+        store(slotHandle(slot), value);
+    }
+
+    /**
+     * Store value in the slot a handle refers to
+     */
+    public void store(int handle, double value) {
+        checkHandle(handle);
+        if (!isOccupied(handle)) {
+            if (occupiedCount >= maxMemorySlots) {
+                throw new CalculatorException.MemoryOperationException(
+                        String.format("Memory capacity exceeded. Maximum %d slots allowed", maxMemorySlots));
+            }
+            occupied[handle >> 6] |= 1L << handle;
+            occupiedCount++;
+        }
+        values[handle] = value;
+        fireChanged(handle);
     }
 
     /**
@@ -77,13 +201,30 @@ public class MemoryManager {
                     "Memory slot name cannot be null or empty");
         }
 
-        Double value = memory.get(slot);
-        if (value == null) {
+        int dot = slot.indexOf('.');
+        if (dot >= 0) {
+            return rollingWindow(slot, dot).get(
+                    RollingWindow.Aggregate.fromName(slot.substring(dot + 1)), System.nanoTime());
+        }
+
+        int handle = findHandle(slot);
+        if (handle < 0) {
             throw new CalculatorException.MemoryOperationException(
                     String.format("No value stored in memory slot '%s'", slot));
         }
+        return recall(handle);
+    }
 
-        return value;
+    /**
+     * Recall value from the slot a handle refers to
+     */
+    public double recall(int handle) {
+        if (!hasValue(handle)) {
+            checkHandle(handle);
+            throw new CalculatorException.MemoryOperationException(
+                    String.format("No value stored in memory slot '%s'", slotNames[handle]));
+        }
+        return values[handle];
     }
 
     /**
@@ -97,13 +238,14 @@ public class MemoryManager {
      * Add value to specific memory slot
      */
     public void addToMemory(String slot, double value) {
-        try {
-            double currentValue = recall(slot);
-            store(slot, currentValue + value);
-        } catch (CalculatorException.MemoryOperationException e) {
-            // If slot doesn't exist, store the value directly
-            store(slot, value);
-        }
+        addToMemory(slotHandle(slot), value);
+    }
+
+    /**
+     * Add value to the slot a handle refers to; an empty slot starts from zero
+     */
+    public void addToMemory(int handle, double value) {
+        store(handle, hasValue(handle) ? values[handle] + value : value);
     }
 
     /**
@@ -122,19 +264,162 @@ public class MemoryManager {
                     "Memory slot name cannot be null");
         }
 
-        if (!memory.containsKey(slot)) {
+        int handle = findHandle(slot);
+        if (handle < 0 || !hasValue(handle)) {
             throw new CalculatorException.MemoryOperationException(
                     String.format("Memory slot '%s' does not exist", slot));
         }
+        clear(handle);
+    }
 
-        memory.remove(slot);
+    /**
+     * Clear the slot a handle refers to
+     */
+    public void clear(int handle) {
+        if (!hasValue(handle)) {
+            checkHandle(handle);
+            throw new CalculatorException.MemoryOperationException(
+                    String.format("Memory slot '%s' does not exist", slotNames[handle]));
+        }
+        occupied[handle >> 6] &= ~(1L << handle);
+        occupiedCount--;
+        fireChanged(handle);
     }
 
     /**
      * Clear all memory slots
      */
     public void clearAll() {
-        memory.clear();
+        clearFormulas();
+        for (int handle = 0; handle < getHandleCount(); handle++) {
+            if (hasValue(handle)) {
+                clear(handle);
+            }
+        }
+    }
+
+    /**
+     * Make a slot hold a formula over other slots, e.g. "A + B * 2", and calculate it.
+     * It is recalculated whenever a slot it reads changes, until the slot is stored,
+     * added to or cleared directly.
+     */
+    public void storeFormula(String slot, String formula) {
+        int handle = slotHandle(slot);
+        CompiledExpression compiled = ExpressionCompiler.compile(formula);
+        formulaGraph().setFormula(handle, compiled);
+    }
+
+    /**
+     * Get the formula a slot holds, or null if it holds a plain value
+     */
+    public String getFormula(String slot) {
+        FormulaGraph graph = formulas;
+        int handle = graph == null || slot == null ? -1 : findHandle(slot);
+        CompiledExpression formula = handle < 0 ? null : graph.getFormula(handle);
+        return formula == null ? null : formula.getSource();
+    }
+
+    private synchronized FormulaGraph formulaGraph() {
+        if (formulas == null) {
+            formulas = new FormulaGraph(this);
+        }
+        return formulas;
+    }
+
+    /**
+     * Turn every formula slot back into a plain value
+     */
+    protected void clearFormulas() {
+        FormulaGraph graph = formulas;
+        if (graph != null) {
+            graph.clear();
+        }
+    }
+
+    /**
+     * Make a slot remember its last values, so expressions can read aggregates such as
+     * "S.mean"; every value the slot takes from now on is added
+     */
+    public void createRollingSlot(String slot, int lastValues) {
+        createRollingSlot(slot, new RollingWindow(lastValues));
+    }
+
+    /**
+     * Make a slot remember the values it took within the given time
+     */
+    public void createRollingSlot(String slot, Duration window) {
+        createRollingSlot(slot, new RollingWindow(window));
+    }
+
+    private synchronized void createRollingSlot(String slot, RollingWindow window) {
+        String name = getSlotName(slotHandle(slot)); // Validated
+        if (rollingWindows == null) {
+            rollingWindows = new ConcurrentHashMap<>();
+        }
+        rollingWindows.put(name, window);
+    }
+
+    /**
+     * Get the window of a rolling slot, or null if the slot is not one
+     */
+    public RollingWindow getRollingWindow(String slot) {
+        Map<String, RollingWindow> windows = rollingWindows;
+        return windows == null || slot == null ? null : windows.get(slot);
+    }
+
+    private RollingWindow rollingWindow(String aggregate, int dot) {
+        RollingWindow window = getRollingWindow(aggregate.substring(0, dot));
+        if (window == null) {
+            throw new CalculatorException.MemoryOperationException(
+                    String.format("Memory slot '%s' is not a rolling slot", aggregate.substring(0, dot)));
+        }
+        return window;
+    }
+
+    /**
+     * Be told the name of every slot that is stored, added to or cleared
+     */
+    public void addChangeListener(Consumer<String> listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * Tell the listeners a slot changed
+     */
+    protected void fireChanged(int handle) {
+        fireChanged(getSlotName(handle));
+    }
+
+    protected void fireChanged(String slot) {
+        for (int i = 0; i < changeListeners.size(); i++) { // No iterator on this path
+            changeListeners.get(i).accept(slot);
+        }
+        Map<String, RollingWindow> windows = rollingWindows;
+        RollingWindow window = windows == null ? null : windows.get(slot);
+        if (window != null) {
+            int handle = findHandle(slot);
+            if (hasValue(handle)) {
+                window.add(recall(handle), System.nanoTime());
+            } else {
+                window.clear();
+            }
+        }
+        FormulaGraph graph = formulas;
+        if (graph != null) {
+            graph.slotChanged(findHandle(slot));
+        }
+    }
+
+    /**
+     * Check if anyone listens for changes, formulas and rolling slots included, so work
+     * done only to report them can be skipped
+     */
+    protected boolean hasChangeListeners() {
+        return !changeListeners.isEmpty() || formulas != null || rollingWindows != null;
+    }
+
+    private boolean isOccupied(int handle) {
+        return (occupied[handle >> 6] & (1L << handle)) != 0;
     }
 
     /**
@@ -148,21 +433,96 @@ public class MemoryManager {
      * Check if specific memory slot has value
      */
     public boolean hasValue(String slot) {
-        return slot != null && memory.containsKey(slot);
+        if (slot == null || slot.isEmpty()) {
+            return false;
+        }
+        int dot = slot.indexOf('.');
+        if (dot >= 0) {
+            Map<String, RollingWindow> windows = rollingWindows;
+            RollingWindow window = windows == null ? null : windows.get(slot.substring(0, dot));
+            return window != null && window.has(
+                    RollingWindow.Aggregate.fromName(slot.substring(dot + 1)), System.nanoTime());
+        }
+        int handle = findHandle(slot);
+        return handle >= 0 && hasValue(handle);
+    }
+
+    /**
+     * Check if the slot a handle refers to has a value
+     */
+    public boolean hasValue(int handle) {
+        return handle >= 0 && handle < handleCount && isOccupied(handle);
+    }
+
+    /**
+     * Capture the value of every slot
+     */
+    public MemorySnapshot snapshot() {
+        MemorySnapshot snapshot = MemorySnapshot.empty();
+        for (int handle = 0; handle < getHandleCount(); handle++) {
+            if (hasValue(handle)) {
+                snapshot = snapshot.with(getSlotName(handle), recall(handle));
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Put every slot back the way it was in the snapshot; slots stored since are
+     * cleared. Nothing changes if the snapshot holds more slots than this memory can.
+     * Formulas are kept and recalculated from the restored values.
+     */
+    public void restore(MemorySnapshot snapshot) {
+        if (snapshot.size() > maxMemorySlots) {
+            throw new CalculatorException.MemoryOperationException(
+                    String.format("Memory capacity exceeded. Maximum %d slots allowed", maxMemorySlots));
+        }
+        restoreSlots(() -> {
+            List<String> changed = new ArrayList<>();
+            for (int handle = 0; handle < getHandleCount(); handle++) {
+                if (hasValue(handle) && !snapshot.hasValue(getSlotName(handle))) {
+                    clear(handle);
+                    changed.add(getSlotName(handle));
+                }
+            }
+            snapshot.forEach((slot, value) -> {
+                int handle = slotHandle(slot);
+                if (!hasValue(handle) || Double.compare(recall(handle), value) != 0) {
+                    store(handle, value);
+                    changed.add(slot);
+                }
+            });
+            return changed;
+        });
+    }
+
+    /**
+     * Run the writes of a restore, which report each change as usual but return the
+     * names of the slots they changed instead of letting each one drop its formula;
+     * the formulas reading them are then recalculated together
+     */
+    protected void restoreSlots(Supplier<Collection<String>> writes) {
+        FormulaGraph graph = formulas;
+        if (graph == null) {
+            writes.get();
+        } else {
+            graph.restore(writes);
+        }
     }
 
     /**
      * Get all memory slot names
      */
     public Set<String> getSlotNames() {
-        return Set.copyOf(memory.keySet()); // Immutable copy
+        return Set.copyOf(snapshot().getSlotNames()); // Immutable copy
     }
 
     /**
      * Get memory usage summary
      */
     public String getMemorySummary() {
-        if (memory.isEmpty()) {
+        MemorySnapshot slots = snapshot();
+        if (slots.isEmpty()) {
             return "Memory is empty";
         }
 
@@ -170,12 +530,11 @@ public class MemoryManager {
         summary.append("Memory Contents:\\n");
         summary.append("================\\n");
 
-        memory.entrySet().stream()
-                .sorted(Map.Entry.comparingByKey())
-                .forEach(entry -> summary.append(String.format("%s: %.4f\\n",
-                        entry.getKey(), entry.getValue())));
+        for (String slot : slots.getSlotNames()) {
+            summary.append(String.format("%s: %.4f\\n", slot, slots.recall(slot)));
+        }
 
-        summary.append("\\nTotal slots used: ").append(memory.size());
+        summary.append("\\nTotal slots used: ").append(slots.size());
         summary.append(String.format("\\nCapacity: %d slots\\n", maxMemorySlots));
 
         return summary.toString();
@@ -185,7 +544,8 @@ public class MemoryManager {
      * Get formatted memory display for UI
      */
     public String getFormattedMemory() {
-        if (memory.isEmpty()) {
+        MemorySnapshot slots = snapshot();
+        if (slots.isEmpty()) {
             return "No memory values stored";
         }
 
@@ -193,10 +553,11 @@ public class MemoryManager {
         display.append("MEMORY SLOTS\\n");
         display.append("============\\n");
 
-        memory.entrySet().stream()
-                .sorted(Map.Entry.comparingByKey())
-                .forEach(entry -> display.append(String.format("%s = %.6f\\n",
-                        entry.getKey(), entry.getValue())));
+        for (String slot : slots.getSlotNames()) {
+            String formula = getFormula(slot);
+            display.append(String.format("%s = %.6f", slot, slots.recall(slot)));
+            display.append(formula == null ? "\\n" : "  (= " + formula + ")\\n");
+        }
 
         return display.toString();
     }
@@ -205,7 +566,7 @@ public class MemoryManager {
      * Get number of occupied memory slots
      */
     public int getOccupiedSlots() {
-        return memory.size();
+        return occupiedCount;
     }
 
     /**
@@ -219,19 +580,26 @@ public class MemoryManager {
      * Check if memory is full
      */
     public boolean isFull() {
-        return memory.size() >= maxMemorySlots;
+        return getOccupiedSlots() >= maxMemorySlots;
     }
 
     /**
      * Get memory statistics
      */
     public String getStatistics() {
-        int occupied = getOccupiedSlots();
-        int available = maxMemorySlots - occupied;
-
-        double minValue = memory.values().stream().mapToDouble(Double::doubleValue).min().orElse(0);
-        double maxValue = memory.values().stream().mapToDouble(Double::doubleValue).max().orElse(0);
-        double avgValue = memory.values().stream().mapToDouble(Double::doubleValue).average().orElse(0);
+        MemorySnapshot slots = snapshot();
+        int occupiedSlots = slots.size();
+        double[] range = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0};
+        slots.forEach((slot, value) -> {
+            range[0] = Math.min(range[0], value);
+            range[1] = Math.max(range[1], value);
+            range[2] += value;
+        });
+        double minValue = occupiedSlots == 0 ? 0 : range[0];
+        double maxValue = occupiedSlots == 0 ? 0 : range[1];
+        double total = range[2];
+        double avgValue = occupiedSlots == 0 ? 0 : total / occupiedSlots;
+        int available = maxMemorySlots - occupiedSlots;
 
         return String.format(
                 "Memory Statistics:\\n" +
@@ -240,7 +608,7 @@ public class MemoryManager {
                         "Value range: %.4f to %.4f\\n" +
                         "Average value: %.4f\\n" +
                         "Memory utilization: %.1f%%",
-                occupied, maxMemorySlots, available, minValue, maxValue, avgValue,
-                (occupied * 100.0) / maxMemorySlots);
+                occupiedSlots, maxMemorySlots, available, minValue, maxValue, avgValue,
+                (occupiedSlots * 100.0) / maxMemorySlots);
     }
 }
@@ -0,0 +1,361 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.ObjDoubleConsumer;
+
+/**
+ * Immutable set of memory slot values at one point in time.
+ * Demonstrates persistent data structures with structural sharing.
+ *
+ * Slots are kept in a hash array mapped trie: each node holds up to 32 slots or
+ * subtries, chosen by five bits of the name's hash, with bitmaps saying which are
+ * present. with() and without() copy only the path to the changed slot and share the
+ * rest, so a changed copy costs a few small arrays however many slots there are, and
+ * a snapshot can be kept or handed to another thread for free.
+ */
+public final class MemorySnapshot {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final String[] NO_KEYS = new String[0];
+    private static final double[] NO_VALUES = new double[0];
+    private static final Node[] NO_NODES = new Node[0];
+
+    private static final MemorySnapshot EMPTY = new MemorySnapshot(new Node(0, 0, NO_KEYS, NO_VALUES, NO_NODES), 0);
+
+    private final Node root;
+    private final int size;
+
+    private MemorySnapshot(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Get the snapshot with no slots
+     */
+    public static MemorySnapshot empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Get a snapshot that also holds the slot with the given value
+     */
+    public MemorySnapshot with(String slot, double value) {
+        Node updated = root.put(slot, hash(slot), value, 0);
+        if (updated == root) {
+            return this;
+        }
+        return new MemorySnapshot(updated, hasValue(slot) ? size : size + 1);
+    }
+
+    /**
+     * Get a snapshot without the slot
+     */
+    public MemorySnapshot without(String slot) {
+        Node updated = root.remove(slot, hash(slot), 0);
+        return updated == root ? this : new MemorySnapshot(updated, size - 1);
+    }
+
+    /**
+     * Check if a slot has a value in this snapshot
+     */
+    public boolean hasValue(String slot) {
+        return slot != null && root.find(slot, hash(slot), 0) != null;
+    }
+
+    /**
+     * Recall a slot's value as it was when the snapshot was taken
+     */
+    public double recall(String slot) {
+        double value = get(slot, Double.NaN);
+        if (Double.isNaN(value) && !hasValue(slot)) {
+            throw new CalculatorException.MemoryOperationException(
+                    String.format("No value stored in memory slot '%s'", slot));
+        }
+        return value;
+    }
+
+    /**
+     * Get a slot's value, or the default if the slot is empty
+     */
+    public double get(String slot, double defaultValue) {
+        if (slot == null) {
+            return defaultValue;
+        }
+        int hash = hash(slot);
+        Node node = root.find(slot, hash, 0);
+        return node == null ? defaultValue : node.values[node.indexOf(slot)];
+    }
+
+    /**
+     * Get number of slots with a value
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Visit every slot, in no particular order
+     */
+    public void forEach(ObjDoubleConsumer<String> action) {
+        root.forEach(action);
+    }
+
+    /**
+     * Get the names of the slots with a value, sorted
+     */
+    public List<String> getSlotNames() {
+        List<String> names = new ArrayList<>(size);
+        forEach((slot, value) -> names.add(slot));
+        Collections.sort(names);
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * Get number of trie nodes; removals fold subtries back, so this never exceeds
+     * what building the same slots from empty would give
+     */
+    int nodeCount() {
+        return root.nodeCount();
+    }
+
+    private static int hash(String slot) {
+        int h = slot.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Trie node. Slots stored here are in keys/values ordered by bit position, then
+     * subtries in nodes. Below the last hash bits a node is a collision node, which
+     * keeps its keys in a plain list and has empty bitmaps.
+     */
+    private static final class Node {
+
+        final int dataMap;
+        final int nodeMap;
+        final String[] keys;
+        final double[] values;
+        final Node[] nodes;
+
+        Node(int dataMap, int nodeMap, String[] keys, double[] values, Node[] nodes) {
+            this.dataMap = dataMap;
+            this.nodeMap = nodeMap;
+            this.keys = keys;
+            this.values = values;
+            this.nodes = nodes;
+        }
+
+        boolean isCollision() {
+            return dataMap == 0 && nodeMap == 0 && keys.length > 1;
+        }
+
+        /**
+         * Node holding the slot, or null
+         */
+        Node find(String slot, int hash, int shift) {
+            Node node = this;
+            while (true) {
+                if (node.isCollision()) {
+                    return node.indexOf(slot) >= 0 ? node : null;
+                }
+                int bit = 1 << ((hash >>> shift) & MASK);
+                if ((node.dataMap & bit) != 0) {
+                    return node.keys[index(node.dataMap, bit)].equals(slot) ? node : null;
+                }
+                if ((node.nodeMap & bit) == 0) {
+                    return null;
+                }
+                node = node.nodes[index(node.nodeMap, bit)];
+                shift += BITS;
+            }
+        }
+
+        /**
+         * Position of a slot in this node's keys, or -1
+         */
+        int indexOf(String slot) {
+            for (int i = 0; i < keys.length; i++) { // At most 32 and usually a few
+                if (keys[i].equals(slot)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        Node put(String slot, int hash, double value, int shift) {
+            if (isCollision()) {
+                int i = indexOf(slot);
+                if (i >= 0) {
+                    return sameBits(values[i], value) ? this : withValue(i, value);
+                }
+                return new Node(0, 0, append(keys, slot), append(values, value), NO_NODES);
+            }
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((dataMap & bit) != 0) {
+                int i = index(dataMap, bit);
+                if (keys[i].equals(slot)) {
+                    return sameBits(values[i], value) ? this : withValue(i, value);
+                }
+                // Two slots share these bits; push both one level down
+                Node child = merge(keys[i], hash(keys[i]), values[i], slot, hash, value, shift + BITS);
+                int n = index(nodeMap, bit);
+                return new Node(dataMap ^ bit, nodeMap | bit,
+                        removeAt(keys, i), removeAt(values, i), insert(nodes, n, child));
+            }
+            if ((nodeMap & bit) != 0) {
+                int n = index(nodeMap, bit);
+                Node child = nodes[n].put(slot, hash, value, shift + BITS);
+                return child == nodes[n] ? this : withNode(n, child);
+            }
+            int i = index(dataMap, bit);
+            return new Node(dataMap | bit, nodeMap, insert(keys, i, slot), insert(values, i, value), nodes);
+        }
+
+        Node remove(String slot, int hash, int shift) {
+            if (isCollision()) {
+                int i = indexOf(slot);
+                if (i < 0) {
+                    return this;
+                }
+                if (keys.length == 2) { // The parent folds the remaining slot into itself
+                    return new Node(0, 0, new String[] {keys[1 - i]}, new double[] {values[1 - i]}, NO_NODES);
+                }
+                return new Node(0, 0, removeAt(keys, i), removeAt(values, i), NO_NODES);
+            }
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((dataMap & bit) != 0) {
+                int i = index(dataMap, bit);
+                if (!keys[i].equals(slot)) {
+                    return this;
+                }
+                return new Node(dataMap ^ bit, nodeMap, removeAt(keys, i), removeAt(values, i), nodes);
+            }
+            if ((nodeMap & bit) == 0) {
+                return this;
+            }
+            int n = index(nodeMap, bit);
+            Node child = nodes[n].remove(slot, hash, shift + BITS);
+            if (child == nodes[n]) {
+                return this;
+            }
+            if (child.nodeMap == 0 && child.keys.length == 1) {
+                // A subtrie left with one slot is folded back into this node
+                int i = index(dataMap, bit);
+                return new Node(dataMap | bit, nodeMap ^ bit,
+                        insert(keys, i, child.keys[0]), insert(values, i, child.values[0]), removeAt(nodes, n));
+            }
+            return withNode(n, child);
+        }
+
+        int nodeCount() {
+            int count = 1;
+            for (Node node : nodes) {
+                count += node.nodeCount();
+            }
+            return count;
+        }
+
+        void forEach(ObjDoubleConsumer<String> action) {
+            for (int i = 0; i < keys.length; i++) {
+                action.accept(keys[i], values[i]);
+            }
+            for (Node node : nodes) {
+                node.forEach(action);
+            }
+        }
+
+        private Node withValue(int i, double value) {
+            double[] updated = values.clone();
+            updated[i] = value;
+            return new Node(dataMap, nodeMap, keys, updated, nodes);
+        }
+
+        private Node withNode(int n, Node child) {
+            Node[] updated = nodes.clone();
+            updated[n] = child;
+            return new Node(dataMap, nodeMap, keys, values, updated);
+        }
+
+        private static Node merge(String key1, int hash1, double value1,
+                String key2, int hash2, double value2, int shift) {
+            if (shift >= Integer.SIZE) {
+                return new Node(0, 0, new String[] {key1, key2}, new double[] {value1, value2}, NO_NODES);
+            }
+            int bit1 = 1 << ((hash1 >>> shift) & MASK);
+            int bit2 = 1 << ((hash2 >>> shift) & MASK);
+            if (bit1 == bit2) {
+                Node child = merge(key1, hash1, value1, key2, hash2, value2, shift + BITS);
+                return new Node(0, bit1, NO_KEYS, NO_VALUES, new Node[] {child});
+            }
+            return Integer.compareUnsigned(bit1, bit2) < 0
+                    ? new Node(bit1 | bit2, 0, new String[] {key1, key2}, new double[] {value1, value2}, NO_NODES)
+                    : new Node(bit1 | bit2, 0, new String[] {key2, key1}, new double[] {value2, value1}, NO_NODES);
+        }
+    }
+
+    private static int index(int bitmap, int bit) {
+        return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    private static boolean sameBits(double a, double b) {
+        return Double.doubleToRawLongBits(a) == Double.doubleToRawLongBits(b);
+    }
+
+    private static String[] append(String[] array, String item) {
+        return insert(array, array.length, item);
+    }
+
+    private static double[] append(double[] array, double item) {
+        return insert(array, array.length, item);
+    }
+
+    private static String[] insert(String[] array, int index, String item) {
+        String[] result = new String[array.length + 1];
+        System.arraycopy(array, 0, result, 0, index);
+        result[index] = item;
+        System.arraycopy(array, index, result, index + 1, array.length - index);
+        return result;
+    }
+
+    private static double[] insert(double[] array, int index, double item) {
+        double[] result = new double[array.length + 1];
+        System.arraycopy(array, 0, result, 0, index);
+        result[index] = item;
+        System.arraycopy(array, index, result, index + 1, array.length - index);
+        return result;
+    }
+
+    private static Node[] insert(Node[] array, int index, Node item) {
+        Node[] result = new Node[array.length + 1];
+        System.arraycopy(array, 0, result, 0, index);
+        result[index] = item;
+        System.arraycopy(array, index, result, index + 1, array.length - index);
+        return result;
+    }
+
+    private static String[] removeAt(String[] array, int index) {
+        String[] result = new String[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, result.length - index);
+        return result;
+    }
+
+    private static double[] removeAt(double[] array, int index) {
+        double[] result = new double[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, result.length - index);
+        return result;
+    }
+
+    private static Node[] removeAt(Node[] array, int index) {
+        Node[] result = new Node[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, result.length - index);
+        return result;
+    }
+}
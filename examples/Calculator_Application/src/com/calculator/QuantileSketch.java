@@ -0,0 +1,189 @@
+/**
+ * Mergeable quantile sketch with a guaranteed relative error, supporting deletion.
+ * Demonstrates logarithmic bucketing (in the style of DDSketch) and streaming statistics.
+ *
+ * A value x is counted in bucket ceil(log(|x|) / log(gamma)), with gamma chosen so
+ * every value in a bucket is within the relative accuracy of the bucket's midpoint.
+ * Positive and negative values get separate buckets, and values too small to index
+ * count as zero. Because the sketch only holds counts, removing a value is as cheap
+ * as adding it, and two sketches with the same accuracy merge by adding their
+ * counts. The number of buckets grows with the logarithm of the value range, not
+ * with the number of values. NaN is not counted. Not thread-safe.
+ */
+public class QuantileSketch {
+
+    private static final double MIN_INDEXABLE = 1e-9;
+
+    private final double relativeAccuracy;
+    private final double gamma;
+    private final double logGamma;
+
+    private final Buckets positive = new Buckets();
+    private final Buckets negative = new Buckets();
+    private long zeroCount;
+    private long count;
+
+    /**
+     * Create a sketch with 1% relative accuracy
+     */
+    public QuantileSketch() {
+        this(0.01);
+    }
+
+    /**
+     * Create a sketch whose quantiles are within the given relative error
+     */
+    public QuantileSketch(double relativeAccuracy) {
+        if (!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+            throw new IllegalArgumentException("Relative accuracy must be between 0 and 1");
+        }
+        this.relativeAccuracy = relativeAccuracy;
+        this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.logGamma = Math.log(gamma);
+    }
+
+    /**
+     * Count a value
+     */
+    public void add(double value) {
+        update(value, 1);
+    }
+
+    /**
+     * Remove a previously added value
+     */
+    public void remove(double value) {
+        update(value, -1);
+    }
+
+    private void update(double value, long delta) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        if (Math.abs(value) < MIN_INDEXABLE) {
+            zeroCount += delta;
+        } else if (value > 0) {
+            positive.add(index(value), delta);
+        } else {
+            negative.add(index(-value), delta);
+        }
+        count += delta;
+    }
+
+    /**
+     * Add all counts of another sketch with the same accuracy
+     */
+    public void merge(QuantileSketch other) {
+        if (other.relativeAccuracy != relativeAccuracy) {
+            throw new IllegalArgumentException("Cannot merge sketches with different accuracy");
+        }
+        positive.merge(other.positive);
+        negative.merge(other.negative);
+        zeroCount += other.zeroCount;
+        count += other.count;
+    }
+
+    /**
+     * Get the value at a quantile between 0 and 1, or NaN if the sketch is empty
+     */
+    public double getQuantile(double quantile) {
+        if (quantile < 0 || quantile > 1) {
+            throw new IllegalArgumentException("Quantile must be between 0 and 1");
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long rank = (long) (quantile * (count - 1));
+
+        // Negative values, most negative (highest index) first
+        long seen = 0;
+        for (int i = negative.counts.length - 1; i >= 0; i--) {
+            seen += negative.counts[i];
+            if (seen > rank) {
+                return -value(negative.offset + i);
+            }
+        }
+        seen += zeroCount;
+        if (seen > rank) {
+            return 0;
+        }
+        for (int i = 0; i < positive.counts.length; i++) {
+            seen += positive.counts[i];
+            if (seen > rank) {
+                return value(positive.offset + i);
+            }
+        }
+        return value(positive.offset + positive.counts.length - 1);
+    }
+
+    /**
+     * Get number of counted values
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public double getRelativeAccuracy() {
+        return relativeAccuracy;
+    }
+
+    /**
+     * Remove all values
+     */
+    public void clear() {
+        positive.clear();
+        negative.clear();
+        zeroCount = 0;
+        count = 0;
+    }
+
+    private int index(double magnitude) {
+        double log = Math.log(Math.min(magnitude, Double.MAX_VALUE)) / logGamma;
+        return (int) Math.ceil(log);
+    }
+
+    /**
+     * Representative value of a bucket, within the relative accuracy of all its members
+     */
+    private double value(int index) {
+        return 2 * Math.pow(gamma, index) / (gamma + 1);
+    }
+
+    /**
+     * Dense counts for a contiguous range of bucket indexes, grown in both directions
+     */
+    private static final class Buckets {
+        long[] counts = new long[0];
+        int offset;
+
+        void add(int index, long delta) {
+            if (counts.length == 0) {
+                counts = new long[16];
+                offset = index - 8;
+            } else if (index < offset || index >= offset + counts.length) {
+                int low = Math.min(offset, index);
+                int high = Math.max(offset + counts.length, index + 1);
+                int length = Math.max(high - low, counts.length * 2);
+                int newOffset = index < offset ? high - length : low;
+                long[] larger = new long[length];
+                System.arraycopy(counts, 0, larger, offset - newOffset, counts.length);
+                counts = larger;
+                offset = newOffset;
+            }
+            counts[index - offset] += delta;
+        }
+
+        void merge(Buckets other) {
+            for (int i = 0; i < other.counts.length; i++) {
+                if (other.counts[i] != 0) {
+                    add(other.offset + i, other.counts[i]);
+                }
+            }
+        }
+
+        void clear() {
+            counts = new long[0];
+            offset = 0;
+        }
+    }
+}
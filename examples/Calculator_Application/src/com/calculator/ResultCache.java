@@ -0,0 +1,192 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounded cache of evaluation results, invalidated precisely on memory changes.
+ * Demonstrates memoization, LRU eviction and dependency tracking.
+ *
+ * Every function the calculator knows is pure, so an expression's result only
+ * changes when a memory slot it reads changes. Each cached result records the
+ * slots it read, and a reverse map from slot to expressions lets a change to one
+ * slot drop exactly the results that depended on it. The least recently used
+ * result is evicted when the cache is full. Methods are synchronized so a cache
+ * can back a Calculator shared between threads.
+ *
+ * A result computed while another thread changed a slot it read must not be cached,
+ * because the invalidation ran before there was anything to drop. Every
+ * invalidation is numbered and each slot remembers the number of its last one.
+ * Callers read getInvalidationCount() before reading memory, and put() ignores a
+ * result when any of its slots was invalidated after that.
+ */
+public class ResultCache {
+
+    private record CachedResult(double value, List<String> slots, long evaluationNanos) {
+    }
+
+    private final int maxEntries;
+    private final LinkedHashMap<String, CachedResult> results;
+    private final Map<String, Set<String>> dependents = new HashMap<>();
+    private final Map<String, Long> invalidatedAt = new HashMap<>(); // Slot -> number of its last invalidation
+    private long invalidationCount;
+
+    private long hits;
+    private long misses;
+    private long invalidations;
+    private long savedNanos;
+
+    /**
+     * Create cache with default size limit
+     */
+    public ResultCache() {
+        this(1000);
+    }
+
+    /**
+     * Create cache with custom size limit
+     */
+    public ResultCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Max cache size must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.results = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Look up a cached result; returns null on a miss
+     */
+    public synchronized Double get(String expression) {
+        CachedResult cached = results.get(expression);
+        if (cached == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        savedNanos += cached.evaluationNanos();
+        return cached.value();
+    }
+
+    /**
+     * Get the number of invalidations so far; read it before reading the memory slots
+     * a result will be computed from, and pass it to put()
+     */
+    public synchronized long getInvalidationCount() {
+        return invalidationCount;
+    }
+
+    /**
+     * Cache a result together with the memory slots it read and what it cost to compute,
+     * unless one of the slots was invalidated after readAt (from getInvalidationCount())
+     */
+    public synchronized void put(String expression, double value, List<String> slots, long evaluationNanos,
+            long readAt) {
+        for (String slot : slots) {
+            Long changed = invalidatedAt.get(slot);
+            if (changed != null && changed > readAt) {
+                return; // Computed from a value that has since changed
+            }
+        }
+        CachedResult previous = results.put(expression, new CachedResult(value, List.copyOf(slots), evaluationNanos));
+        if (previous != null) {
+            unlink(expression, previous);
+        }
+        for (String slot : slots) {
+            dependents.computeIfAbsent(slot, key -> new HashSet<>()).add(expression);
+        }
+
+        if (results.size() > maxEntries) {
+            Iterator<Map.Entry<String, CachedResult>> eldest = results.entrySet().iterator();
+            Map.Entry<String, CachedResult> victim = eldest.next();
+            eldest.remove();
+            unlink(victim.getKey(), victim.getValue());
+        }
+    }
+
+    /**
+     * Drop every result that read the memory slot
+     */
+    public synchronized void invalidateSlot(String slot) {
+        invalidatedAt.put(slot, ++invalidationCount);
+        Set<String> expressions = dependents.remove(slot);
+        if (expressions == null) {
+            return;
+        }
+        for (String expression : expressions) {
+            CachedResult removed = results.remove(expression);
+            if (removed != null) {
+                invalidations++;
+                for (String other : removed.slots()) {
+                    if (!other.equals(slot)) {
+                        unlinkSlot(other, expression);
+                    }
+                }
+            }
+        }
+    }
+
+    private void unlink(String expression, CachedResult cached) {
+        for (String slot : cached.slots()) {
+            unlinkSlot(slot, expression);
+        }
+    }
+
+    private void unlinkSlot(String slot, String expression) {
+        Set<String> expressions = dependents.get(slot);
+        if (expressions != null) {
+            expressions.remove(expression);
+            if (expressions.isEmpty()) {
+                dependents.remove(slot);
+            }
+        }
+    }
+
+    /**
+     * Get number of cached results
+     */
+    public synchronized int getSize() {
+        return results.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Get the evaluation time hits have avoided, in nanoseconds
+     */
+    public synchronized long getSavedNanos() {
+        return savedNanos;
+    }
+
+    /**
+     * Clear all cached results (statistics are kept)
+     */
+    public synchronized void clear() {
+        results.clear();
+        dependents.clear();
+    }
+
+    /**
+     * Get cache statistics
+     */
+    public synchronized String getSummary() {
+        long total = hits + misses;
+        return String.format(
+                "Result Cache:\\n" +
+                        "Cached results: %d/%d\\n" +
+                        "Hit rate: %.1f%% (%d of %d lookups)\\n" +
+                        "Invalidated by memory changes: %d\\n" +
+                        "Evaluation time saved: %.3f ms",
+                results.size(), maxEntries, total == 0 ? 0.0 : hits * 100.0 / total, hits, total,
+                invalidations, savedNanos / 1_000_000.0);
+    }
+}
@@ -0,0 +1,186 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Ordered index of history results for range, tolerance and nearest-value queries.
+ * Demonstrates sortable encodings of floating point numbers and ordered maps.
+ *
+ * Results are keyed by their IEEE 754 bits, rearranged so that comparing the keys
+ * as signed longs orders them like the doubles (negative zero just below zero,
+ * NaN above positive infinity). Each key holds the sequence numbers of the rows
+ * with that result, so lookups are logarithmic and removing the oldest row is O(1)
+ * once its key is found. Not thread-safe.
+ */
+public class ResultIndex {
+
+    private final TreeMap<Long, SequenceList> index = new TreeMap<>();
+    private long entryCount;
+
+    /**
+     * Index a new history row
+     */
+    public void add(double result, long sequence) {
+        index.computeIfAbsent(key(result), key -> new SequenceList()).add(sequence);
+        entryCount++;
+    }
+
+    /**
+     * Remove the oldest row holding the result
+     */
+    public void removeOldest(double result) {
+        Long key = key(result);
+        SequenceList sequences = index.get(key);
+        if (sequences == null) {
+            return;
+        }
+        sequences.removeFirst();
+        entryCount--;
+        if (sequences.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    /**
+     * Find the sequence numbers of rows with results in [low, high], newest first
+     */
+    public long[] between(double low, double high) {
+        if (Double.isNaN(low) || Double.isNaN(high) || low > high) {
+            return new long[0];
+        }
+        // Treat -0.0 and 0.0 as equal at the bounds, as == does
+        long from = key(low == 0 ? -0.0 : low);
+        long to = key(high == 0 ? 0.0 : high);
+        return collect(index.subMap(from, true, to, true));
+    }
+
+    /**
+     * Find the sequence numbers of rows whose result is strictly within the tolerance
+     * of the value, newest first
+     */
+    public long[] near(double value, double tolerance) {
+        if (Double.isNaN(value) || !(tolerance > 0)) {
+            return new long[0];
+        }
+        NavigableMap<Long, SequenceList> range = index.subMap(
+                key(value - tolerance), true, key(value + tolerance), true);
+
+        // The bounds were rounded; confirm each key with the same test findByResult always used
+        TreeMap<Long, SequenceList> matches = new TreeMap<>();
+        for (Map.Entry<Long, SequenceList> entry : range.entrySet()) {
+            if (Math.abs(value(entry.getKey()) - value) < tolerance) {
+                matches.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return collect(matches);
+    }
+
+    /**
+     * Find the sequence numbers of the k rows whose results are closest to the value,
+     * closest first; among equal results the newest row comes first
+     */
+    public long[] nearest(double value, int k) {
+        if (Double.isNaN(value) || k <= 0) {
+            return new long[0];
+        }
+        long[] nearest = new long[(int) Math.min(k, entryCount)];
+        int filled = 0;
+
+        Iterator<Map.Entry<Long, SequenceList>> below = index.headMap(key(value), false)
+                .descendingMap().entrySet().iterator();
+        Iterator<Map.Entry<Long, SequenceList>> above = index.tailMap(key(value), true)
+                .entrySet().iterator();
+        Map.Entry<Long, SequenceList> nextBelow = below.hasNext() ? below.next() : null;
+        Map.Entry<Long, SequenceList> nextAbove = above.hasNext() ? above.next() : null;
+
+        while (filled < nearest.length && (nextBelow != null || nextAbove != null)) {
+            boolean takeAbove = nextBelow == null || (nextAbove != null
+                    && distance(nextAbove.getKey(), value) <= distance(nextBelow.getKey(), value));
+            SequenceList sequences = (takeAbove ? nextAbove : nextBelow).getValue();
+            for (int i = sequences.size() - 1; i >= 0 && filled < nearest.length; i--) {
+                nearest[filled++] = sequences.get(i);
+            }
+            if (takeAbove) {
+                nextAbove = above.hasNext() ? above.next() : null;
+            } else {
+                nextBelow = below.hasNext() ? below.next() : null;
+            }
+        }
+        return Arrays.copyOf(nearest, filled);
+    }
+
+    /**
+     * Get the smallest result, or NaN if empty
+     */
+    public double getMin() {
+        return index.isEmpty() ? Double.NaN : value(index.firstKey());
+    }
+
+    /**
+     * Get the largest result (NaN sorts above everything), or NaN if empty
+     */
+    public double getMax() {
+        return index.isEmpty() ? Double.NaN : value(index.lastKey());
+    }
+
+    /**
+     * Get number of indexed rows
+     */
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Get number of distinct results
+     */
+    public int getDistinctCount() {
+        return index.size();
+    }
+
+    /**
+     * Remove everything from the index
+     */
+    public void clear() {
+        index.clear();
+        entryCount = 0;
+    }
+
+    private static long[] collect(NavigableMap<Long, SequenceList> range) {
+        int total = 0;
+        for (SequenceList sequences : range.values()) {
+            total += sequences.size();
+        }
+        long[] collected = new long[total];
+        int filled = 0;
+        for (SequenceList sequences : range.values()) {
+            filled = sequences.copyTo(collected, filled);
+        }
+
+        // Each list is ascending; sort the union and hand it back newest first
+        Arrays.sort(collected);
+        for (int i = 0, j = collected.length - 1; i < j; i++, j--) {
+            long swap = collected[i];
+            collected[i] = collected[j];
+            collected[j] = swap;
+        }
+        return collected;
+    }
+
+    private static double distance(long key, double value) {
+        return Math.abs(value(key) - value);
+    }
+
+    /**
+     * Map a double to a long whose signed order matches the double's order
+     */
+    static long key(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    static double value(long key) {
+        return Double.longBitsToDouble(key ^ ((key >> 63) & Long.MAX_VALUE));
+    }
+}
@@ -0,0 +1,279 @@
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * The most recent values of a memory slot, by count or by age, with running aggregates.
+ * Demonstrates sliding-window algorithms: monotonic deques and compensated sums.
+ *
+ * Values sit in a ring buffer. The sum is kept with Neumaier compensation, so adding
+ * and removing millions of values does not leave rounding error behind, and the
+ * variance with Welford's update, run forwards for new values and backwards for
+ * expiring ones, and recomputed from the window when backing a value out would lose
+ * precision. Minimum and maximum come from monotonic deques: a value is dropped
+ * from the minimum deque as soon as a smaller one arrives, since it can never be the
+ * minimum again, so the front is always the answer. Every update and every aggregate
+ * is O(1) (amortized), however large the window.
+ */
+public class RollingWindow {
+
+    /**
+     * Aggregates expressions can read as slot.name, e.g. "S.mean"
+     */
+    public enum Aggregate {
+        COUNT, SUM, MEAN, MIN, MAX, VAR, STD;
+
+        /**
+         * Find the aggregate with the given name, ignoring case
+         */
+        public static Aggregate fromName(String name) {
+            for (Aggregate aggregate : values()) {
+                if (aggregate.name().equalsIgnoreCase(name)) {
+                    return aggregate;
+                }
+            }
+            throw new CalculatorException.MemoryOperationException(String.format(
+                    "Unknown aggregate '%s'. Use count, sum, mean, min, max, var or std", name));
+        }
+
+        /**
+         * Get number of values needed before the aggregate is defined
+         */
+        int minimumCount() {
+            switch (this) {
+                case COUNT:
+                case SUM:
+                    return 0;
+                case VAR:
+                case STD:
+                    return 2;
+                default:
+                    return 1;
+            }
+        }
+    }
+
+    private final int maxCount;
+    private final long maxAgeNanos;
+
+    // Ring buffer indexed by sequence number & mask; the oldest value is next - count
+    private double[] values = new double[16];
+    private long[] times = new long[16];
+    private int mask = 15;
+    private long next;
+    private int count;
+
+    // Sequence numbers of candidate minimums (increasing values) and maximums (decreasing)
+    private long[] minQueue = new long[16];
+    private long minHead;
+    private long minTail;
+    private long[] maxQueue = new long[16];
+    private long maxHead;
+    private long maxTail;
+
+    private double sum;
+    private double compensation; // Low-order bits sum has lost
+    private double mean;
+    private double squaredDeviations; // Welford's M2
+    private int removalsSinceResync;
+
+    /**
+     * Keep the last given number of values
+     */
+    public RollingWindow(int maxCount) {
+        if (maxCount <= 0) {
+            throw new IllegalArgumentException("Window must hold at least one value");
+        }
+        this.maxCount = maxCount;
+        this.maxAgeNanos = Long.MAX_VALUE;
+    }
+
+    /**
+     * Keep the values added within the given time
+     */
+    public RollingWindow(Duration maxAge) {
+        if (maxAge.isNegative() || maxAge.isZero()) {
+            throw new IllegalArgumentException("Window duration must be positive");
+        }
+        this.maxCount = Integer.MAX_VALUE;
+        this.maxAgeNanos = maxAge.toNanos();
+    }
+
+    /**
+     * Add a value observed at the given System.nanoTime()
+     */
+    public synchronized void add(double value, long nanoTime) {
+        expire(nanoTime);
+        if (count == maxCount) {
+            removeOldest();
+        }
+        if (count == values.length) {
+            grow();
+        }
+        long sequence = next++;
+        values[(int) sequence & mask] = value;
+        times[(int) sequence & mask] = nanoTime;
+        count++;
+
+        addToSum(value);
+        double delta = value - mean;
+        mean += delta / count;
+        squaredDeviations += delta * (value - mean);
+
+        while (minTail > minHead && values[(int) minQueue[(int) (minTail - 1) & mask] & mask] >= value) {
+            minTail--;
+        }
+        minQueue[(int) minTail++ & mask] = sequence;
+        while (maxTail > maxHead && values[(int) maxQueue[(int) (maxTail - 1) & mask] & mask] <= value) {
+            maxTail--;
+        }
+        maxQueue[(int) maxTail++ & mask] = sequence;
+    }
+
+    /**
+     * Drop every value
+     */
+    public synchronized void clear() {
+        count = 0;
+        minHead = minTail = 0;
+        maxHead = maxTail = 0;
+        sum = compensation = mean = squaredDeviations = 0;
+        removalsSinceResync = 0;
+    }
+
+    /**
+     * Check if an aggregate is defined at the given System.nanoTime()
+     */
+    public synchronized boolean has(Aggregate aggregate, long nanoTime) {
+        expire(nanoTime);
+        return count >= aggregate.minimumCount();
+    }
+
+    /**
+     * Get an aggregate of the values in the window at the given System.nanoTime()
+     */
+    public synchronized double get(Aggregate aggregate, long nanoTime) {
+        expire(nanoTime);
+        if (count < aggregate.minimumCount()) {
+            throw new CalculatorException.MemoryOperationException(String.format(
+                    "%s needs at least %d values in the window, which has %d",
+                    aggregate.name().toLowerCase(Locale.ROOT), aggregate.minimumCount(), count));
+        }
+        switch (aggregate) {
+            case COUNT:
+                return count;
+            case SUM:
+                return sum + compensation;
+            case MEAN:
+                return (sum + compensation) / count;
+            case MIN:
+                return values[(int) minQueue[(int) minHead & mask] & mask];
+            case MAX:
+                return values[(int) maxQueue[(int) maxHead & mask] & mask];
+            case VAR:
+                return Math.max(0, squaredDeviations / (count - 1));
+            case STD:
+                return Math.sqrt(Math.max(0, squaredDeviations / (count - 1)));
+            default:
+                throw new IllegalStateException("Unhandled aggregate " + aggregate);
+        }
+    }
+
+    /**
+     * Get a description of the window's size, e.g. "last 100" or "PT5M"
+     */
+    public String getDescription() {
+        return maxAgeNanos == Long.MAX_VALUE ? "last " + maxCount : Duration.ofNanos(maxAgeNanos).toString();
+    }
+
+    private void expire(long nanoTime) {
+        while (count > 0 && nanoTime - times[(int) (next - count) & mask] > maxAgeNanos) {
+            removeOldest();
+        }
+    }
+
+    private void removeOldest() {
+        long sequence = next - count;
+        double value = values[(int) sequence & mask];
+        count--;
+        if (minQueue[(int) minHead & mask] == sequence) {
+            minHead++;
+        }
+        if (maxQueue[(int) maxHead & mask] == sequence) {
+            maxHead++;
+        }
+        addToSum(-value);
+        if (count == 0) {
+            sum = compensation = mean = squaredDeviations = 0;
+            return;
+        }
+        double before = squaredDeviations;
+        double delta = value - mean;
+        mean -= delta / count;
+        squaredDeviations -= delta * (value - mean);
+
+        // Backing values out slowly accumulates error, and removing an outlier cancels
+        // nearly all of the variance along with the precision it was computed with.
+        // Recomputing once per window's worth of removals, or when more than 10 bits
+        // cancel, keeps the error bounded; the variance has to grow by that much again
+        // before the next cancellation, so the cost stays O(1) amortized.
+        if (++removalsSinceResync >= count || squaredDeviations < before * 0x1p-10) {
+            resync();
+        }
+    }
+
+    /**
+     * Neumaier's compensated addition
+     */
+    private void addToSum(double value) {
+        double total = sum + value;
+        if (Math.abs(sum) >= Math.abs(value)) {
+            compensation += (sum - total) + value;
+        } else {
+            compensation += (value - total) + sum;
+        }
+        sum = total;
+    }
+
+    /**
+     * Recompute the sum and variance exactly from the values in the window
+     */
+    private void resync() {
+        sum = compensation = 0;
+        for (long sequence = next - count; sequence < next; sequence++) {
+            addToSum(values[(int) sequence & mask]);
+        }
+        mean = (sum + compensation) / count;
+        squaredDeviations = 0;
+        for (long sequence = next - count; sequence < next; sequence++) {
+            double deviation = values[(int) sequence & mask] - mean;
+            squaredDeviations += deviation * deviation;
+        }
+        removalsSinceResync = 0;
+    }
+
+    /**
+     * Double the ring buffers, keeping every entry at its sequence number's new index
+     */
+    private void grow() {
+        int newMask = mask * 2 + 1;
+        double[] newValues = new double[newMask + 1];
+        long[] newTimes = new long[newMask + 1];
+        for (long sequence = next - count; sequence < next; sequence++) {
+            newValues[(int) sequence & newMask] = values[(int) sequence & mask];
+            newTimes[(int) sequence & newMask] = times[(int) sequence & mask];
+        }
+        minQueue = regrow(minQueue, minHead, minTail, newMask);
+        maxQueue = regrow(maxQueue, maxHead, maxTail, newMask);
+        values = newValues;
+        times = newTimes;
+        mask = newMask;
+    }
+
+    private long[] regrow(long[] queue, long head, long tail, int newMask) {
+        long[] grown = new long[newMask + 1];
+        for (long position = head; position < tail; position++) {
+            grown[(int) position & newMask] = queue[(int) position & mask];
+        }
+        return grown;
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Ascending history sequence numbers, appended at the back and removed from the front.
+ * Demonstrates a growable circular buffer of primitives.
+ *
+ * History evicts its oldest row first, so an index that keeps one of these per key
+ * (an expression, a result value) removes a row by dropping the first element.
+ */
+public class SequenceList {
+
+    private long[] sequences = new long[2];
+    private int head;
+    private int size;
+
+    /**
+     * Append a sequence number, which must be larger than any already present
+     */
+    public void add(long sequence) {
+        if (size == sequences.length) {
+            long[] larger = new long[size * 2];
+            copyTo(larger, 0);
+            sequences = larger;
+            head = 0;
+        }
+        sequences[(head + size) % sequences.length] = sequence;
+        size++;
+    }
+
+    /**
+     * Remove the oldest sequence number
+     */
+    public void removeFirst() {
+        if (size == 0) {
+            throw new IllegalStateException("Sequence list is empty");
+        }
+        head = (head + 1) % sequences.length;
+        size--;
+    }
+
+    /**
+     * Get the i-th sequence number, 0 being the oldest
+     */
+    public long get(int index) {
+        return sequences[(head + index) % sequences.length];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Copy all sequence numbers, oldest first, into the array; returns the offset after them
+     */
+    public int copyTo(long[] target, int offset) {
+        int first = Math.min(size, sequences.length - head);
+        System.arraycopy(sequences, head, target, offset, first);
+        System.arraycopy(sequences, 0, target, offset + first, size - first);
+        return offset + size;
+    }
+}
@@ -0,0 +1,223 @@
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Evaluation engine that runs one Calculator per core, each confined to its own thread.
+ * Demonstrates thread confinement, key-based routing and merging partitioned state.
+ *
+ * Calculator, HistoryManager and MemoryManager are not thread-safe. Instead of guarding
+ * them with a global lock, every shard owns a private set and only its dedicated thread
+ * ever touches them, so shards never contend with each other. Requests with the same
+ * key (a session id, a user, ...) always go to the same shard and therefore see the same
+ * memory slots and history. Other keys may share that shard, so its history is not one
+ * key's alone and evaluate() rejects result references ("ans", "#n"); tasks passed to
+ * execute() see the shard's whole history. Compiled expressions are immutable and
+ * shared by all shards.
+ */
+public class ShardedCalculatorEngine implements AutoCloseable {
+
+    /**
+     * Per-shard counters, as seen on the shard's own thread
+     */
+    public record ShardStatistics(int shard, long evaluations, long errors, int historySize) {
+    }
+
+    private final Shard[] shards;
+    private final CompiledExpressionCache expressionCache;
+
+    /**
+     * Create engine with one shard per available processor
+     */
+    public ShardedCalculatorEngine() {
+        this(Runtime.getRuntime().availableProcessors(), 100);
+    }
+
+    /**
+     * Create engine with custom shard count and per-shard history size
+     */
+    public ShardedCalculatorEngine(int shardCount, int historySizePerShard) {
+        this(shardCount, historySizePerShard, new CompiledExpressionCache());
+    }
+
+    /**
+     * Create engine whose shards share the given compiled-expression cache
+     */
+    public ShardedCalculatorEngine(int shardCount, int historySizePerShard,
+            CompiledExpressionCache expressionCache) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("Shard count must be positive");
+        }
+        this.expressionCache = expressionCache;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i, new Calculator(new HistoryManager(historySizePerShard),
+                    new MemoryManager(), expressionCache));
+        }
+    }
+
+    /**
+     * Evaluate an expression on the shard that owns the key
+     */
+    public CompletableFuture<Double> evaluate(String key, String expression) {
+        Shard shard = shards[shardFor(key)];
+        return CompletableFuture.supplyAsync(() -> shard.evaluate(expression), shard.thread);
+    }
+
+    /**
+     * Run an arbitrary task against the key's Calculator on its shard thread
+     */
+    public <T> CompletableFuture<T> execute(String key, Function<Calculator, T> task) {
+        Shard shard = shards[shardFor(key)];
+        return CompletableFuture.supplyAsync(() -> task.apply(shard.calculator), shard.thread);
+    }
+
+    /**
+     * Get the shard index that owns a key
+     */
+    public int shardFor(String key) {
+        int h = key == null ? 0 : key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x9E3779B9; // Spread similar keys (session-1, session-2, ...) across shards
+        return Math.floorMod(h ^ (h >>> 16), shards.length);
+    }
+
+    /**
+     * Get number of shards
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public CompiledExpressionCache getExpressionCache() {
+        return expressionCache;
+    }
+
+    /**
+     * Apply a retention policy to every shard's history at a fixed interval; each
+     * compaction runs on its shard's thread between evaluations. Close the returned
+     * compactor to stop.
+     */
+    public HistoryCompactor startCompaction(HistoryRetention retention, Duration period) {
+        HistoryCompactor compactor = new HistoryCompactor(retention, period);
+        for (Shard shard : shards) {
+            compactor.register(shard.calculator.getHistoryManager(), shard.thread);
+        }
+        return compactor;
+    }
+
+    /**
+     * Merge the most recent history of every shard, newest first
+     */
+    public List<HistoryManager.CalculationEntry> getMergedHistory(int maxEntries) {
+        List<CompletableFuture<List<HistoryManager.CalculationEntry>>> perShard = new ArrayList<>();
+        for (Shard shard : shards) {
+            perShard.add(CompletableFuture.supplyAsync(() -> new ArrayList<>(
+                    shard.calculator.getHistoryManager().getRecentEntries(maxEntries)), shard.thread));
+        }
+
+        List<HistoryManager.CalculationEntry> merged = new ArrayList<>();
+        for (CompletableFuture<List<HistoryManager.CalculationEntry>> entries : perShard) {
+            merged.addAll(entries.join());
+        }
+        merged.sort(Comparator.comparing(HistoryManager.CalculationEntry::timestamp).reversed());
+        return merged.subList(0, Math.min(maxEntries, merged.size()));
+    }
+
+    /**
+     * Collect counters from every shard
+     */
+    public List<ShardStatistics> getStatistics() {
+        List<CompletableFuture<ShardStatistics>> perShard = new ArrayList<>();
+        for (Shard shard : shards) {
+            perShard.add(CompletableFuture.supplyAsync(shard::statistics, shard.thread));
+        }
+
+        List<ShardStatistics> statistics = new ArrayList<>();
+        for (CompletableFuture<ShardStatistics> shardStatistics : perShard) {
+            statistics.add(shardStatistics.join());
+        }
+        return statistics;
+    }
+
+    /**
+     * Get engine-wide statistics summary
+     */
+    public String getSummary() {
+        List<ShardStatistics> statistics = getStatistics();
+        long evaluations = statistics.stream().mapToLong(ShardStatistics::evaluations).sum();
+        long errors = statistics.stream().mapToLong(ShardStatistics::errors).sum();
+        long busiest = statistics.stream().mapToLong(ShardStatistics::evaluations).max().orElse(0);
+
+        return String.format(
+                "Engine Summary:\n" +
+                        "Shards: %d\n" +
+                        "Evaluations: %d (%d errors)\n" +
+                        "Busiest shard: %d evaluations\n" +
+                        "%s",
+                shards.length, evaluations, errors, busiest, expressionCache.getSummary());
+    }
+
+    /**
+     * Stop all shard threads after their queued work finishes
+     */
+    @Override
+    public void close() {
+        for (Shard shard : shards) {
+            shard.thread.shutdown();
+        }
+        for (Shard shard : shards) {
+            try {
+                shard.thread.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * One thread plus the calculator state only that thread may touch
+     */
+    private static final class Shard {
+        final int index;
+        final Calculator calculator;
+        final ExecutorService thread;
+        long evaluations;
+        long errors;
+
+        Shard(int index, Calculator calculator) {
+            this.index = index;
+            this.calculator = calculator;
+            this.thread = Executors.newSingleThreadExecutor(task -> {
+                Thread shardThread = new Thread(task, "calculator-shard-" + index);
+                shardThread.setDaemon(true);
+                return shardThread;
+            });
+        }
+
+        double evaluate(String expression) {
+            evaluations++;
+            try {
+                if (ExpressionCompiler.hasResultReferences(expression)) {
+                    throw new CalculatorException.InvalidExpressionException(
+                            "Result references (ans, #n) are not supported: a shard's history is shared by other keys");
+                }
+                return calculator.evaluate(expression);
+            } catch (CalculatorException e) {
+                errors++;
+                throw e;
+            }
+        }
+
+        ShardStatistics statistics() {
+            return new ShardStatistics(index, evaluations, errors, calculator.getHistorySize());
+        }
+    }
+}
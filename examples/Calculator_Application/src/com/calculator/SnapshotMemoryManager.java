@@ -0,0 +1,214 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Memory whose whole contents can be captured and put back in constant time.
+ * Demonstrates snapshot isolation with persistent data structures.
+ *
+ * All slots live in one immutable MemorySnapshot. A write builds the next snapshot,
+ * sharing everything but the changed path, and publishes it with a compare-and-set;
+ * a reader just takes the current one. snapshot() therefore costs nothing, a reader
+ * holding one sees every slot as it was at one instant however long it takes, and
+ * neither readers nor writers ever wait for each other. Writes to different slots
+ * only retry when they race for the same instant.
+ *
+ * Safe to share between threads.
+ */
+public class SnapshotMemoryManager extends MemoryManager {
+
+    private final AtomicReference<MemorySnapshot> slots = new AtomicReference<>(MemorySnapshot.empty());
+
+    /**
+     * Create snapshot memory with default capacity
+     */
+    public SnapshotMemoryManager() {
+        this(26);
+    }
+
+    /**
+     * Create snapshot memory with custom capacity
+     */
+    public SnapshotMemoryManager(int capacity) {
+        super(capacity);
+    }
+
+    @Override
+    public synchronized int slotHandle(String slot) {
+        return super.slotHandle(slot);
+    }
+
+    @Override
+    protected synchronized int findHandle(String slot) {
+        return super.findHandle(slot);
+    }
+
+    @Override
+    public synchronized String getSlotName(int handle) {
+        return super.getSlotName(handle);
+    }
+
+    @Override
+    protected synchronized int getHandleCount() {
+        return super.getHandleCount();
+    }
+
+    /**
+     * Check a name for a slot that is about to be stored
+     */
+    private static void checkSlotName(String slot) {
+        if (slot == null || slot.trim().isEmpty()) {
+            throw new CalculatorException.MemoryOperationException(
+                    "Memory slot name cannot be null or empty");
+        }
+        if (!isValidSlotName(slot)) {
+            throw new CalculatorException.MemoryOperationException(
+                    "Invalid memory slot name. Use letters, numbers, and underscores only");
+        }
+    }
+
+    @Override
+    public void store(String slot, double value) {
+        checkSlotName(slot);
+        MemorySnapshot current;
+        do {
+            current = slots.get();
+            if (!current.hasValue(slot) && current.size() >= getCapacity()) {
+                throw new CalculatorException.MemoryOperationException(
+                        String.format("Memory capacity exceeded. Maximum %d slots allowed", getCapacity()));
+            }
+        } while (!slots.compareAndSet(current, current.with(slot, value)));
+        fireChanged(slot);
+    }
+
+    @Override
+    public void store(int handle, double value) {
+        store(getSlotName(handle), value);
+    }
+
+    @Override
+    public double recall(String slot) {
+        if (slot == null || slot.trim().isEmpty() || slot.indexOf('.') >= 0) {
+            return super.recall(slot); // Reports the error or reads a rolling aggregate
+        }
+        return slots.get().recall(slot);
+    }
+
+    @Override
+    public double recall(int handle) {
+        return recall(getSlotName(handle));
+    }
+
+    /**
+     * Add to a slot atomically; an empty slot starts from zero
+     */
+    @Override
+    public void addToMemory(String slot, double value) {
+        checkSlotName(slot);
+        MemorySnapshot current;
+        MemorySnapshot updated;
+        do {
+            current = slots.get();
+            boolean present = current.hasValue(slot);
+            if (!present && current.size() >= getCapacity()) {
+                throw new CalculatorException.MemoryOperationException(
+                        String.format("Memory capacity exceeded. Maximum %d slots allowed", getCapacity()));
+            }
+            updated = current.with(slot, present ? current.get(slot, 0) + value : value);
+        } while (!slots.compareAndSet(current, updated));
+        fireChanged(slot);
+    }
+
+    @Override
+    public void addToMemory(int handle, double value) {
+        addToMemory(getSlotName(handle), value);
+    }
+
+    @Override
+    public void clear(String slot) {
+        if (slot == null) {
+            throw new CalculatorException.MemoryOperationException(
+                    "Memory slot name cannot be null");
+        }
+        MemorySnapshot current;
+        do {
+            current = slots.get();
+            if (!current.hasValue(slot)) {
+                throw new CalculatorException.MemoryOperationException(
+                        String.format("Memory slot '%s' does not exist", slot));
+            }
+        } while (!slots.compareAndSet(current, current.without(slot)));
+        fireChanged(slot);
+    }
+
+    @Override
+    public void clear(int handle) {
+        clear(getSlotName(handle));
+    }
+
+    @Override
+    public void clearAll() {
+        clearFormulas();
+        slots.getAndSet(MemorySnapshot.empty()).forEach((slot, value) -> fireChanged(slot));
+    }
+
+    @Override
+    public boolean hasValue(String slot) {
+        if (slot != null && slot.indexOf('.') >= 0) {
+            return super.hasValue(slot);
+        }
+        return slots.get().hasValue(slot);
+    }
+
+    @Override
+    public boolean hasValue(int handle) {
+        return handle >= 0 && handle < getHandleCount() && hasValue(getSlotName(handle));
+    }
+
+    /**
+     * Get the current contents, in constant time
+     */
+    @Override
+    public MemorySnapshot snapshot() {
+        return slots.get();
+    }
+
+    /**
+     * Make a snapshot the current contents, in constant time unless there are change
+     * listeners, formulas or rolling slots, which are told about every slot that
+     * differs; formulas are kept and recalculated from the restored values
+     */
+    @Override
+    public void restore(MemorySnapshot snapshot) {
+        if (snapshot.size() > getCapacity()) {
+            throw new CalculatorException.MemoryOperationException(
+                    String.format("Memory capacity exceeded. Maximum %d slots allowed", getCapacity()));
+        }
+        restoreSlots(() -> {
+            List<String> changed = new ArrayList<>();
+            MemorySnapshot previous = slots.getAndSet(snapshot);
+            if (previous == snapshot || !hasChangeListeners()) {
+                return changed;
+            }
+            previous.forEach((slot, value) -> {
+                if (!snapshot.hasValue(slot)) {
+                    changed.add(slot);
+                }
+            });
+            snapshot.forEach((slot, value) -> {
+                if (!previous.hasValue(slot) || Double.compare(previous.get(slot, 0), value) != 0) {
+                    changed.add(slot);
+                }
+            });
+            for (String slot : changed) {
+                fireChanged(slot);
+            }
+            return changed;
+        });
+    }
+
+    @Override
+    public int getOccupiedSlots() {
+        return slots.get().size();
+    }
+}
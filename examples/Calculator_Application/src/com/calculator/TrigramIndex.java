@@ -0,0 +1,161 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Incrementally maintained trigram index for case-insensitive substring search.
+ * Demonstrates inverted indexes, posting lists and set intersection with bitsets.
+ *
+ * The index works at two levels. Each distinct expression gets an id from an
+ * ExpressionDictionary and every trigram of its lowercase text points to a bitset
+ * of ids, so trigrams are only extracted the first time an expression is seen.
+ * Each id also keeps the sequence numbers of the history rows that hold it in a
+ * SequenceList. History evicts oldest first, so removing a row just drops the first
+ * sequence number of its expression. A search intersects the bitsets of the
+ * query's trigrams, confirms each candidate with String.contains and merges the
+ * candidates' sequence numbers. Not thread-safe.
+ */
+public class TrigramIndex {
+
+    private final ExpressionDictionary ids = new ExpressionDictionary();
+    private final Map<Long, BitSet> trigrams = new HashMap<>();
+    private String[] lowercase = new String[64];
+    private SequenceList[] postings = new SequenceList[64];
+    private long entryCount;
+
+    /**
+     * Index a new history row
+     */
+    public void add(String expression, long sequence) {
+        int id = ids.acquire(expression);
+        if (id >= postings.length) {
+            lowercase = Arrays.copyOf(lowercase, Math.max(id + 1, postings.length * 2));
+            postings = Arrays.copyOf(postings, lowercase.length);
+        }
+        if (postings[id] == null || postings[id].isEmpty()) {
+            String text = expression.toLowerCase();
+            lowercase[id] = text;
+            postings[id] = new SequenceList();
+            for (int i = 0; i + 3 <= text.length(); i++) {
+                trigrams.computeIfAbsent(trigram(text, i), key -> new BitSet()).set(id);
+            }
+        }
+        postings[id].add(sequence);
+        entryCount++;
+    }
+
+    /**
+     * Remove the oldest row holding the expression
+     */
+    public void removeOldest(String expression) {
+        int id = ids.find(expression);
+        if (id < 0) {
+            return;
+        }
+        postings[id].removeFirst();
+        entryCount--;
+        if (postings[id].isEmpty()) {
+            String text = lowercase[id];
+            for (int i = 0; i + 3 <= text.length(); i++) {
+                Long key = trigram(text, i);
+                BitSet holders = trigrams.get(key);
+                if (holders != null) {
+                    holders.clear(id);
+                    if (holders.isEmpty()) {
+                        trigrams.remove(key);
+                    }
+                }
+            }
+            lowercase[id] = null;
+            postings[id] = null;
+        }
+        ids.release(id);
+    }
+
+    /**
+     * Find the sequence numbers of rows whose expression contains the (lowercase)
+     * text, newest first
+     */
+    public long[] search(String lowercaseText) {
+        BitSet candidates = candidates(lowercaseText);
+
+        int total = 0;
+        for (int id = candidates.nextSetBit(0); id >= 0; id = candidates.nextSetBit(id + 1)) {
+            if (lowercase[id] != null && lowercase[id].contains(lowercaseText)) {
+                total += postings[id].size();
+            } else {
+                candidates.clear(id); // Trigrams matched but not contiguously
+            }
+        }
+
+        long[] sequences = new long[total];
+        int filled = 0;
+        for (int id = candidates.nextSetBit(0); id >= 0; id = candidates.nextSetBit(id + 1)) {
+            filled = postings[id].copyTo(sequences, filled);
+        }
+        Arrays.sort(sequences);
+        for (int i = 0, j = sequences.length - 1; i < j; i++, j--) {
+            long swap = sequences[i];
+            sequences[i] = sequences[j];
+            sequences[j] = swap;
+        }
+        return sequences;
+    }
+
+    private BitSet candidates(String text) {
+        if (text.length() < 3) {
+            // Too short to have a trigram; every live expression is a candidate
+            BitSet all = new BitSet(ids.getIdLimit());
+            for (int id = 0; id < ids.getIdLimit(); id++) {
+                if (lowercase[id] != null) {
+                    all.set(id);
+                }
+            }
+            return all;
+        }
+
+        BitSet result = null;
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            BitSet holders = trigrams.get(trigram(text, i));
+            if (holders == null) {
+                return new BitSet();
+            }
+            if (result == null) {
+                result = (BitSet) holders.clone();
+            } else {
+                result.and(holders);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get number of indexed rows
+     */
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Get number of distinct trigrams
+     */
+    public int getTrigramCount() {
+        return trigrams.size();
+    }
+
+    /**
+     * Remove everything from the index
+     */
+    public void clear() {
+        ids.clear();
+        trigrams.clear();
+        lowercase = new String[64];
+        postings = new SequenceList[64];
+        entryCount = 0;
+    }
+
+    private static long trigram(String text, int start) {
+        return (long) text.charAt(start) << 32 | (long) text.charAt(start + 1) << 16 | text.charAt(start + 2);
+    }
+}
@@ -0,0 +1,112 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for ConcurrentMemoryManager under contention: no M+ is ever lost, and the
+ * capacity holds however many threads claim slots at once.
+ */
+class ConcurrentMemoryManagerTest {
+
+    private static final int THREADS = 8;
+    private static final int ADDS_PER_THREAD = 100_000;
+
+    /**
+     * Run the same task on every thread, all starting together
+     */
+    private static <T> List<T> runTogether(Callable<T> task) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<T>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    return task.call();
+                }));
+            }
+            start.countDown();
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void memoryPlusNeverLosesAnUpdate() throws Exception {
+        ConcurrentMemoryManager memory = new ConcurrentMemoryManager();
+
+        runTogether(() -> {
+            for (int i = 0; i < ADDS_PER_THREAD; i++) {
+                memory.addToMemory(1);
+                memory.addToMemory("total", 2); // Interned by whichever thread gets there first
+            }
+            return null;
+        });
+
+        assertEquals(THREADS * ADDS_PER_THREAD, memory.recall(), 0);
+        assertEquals(2.0 * THREADS * ADDS_PER_THREAD, memory.recall("total"), 0);
+        assertEquals(2, memory.getOccupiedSlots());
+    }
+
+    @Test
+    void getAndAddHandsOutEveryPreviousValueOnce() throws Exception {
+        ConcurrentMemoryManager memory = new ConcurrentMemoryManager();
+        memory.store("N", 0);
+        int handle = memory.slotHandle("N");
+
+        List<BitSet> seen = runTogether(() -> {
+            BitSet values = new BitSet();
+            for (int i = 0; i < ADDS_PER_THREAD; i++) {
+                values.set((int) memory.getAndAdd(handle, 1));
+            }
+            return values;
+        });
+
+        BitSet all = new BitSet();
+        int total = 0;
+        for (BitSet values : seen) {
+            total += values.cardinality();
+            all.or(values);
+        }
+        assertEquals(THREADS * ADDS_PER_THREAD, total);
+        assertEquals(THREADS * ADDS_PER_THREAD, all.cardinality()); // No value handed out twice
+        assertEquals(THREADS * ADDS_PER_THREAD, memory.recall("N"), 0);
+    }
+
+    @Test
+    void capacityHoldsWhileThreadsClaimSlots() throws Exception {
+        ConcurrentMemoryManager memory = new ConcurrentMemoryManager(10);
+        AtomicInteger next = new AtomicInteger();
+
+        List<Integer> stored = runTogether(() -> {
+            int count = 0;
+            for (int i = 0; i < 20; i++) {
+                try {
+                    memory.addToMemory("slot_" + next.getAndIncrement(), 1);
+                    count++;
+                } catch (CalculatorException.MemoryOperationException e) {
+                    assertTrue(e.getMessage().startsWith("Memory capacity exceeded"), e.getMessage());
+                }
+            }
+            return count;
+        });
+
+        assertEquals(10, stored.stream().mapToInt(Integer::intValue).sum());
+        assertEquals(10, memory.getOccupiedSlots());
+    }
+}
@@ -0,0 +1,151 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for FormulaGraph: dependency order, skipped recalculation, cycles, and
+ * formulas surviving a restore.
+ */
+class FormulaGraphTest {
+
+    /**
+     * Drive a graph directly, telling it about every outside store
+     */
+    private static final class Sheet {
+        final MemoryManager memory = new MemoryManager();
+        final FormulaGraph graph = new FormulaGraph(memory);
+
+        void formula(String slot, String formula) {
+            graph.setFormula(memory.slotHandle(slot), ExpressionCompiler.compile(formula));
+        }
+
+        void store(String slot, double value) {
+            int handle = memory.slotHandle(slot);
+            memory.store(handle, value);
+            graph.slotChanged(handle);
+        }
+
+        double recall(String slot) {
+            return memory.recall(slot);
+        }
+    }
+
+    @Test
+    void recalculatesEachDependentOnceAfterItsInputs() {
+        Sheet sheet = new Sheet();
+        sheet.store("a", 1);
+        sheet.formula("b", "a + 1");
+        sheet.formula("c", "a * 2");
+        sheet.formula("d", "b + c");
+        sheet.formula("e", "d + b");
+        long before = sheet.graph.getRecalculatedCount();
+
+        sheet.store("a", 10);
+
+        // Any order that ran d or e before their inputs would leave stale values
+        assertEquals(11, sheet.recall("b"));
+        assertEquals(20, sheet.recall("c"));
+        assertEquals(31, sheet.recall("d"));
+        assertEquals(42, sheet.recall("e"));
+        assertEquals(4, sheet.graph.getRecalculatedCount() - before);
+    }
+
+    @Test
+    void skipsFormulasWhoseInputsKeptTheirValues() {
+        Sheet sheet = new Sheet();
+        sheet.store("a", 1);
+        sheet.formula("b", "a * 0");
+        sheet.formula("c", "b + 1");
+        sheet.formula("d", "c * 2");
+        long before = sheet.graph.getRecalculatedCount();
+
+        sheet.store("a", 5);
+
+        assertEquals(1, sheet.graph.getRecalculatedCount() - before); // Only b ran
+        assertEquals(2, sheet.recall("d"));
+    }
+
+    @Test
+    void storingAFormulaSlotReplacesTheFormula() {
+        Sheet sheet = new Sheet();
+        sheet.store("a", 1);
+        sheet.formula("b", "a + 1");
+
+        sheet.store("b", 7);
+        sheet.store("a", 2);
+
+        assertNull(sheet.graph.getFormula(sheet.memory.slotHandle("b")));
+        assertEquals(7, sheet.recall("b"));
+    }
+
+    @Test
+    void rejectsCyclesNamingTheWholeLoop() {
+        Sheet sheet = new Sheet();
+        sheet.formula("A", "B + 1");
+        sheet.formula("B", "C + 1");
+
+        CalculatorException cycle = assertThrows(CalculatorException.MemoryOperationException.class,
+                () -> sheet.formula("C", "A + 1"));
+        assertEquals("Circular reference: C -> A -> B -> C", cycle.getMessage());
+
+        CalculatorException self = assertThrows(CalculatorException.MemoryOperationException.class,
+                () -> sheet.formula("D", "D * 2"));
+        assertEquals("Circular reference: D -> D", self.getMessage());
+        assertNull(sheet.graph.getFormula(sheet.memory.slotHandle("C")));
+    }
+
+    @Test
+    void restoreKeepsFormulasAndRecalculatesThem() {
+        for (MemoryManager memory : List.of(new MemoryManager(), new ConcurrentMemoryManager(26),
+                new SnapshotMemoryManager())) {
+            memory.addChangeListener(slot -> { });
+            memory.store("x1", 1);
+            memory.storeFormula("y1", "x1 * 10");
+            memory.storeFormula("z1", "y1 + 1");
+            MemorySnapshot snapshot = memory.snapshot();
+
+            memory.store("x1", 5);
+            memory.restore(snapshot);
+
+            String name = memory.getClass().getSimpleName();
+            assertEquals("x1 * 10", memory.getFormula("y1"), name);
+            assertEquals(11, memory.recall("z1"), name);
+            memory.store("x1", 2);
+            assertEquals(20, memory.recall("y1"), name);
+            assertEquals(21, memory.recall("z1"), name);
+        }
+    }
+
+    @Test
+    void restoreRecalculatesAFormulaSlotTheSnapshotLeftEmpty() {
+        for (MemoryManager memory : List.of(new MemoryManager(), new ConcurrentMemoryManager(26),
+                new SnapshotMemoryManager())) {
+            memory.store("x1", 3);
+            MemorySnapshot snapshot = memory.snapshot();
+            memory.storeFormula("y1", "x1 * 10");
+
+            memory.restore(snapshot);
+
+            String name = memory.getClass().getSimpleName();
+            assertEquals("x1 * 10", memory.getFormula("y1"), name);
+            assertEquals(30, memory.recall("y1"), name);
+        }
+    }
+
+    @Test
+    void restoreFeedsRollingSlots() {
+        SnapshotMemoryManager memory = new SnapshotMemoryManager();
+        memory.createRollingSlot("S", 10);
+        memory.store("S", 1);
+        MemorySnapshot snapshot = memory.snapshot();
+        memory.store("S", 5);
+
+        memory.restore(snapshot);
+
+        assertEquals(3, memory.recall("S.count")); // 1, 5 and the restored 1
+        assertEquals(7, memory.recall("S.sum"));
+    }
+}
@@ -0,0 +1,145 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for HistoryLog recovery: torn tails, clear markers, long records and the
+ * directory lock.
+ */
+class HistoryLogTest {
+
+    private static final LocalDateTime TIME = LocalDateTime.of(2024, 1, 2, 3, 4, 5);
+
+    @TempDir
+    Path directory;
+
+    private static HistoryManager.CalculationEntry entry(String expression, double result) {
+        return new HistoryManager.CalculationEntry(expression, result, TIME);
+    }
+
+    private static List<String> expressions(List<HistoryManager.CalculationEntry> entries) {
+        List<String> expressions = new ArrayList<>();
+        for (HistoryManager.CalculationEntry entry : entries) {
+            expressions.add(entry.expression());
+        }
+        return expressions;
+    }
+
+    private void write(HistoryLog log, String... expressions) throws IOException {
+        for (String expression : expressions) {
+            log.append(entry(expression, expression.length()));
+        }
+        log.flush();
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+    }
+
+    @Test
+    void recoversEntriesInOrderAcrossRestarts() throws IOException {
+        try (HistoryLog log = HistoryLog.open(directory)) {
+            write(log, "1+1", "2+2");
+        }
+        try (HistoryLog log = HistoryLog.open(directory)) {
+            write(log, "3+3");
+            assertEquals(List.of("1+1", "2+2", "3+3"), expressions(log.recover(10)));
+            assertEquals(List.of("2+2", "3+3"), expressions(log.recover(2)));
+        }
+    }
+
+    @Test
+    void recoversPastATornTail() throws IOException {
+        try (HistoryLog log = HistoryLog.open(directory)) {
+            write(log, "1+1", "2+2", "3+3");
+        }
+        Path segment = segments().get(0);
+        ByteBuffer torn = ByteBuffer.allocate(12).putInt(1000).putInt(0).putInt(42).flip();
+        try (var channel = Files.newByteChannel(segment, StandardOpenOption.APPEND)) {
+            channel.write(torn); // A record header whose body never made it to disk
+        }
+
+        try (HistoryLog log = HistoryLog.open(directory)) {
+            assertEquals(List.of("1+1", "2+2", "3+3"), expressions(log.recover(10)));
+            write(log, "4+4"); // Goes to a fresh segment after the torn one
+            assertEquals(List.of("1+1", "2+2", "3+3", "4+4"), expressions(log.recover(10)));
+        }
+    }
+
+    @Test
+    void stopsAtARecordWithABadChecksum() throws IOException {
+        try (HistoryLog log = HistoryLog.open(directory)) {
+            write(log, "1+1", "2+2");
+        }
+        Path segment = segments().get(0);
+        byte[] bytes = Files.readAllBytes(segment);
+        bytes[bytes.length - 1] ^= 0x7F; // Last byte of the second expression
+        Files.write(segment, bytes);
+
+        try (HistoryLog log = HistoryLog.open(directory)) {
+            assertEquals(List.of("1+1"), expressions(log.recover(10)));
+        }
+    }
+
+    @Test
+    void recoversOnlyWhatFollowsTheLastClear() throws IOException {
+        try (HistoryLog log = HistoryLog.open(directory)) {
+            write(log, "1+1", "2+2");
+            log.appendClear();
+            write(log, "3+3");
+            log.appendClear();
+            write(log, "4+4", "5+5");
+        }
+        try (HistoryLog log = HistoryLog.open(directory)) {
+            assertEquals(List.of("4+4", "5+5"), expressions(log.recover(10)));
+        }
+    }
+
+    @Test
+    void clearEndsRecoveryAcrossSegments() throws IOException {
+        try (HistoryLog log = new HistoryLog(directory, 64, 100, 1024)) { // About one entry per segment
+            write(log, "1+1", "2+2", "3+3");
+            log.appendClear();
+            write(log, "4+4", "5+5");
+            assertEquals(List.of("4+4", "5+5"), expressions(log.recover(10)));
+        }
+        try (HistoryLog log = new HistoryLog(directory, 64, 100, 1024)) {
+            assertEquals(List.of("4+4", "5+5"), expressions(log.recover(10)));
+        }
+    }
+
+    @Test
+    void keepsLongExpressionsWhole() throws IOException {
+        String expression = "é".repeat(40_000) + "+1"; // Over 64 KB of UTF-8
+        try (HistoryLog log = HistoryLog.open(directory)) {
+            write(log, expression);
+        }
+        try (HistoryLog log = HistoryLog.open(directory)) {
+            assertEquals(List.of(expression), expressions(log.recover(10)));
+        }
+    }
+
+    @Test
+    void refusesASecondLogOnTheSameDirectory() throws IOException {
+        HistoryLog log = HistoryLog.open(directory);
+        try {
+            assertThrows(IOException.class, () -> HistoryLog.open(directory));
+        } finally {
+            log.close();
+        }
+        HistoryLog.open(directory).close(); // Released on close
+    }
+}
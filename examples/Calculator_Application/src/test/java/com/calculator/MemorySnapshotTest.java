@@ -0,0 +1,79 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for MemorySnapshot: structural sharing, full hash collisions and folding
+ * subtries back when slots are removed.
+ */
+class MemorySnapshotTest {
+
+    @Test
+    void changesLeaveEarlierSnapshotsAlone() {
+        MemorySnapshot first = MemorySnapshot.empty().with("A", 1).with("B", 2);
+        MemorySnapshot second = first.with("A", 10).without("B");
+
+        assertEquals(1, first.recall("A"));
+        assertEquals(2, first.recall("B"));
+        assertEquals(10, second.recall("A"));
+        assertFalse(second.hasValue("B"));
+        assertEquals(2, first.size());
+        assertEquals(1, second.size());
+    }
+
+    @Test
+    void unchangedWritesReturnTheSameSnapshot() {
+        MemorySnapshot snapshot = MemorySnapshot.empty().with("A", 1);
+
+        assertSame(snapshot, snapshot.with("A", 1));
+        assertSame(snapshot, snapshot.without("B"));
+    }
+
+    @Test
+    void keepsSlotsWhoseNamesHaveTheSameHash() {
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        MemorySnapshot snapshot = MemorySnapshot.empty().with("Aa", 1).with("BB", 2).with("AaAa", 3);
+
+        assertEquals(1, snapshot.recall("Aa"));
+        assertEquals(2, snapshot.recall("BB"));
+        assertEquals(3, snapshot.size());
+        assertEquals(List.of("Aa", "AaAa", "BB"), snapshot.getSlotNames());
+
+        MemorySnapshot updated = snapshot.with("BB", 20).without("Aa");
+        assertEquals(20, updated.recall("BB"));
+        assertFalse(updated.hasValue("Aa"));
+        assertEquals(1, snapshot.recall("Aa"));
+    }
+
+    @Test
+    void foldsCollisionSubtriesBackOnRemoval() {
+        MemorySnapshot single = MemorySnapshot.empty().with("Aa", 1);
+        MemorySnapshot colliding = single.with("BB", 2);
+        assertTrue(colliding.nodeCount() > single.nodeCount());
+
+        MemorySnapshot removed = colliding.without("BB");
+
+        assertEquals(single.nodeCount(), removed.nodeCount());
+        assertEquals(1, removed.recall("Aa"));
+        assertEquals(1, colliding.without("Aa").nodeCount());
+    }
+
+    @Test
+    void foldsSubtriesBackAfterManyRemovals() {
+        MemorySnapshot snapshot = MemorySnapshot.empty();
+        for (int i = 0; i < 2000; i++) {
+            snapshot = snapshot.with("S" + i, i);
+        }
+        for (int i = 1; i < 2000; i++) {
+            snapshot = snapshot.without("S" + i);
+        }
+
+        assertEquals(1, snapshot.size());
+        assertEquals(0, snapshot.recall("S0"));
+        assertEquals(MemorySnapshot.empty().with("S0", 0).nodeCount(), snapshot.nodeCount());
+    }
+}